@@ -0,0 +1,106 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * Size-classed pool of frame buffers shared by the VNS transport, the
+ * switch's VLAN retagging and DumpFile, so frame I/O doesn't allocate per
+ * packet. Buffers are carved out of large slabs; a size class that runs dry
+ * is refilled with a new slab.
+ */
+public class BufferPool
+{
+	/** Largest frame a device accepts; matches the dump file snap length */
+	public static final int MAX_FRAME_SIZE = 65535;
+
+	/** Buffer sizes, smallest first: standard frames, jumbo frames, maximum
+	 *  size frames and frame batches */
+	private static final int[] SIZE_CLASSES = { 2048, 16384, 131072, 1 << 20 };
+
+	/** Bytes carved out of each new slab */
+	private static final int SLAB_SIZE = 1 << 20;
+
+	/** Free buffers kept per size class, in bytes; buffers released beyond
+	 *  this are left to the garbage collector */
+	private static final int MAX_FREE_BYTES = 8 << 20;
+
+	/** Free buffers for one size class */
+	private static class FreeList
+	{
+		int size;
+		PooledBuffer[] buffers;
+		int count;
+
+		FreeList(int size)
+		{
+			this.size = size;
+			this.buffers = new PooledBuffer[
+					Math.max(MAX_FREE_BYTES / size, 1)];
+			this.count = 0;
+		}
+	}
+
+	private static FreeList[] freeLists;
+
+	static
+	{
+		freeLists = new FreeList[SIZE_CLASSES.length];
+		for (int i = 0; i < SIZE_CLASSES.length; i++)
+		{ freeLists[i] = new FreeList(SIZE_CLASSES[i]); }
+	}
+
+	/**
+	 * Get a buffer with at least the given capacity and a length of zero.
+	 * @param size number of bytes needed
+	 * @return the buffer
+	 */
+	public static PooledBuffer acquire(int size)
+	{
+		int sizeClass = 0;
+		while (sizeClass < SIZE_CLASSES.length
+				&& SIZE_CLASSES[sizeClass] < size)
+		{ sizeClass++; }
+
+		PooledBuffer buffer;
+		if (sizeClass == SIZE_CLASSES.length)
+		{ buffer = new PooledBuffer(new byte[size], 0, size, -1); }
+		else
+		{
+			FreeList freeList = freeLists[sizeClass];
+			synchronized (freeList)
+			{
+				if (0 == freeList.count)
+				{ refill(freeList, sizeClass); }
+				buffer = freeList.buffers[--freeList.count];
+				freeList.buffers[freeList.count] = null;
+			}
+		}
+		buffer.reset();
+		return buffer;
+	}
+
+	/**
+	 * Carve a new slab into buffers; called with the free list locked.
+	 */
+	private static void refill(FreeList freeList, int sizeClass)
+	{
+		int perSlab = Math.max(SLAB_SIZE / freeList.size, 1);
+		perSlab = Math.min(perSlab, freeList.buffers.length);
+		byte[] slab = new byte[perSlab * freeList.size];
+		for (int i = 0; i < perSlab; i++)
+		{
+			freeList.buffers[freeList.count++] = new PooledBuffer(slab,
+					i * freeList.size, freeList.size, sizeClass);
+		}
+	}
+
+	static void free(PooledBuffer buffer)
+	{
+		if (buffer.getSizeClass() < 0)
+		{ return; }
+		FreeList freeList = freeLists[buffer.getSizeClass()];
+		synchronized (freeList)
+		{
+			if (freeList.count < freeList.buffers.length)
+			{ freeList.buffers[freeList.count++] = buffer; }
+		}
+	}
+}
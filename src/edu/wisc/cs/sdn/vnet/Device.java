@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -18,6 +19,12 @@ public abstract class Device
 	/** List of the device's interfaces; maps interface name's to interfaces */
 	protected Map<String,Iface> interfaces;
 	
+	/** The device's interfaces indexed by their dense index */
+	protected Iface[] interfacesByIndex;
+	
+	/** Number of interfaces in interfacesByIndex */
+	protected int interfaceCount;
+	
 	/** PCAP dump file for logging all packets sent/received by the device;
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
@@ -25,6 +32,9 @@ public abstract class Device
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
 	
+	/** Port mirroring sessions for the device; null if there are none */
+	private volatile PortMirror portMirror;
+	
 	/**
 	 * Creates a device.
 	 * @param host hostname for the device
@@ -35,7 +45,10 @@ public abstract class Device
 		this.host = host;
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
+		this.interfacesByIndex = new Iface[4];
+		this.interfaceCount = 0;
 		this.vnsComm = null;
+		this.portMirror = null;
 	}
 	
 	/**
@@ -71,6 +84,29 @@ public abstract class Device
 	public void setVNSComm(VNSComm vnsComm)
 	{ this.vnsComm = vnsComm; }
 	
+	/**
+	 * @return port mirroring sessions for the device; null if there are none
+	 */
+	public PortMirror getPortMirror()
+	{ return this.portMirror; }
+	
+	/**
+	 * Load port mirroring sessions from a file.
+	 * @param mirrorFile name of the file containing the sessions
+	 */
+	public void loadPortMirror(String mirrorFile)
+	{
+		PortMirror portMirror = PortMirror.load(mirrorFile, this);
+		if (null == portMirror)
+		{
+			System.err.println("Error loading port mirroring sessions from file "
+					+ mirrorFile);
+			System.exit(1);
+		}
+		this.portMirror = portMirror;
+		System.out.println("Loaded port mirroring sessions from " + mirrorFile);
+	}
+	
 	/**
 	 * Close the PCAP dump file for the router, if logging is enabled.
 	 */
@@ -86,7 +122,19 @@ public abstract class Device
 	 */
 	public Iface addInterface(String ifaceName)
 	{
-		Iface iface = new Iface(ifaceName);
+		// Re-adding an interface replaces it but keeps its index
+		Iface old = this.interfaces.get(ifaceName);
+		int index = (old != null ? old.getIndex() : this.interfaceCount);
+		
+		Iface iface = new Iface(ifaceName, index);
+		if (index == this.interfacesByIndex.length)
+		{
+			this.interfacesByIndex = Arrays.copyOf(this.interfacesByIndex,
+					2 * index);
+		}
+		this.interfacesByIndex[index] = iface;
+		if (null == old)
+		{ this.interfaceCount++; }
 		this.interfaces.put(ifaceName, iface);
 		return iface;
 	}
@@ -100,6 +148,25 @@ public abstract class Device
 	public Iface getInterface(String ifaceName)
 	{ return this.interfaces.get(ifaceName); }
 	
+	/**
+	 * Gets an interface on the device by the interface's index.
+	 * @param index index of the desired interface
+	 * @return requested interface; null if no interface has the given index
+	 */
+	public Iface getInterface(int index)
+	{
+		if (index < 0 || index >= this.interfaceCount)
+		{ return null; }
+		return this.interfacesByIndex[index];
+	}
+	
+	/**
+	 * @return number of interfaces on the device; their indices are 0 to
+	 *         one less than this
+	 */
+	public int getInterfaceCount()
+	{ return this.interfaceCount; }
+	
 	/**
 	 * Send an Ethernet packet out a specific interface.
 	 * @param etherPacket an Ethernet packet with all fields, encapsulated
@@ -108,7 +175,111 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		if (null == this.portMirror)
+		{ return this.vnsComm.sendPacket(etherPacket, iface); }
+		
+		// Serialize here, so mirrored copies are sent from the same bytes
+		byte[] frame = etherPacket.serialize();
+		return this.sendFrame(frame, 0, frame.length, iface);
+	}
+	
+	/**
+	 * Send an Ethernet packet out several interfaces. The packet is
+	 * serialized once, however many interfaces it is sent out.
+	 * @param etherPacket an Ethernet packet with all fields, encapsulated
+	 * 		  headers, and payloads completed
+	 * @param ifaces interfaces on which to send the packet
+	 * @param count number of interfaces in ifaces to use
+	 * @return true if the packet was sent out every interface, otherwise
+	 *         false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface[] ifaces, int count)
+	{
+		if (null == this.portMirror)
+		{ return this.vnsComm.sendPacket(etherPacket, ifaces, count); }
+		byte[] frame = etherPacket.serialize();
+		return this.sendFrame(frame, 0, frame.length, ifaces, count);
+	}
+	
+	/**
+	 * Send a frame, as is, out a specific interface.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			Iface iface)
+	{
+		boolean sent = this.vnsComm.sendFrame(frame, offset, length, iface);
+		PortMirror portMirror = this.portMirror;
+		if (portMirror != null)
+		{ portMirror.sent(this.vnsComm, frame, offset, length, iface); }
+		return sent;
+	}
+	
+	/**
+	 * Send a frame, as is, out several interfaces.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaces interfaces on which to send the frame
+	 * @param count number of interfaces in ifaces to use
+	 * @return true if the frame was sent out every interface, otherwise
+	 *         false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length,
+			Iface[] ifaces, int count)
+	{
+		boolean sent = this.vnsComm.sendFrame(frame, offset, length, ifaces, 
+				count);
+		PortMirror portMirror = this.portMirror;
+		if (portMirror != null)
+		{
+			for (int i = 0; i < count; i++)
+			{ portMirror.sent(this.vnsComm, frame, offset, length, ifaces[i]); }
+		}
+		return sent;
+	}
+	
+	/**
+	 * Handle a frame received on a specific interface: mirror it, if the
+	 * interface is a mirroring source, and pass it to handleFrame. The
+	 * frame's bytes are only valid until this returns.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 */
+	public void receiveFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		// Copies are sent first, since handling may change the frame's bytes
+		PortMirror portMirror = this.portMirror;
+		if (portMirror != null && inIface != null)
+		{ portMirror.received(this.vnsComm, frame, offset, length, inIface); }
+		this.handleFrame(frame, offset, length, inIface);
+	}
+	
+	/**
+	 * Handle a frame received on a specific interface. Decodes the frame and
+	 * passes it to handlePacket; devices that can act on the raw bytes
+	 * override this to skip decoding. The frame's bytes are only valid until
+	 * this returns.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 */
+	public void handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(frame, offset, length);
+		this.handlePacket(etherPacket, inIface);
+	}
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
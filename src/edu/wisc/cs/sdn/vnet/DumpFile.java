@@ -4,6 +4,7 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import net.floodlightcontroller.packet.Ethernet;
 
@@ -16,6 +17,7 @@ public class DumpFile
 	private static final int SIG_FIGS = 0;
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int RECORD_HEADER_SIZE = 16;
 	
 	private FileOutputStream fileStream;
 	DataOutputStream outStream;
@@ -75,26 +77,53 @@ public class DumpFile
 
 	}
 	
+	/**
+	 * Log a packet. A dump file may be shared by several devices, so writes
+	 * are serialized.
+	 * @param etherPacket the packet to log
+	 */
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
+		this.dump(buf, 0, buf.length);
+	}
+	
+	/**
+	 * Log an already serialized frame.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 */
+	public void dump(byte[] frame, int offset, int length)
+	{
+		long now = System.currentTimeMillis();
+		int caplen = Math.min(length, SNAP_LEN);
 		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		// Build the whole record so it is written with a single call
+		PooledBuffer record = BufferPool.acquire(RECORD_HEADER_SIZE + caplen);
+		ByteBuffer bb = ByteBuffer.wrap(record.getArray(), record.getOffset(),
+				record.getCapacity());
+		bb.putInt((int)(now / 1000));
+		bb.putInt((int)((now % 1000) * 1000));
+		bb.putInt(caplen);
+		bb.putInt(length);
+		bb.put(frame, offset, caplen);
 		try
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
-			this.outStream.flush();
+			synchronized (this)
+			{
+				this.outStream.write(record.getArray(), record.getOffset(),
+						RECORD_HEADER_SIZE + caplen);
+				this.outStream.flush();
+			}
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
+		finally
+		{ record.release(); }
 	}
 	
-	public void close()
+	public synchronized void close()
 	{
 		try
 		{
@@ -10,13 +10,22 @@ import net.floodlightcontroller.packet.MACAddress;
 public class Iface 
 {
 	private String name;
+	
+	/** Dense index of the interface on its device, for per-interface state
+	 *  kept in arrays; -1 if the interface doesn't belong to a device */
+	private int index;
+	
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
 	
 	public Iface(String name)
+	{ this(name, -1); }
+	
+	public Iface(String name, int index)
 	{
 		this.name = name;
+		this.index = index;
 		this.macAddress = null;
 		this.ipAddress = 0;
 	}
@@ -24,6 +33,13 @@ public class Iface
 	public String getName()
 	{ return this.name; }
 	
+	/**
+	 * @return index of the interface on its device; indices are assigned
+	 *         from 0 in the order interfaces are added
+	 */
+	public int getIndex()
+	{ return this.index; }
+	
 	public void setMacAddress(MACAddress mac)
 	{ this.macAddress = mac; }
 	
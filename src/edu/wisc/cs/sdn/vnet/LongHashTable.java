@@ -0,0 +1,165 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The keys of an open-addressed, linearly probed hash table keyed by longs,
+ * for tables that keep their entries' values in parallel arrays indexed by
+ * slot. Writers, which hold their table's lock, fill in a slot's values
+ * before publishing its key; readers find a key without locking, read its
+ * values, and then check that the slot still holds the key. Removed keys
+ * leave a marker so probe sequences past them still work. A table is never
+ * resized in place: a full table is replaced by a new one, which leaves the
+ * markers behind.
+ */
+public class LongHashTable
+{
+	/** Slot values for never used and removed slots, which can't be keys */
+	public static final long EMPTY = 0;
+	public static final long DELETED = -1;
+
+	private static final VarHandle SLOTS =
+			MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final long[] slots;
+	private final int mask;
+
+	/** Number of slots holding keys */
+	private int size;
+
+	/** Number of slots that are not EMPTY, including DELETED ones */
+	private int used;
+
+	/**
+	 * @param capacity number of slots; a power of two
+	 */
+	protected LongHashTable(int capacity)
+	{
+		this.slots = new long[capacity];
+		this.mask = capacity - 1;
+		this.size = 0;
+		this.used = 0;
+	}
+
+	/**
+	 * @return number of slots
+	 */
+	public int getCapacity()
+	{ return this.slots.length; }
+
+	/**
+	 * @return number of slots holding keys
+	 */
+	public int getSize()
+	{ return this.size; }
+
+	/**
+	 * Find a key; safe without the table's lock.
+	 * @return the slot holding the key; -1 if the key is not in the table
+	 */
+	public final int find(long key)
+	{
+		for (int slot = hash(key) & this.mask; ;
+				slot = (slot + 1) & this.mask)
+		{
+			long value = (long)SLOTS.getAcquire(this.slots, slot);
+			if (EMPTY == value)
+			{ return -1; }
+			if (value == key)
+			{ return slot; }
+		}
+	}
+
+	/**
+	 * Check, once a slot's values have been read without the table's lock,
+	 * that the slot still holds the key it was found to hold.
+	 * @return false if the slot has since been reused for another key
+	 */
+	public final boolean holds(int slot, long key)
+	{
+		VarHandle.loadLoadFence();
+		return ((long)SLOTS.getAcquire(this.slots, slot) == key);
+	}
+
+	/**
+	 * @return the key in a slot, EMPTY or DELETED; called with the table's
+	 *         lock held
+	 */
+	public final long getKey(int slot)
+	{ return this.slots[slot]; }
+
+	/**
+	 * @return true if a slot holds a key; called with the table's lock held
+	 */
+	public final boolean isEntry(int slot)
+	{
+		long value = this.slots[slot];
+		return (value != EMPTY && value != DELETED);
+	}
+
+	/**
+	 * @return true if adding a key would leave the table more than half
+	 *         full, counting removed slots, so it should be replaced first
+	 *         to keep probe sequences short
+	 */
+	public final boolean isFull()
+	{ return (2 * (this.used + 1) > this.slots.length); }
+
+	/**
+	 * @return number of slots for a table replacing this full one: the same
+	 *         number if it is full mostly of removed slots, otherwise twice
+	 *         as many
+	 */
+	public final int getReplacementCapacity()
+	{
+		int capacity = this.slots.length;
+		if (2 * (this.size + 1) > capacity / 2)
+		{ capacity *= 2; }
+		return capacity;
+	}
+
+	/**
+	 * Take a free slot for a key not in the table, which must not be full;
+	 * called with the table's lock held. The key is published once the
+	 * slot's values are written.
+	 * @return the slot
+	 */
+	public final int add(long key)
+	{
+		for (int slot = hash(key) & this.mask; ;
+				slot = (slot + 1) & this.mask)
+		{
+			long current = this.slots[slot];
+			if (EMPTY == current || DELETED == current)
+			{
+				if (EMPTY == current)
+				{ this.used++; }
+				this.size++;
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Make a key taken with add() visible to readers, along with the values
+	 * written to its slot before; called with the table's lock held.
+	 */
+	public final void publish(int slot, long key)
+	{ SLOTS.setRelease(this.slots, slot, key); }
+
+	/**
+	 * Remove the key in a slot; called with the table's lock held.
+	 */
+	public final void remove(int slot)
+	{
+		SLOTS.setRelease(this.slots, slot, DELETED);
+		this.size--;
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -1,5 +1,8 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -8,16 +11,19 @@ import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 public class Main {
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
+	private static final String SHARED_MEMORY_PREFIX = "shm:";
 
 	public static void main(String[] args) {
-		String host = null;
+		List<String> hosts = new ArrayList<String>();
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
 		String arpCacheFile = null;
+		String configFile = null;
+		String mirrorFile = null;
 		String logfile = null;
 		short port = DEFAULT_PORT;
-		VNSComm vnsComm = null;
-		Device dev = null;
+		boolean batching = false;
+		boolean rawForwarding = false;
 
 		// Parse arguments
 		for (int i = 0; i < args.length; i++) {
@@ -28,7 +34,11 @@ public class Main {
 			} else if (arg.equals("-p")) {
 				port = Short.parseShort(args[++i]);
 			} else if (arg.equals("-v")) {
-				host = args[++i];
+				for (String host : args[++i].split(",")) {
+					if (host.length() > 0) {
+						hosts.add(host);
+					}
+				}
 			} else if (arg.equals("-s")) {
 				server = args[++i];
 			} else if (arg.equals("-l")) {
@@ -37,70 +47,153 @@ public class Main {
 				routeTableFile = args[++i];
 			} else if (arg.equals("-a")) {
 				arpCacheFile = args[++i];
+			} else if (arg.equals("-c")) {
+				configFile = args[++i];
+			} else if (arg.equals("-M")) {
+				mirrorFile = args[++i];
+			} else if (arg.equals("-b")) {
+				batching = true;
+			} else if (arg.equals("-R")) {
+				rawForwarding = true;
 			}
 		}
 
-		if (null == host) {
+		if (hosts.isEmpty()) {
 			usage();
 			return;
 		}
 
-		// Open PCAP dump file for logging packets sent/received by the router
-		DumpFile dump = null;
-		if (logfile != null) {
-			dump = DumpFile.open(logfile);
-			if (null == dump) {
+		// Open PCAP dump file for logging packets sent/received by the
+		// devices; all devices share one file unless the name contains %s
+		DumpFile sharedDump = null;
+		if (logfile != null && !logfile.contains("%s")) {
+			sharedDump = DumpFile.open(logfile);
+			if (null == sharedDump) {
 				System.err.println("Error opening up dump file " + logfile);
 				return;
 			}
 		}
 
-		if (host.startsWith("s")) {
-			dev = new Switch(host, dump);
-		} else if (host.startsWith("r")) {
-			// Create router instance
-			dev = new Router(host, dump);
-		} else {
-			System.err.println("Device name must start with 's' or 'r'");
-			return;
-		}
+		// Open one session with the Virtual Network Simulator server per
+		// device
+		List<Device> devices = new ArrayList<Device>();
+		List<VNSComm> sessions = new ArrayList<VNSComm>();
+		for (String host : hosts) {
+			DumpFile dump = sharedDump;
+			if (logfile != null && null == sharedDump) {
+				dump = DumpFile.open(forHost(logfile, host));
+				if (null == dump) {
+					System.err.println("Error opening up dump file "
+							+ forHost(logfile, host));
+					return;
+				}
+			}
 
-		// Connect to Virtual Network Simulator server and negotiate session
-		System.out.println(String.format("Connecting to server %s:%d",
-				server, port));
-		vnsComm = new VNSComm(dev);
-		if (!vnsComm.connectToServer(port, server)) {
-			System.exit(1);
-		}
-		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);
+			Device dev = null;
+			if (host.startsWith("s")) {
+				dev = new Switch(host, dump);
+			} else if (host.startsWith("r")) {
+				// Create router instance
+				dev = new Router(host, dump);
+				((Router) dev).setRawForwarding(rawForwarding);
+			} else {
+				System.err.println("Device name must start with 's' or 'r'");
+				return;
+			}
 
-		if (dev instanceof Router) {
-			// Read static route table
-			if (routeTableFile != null) {
-				((Router) dev).loadRouteTable(routeTableFile);
+			// Connect to Virtual Network Simulator server and negotiate session
+			VNSComm vnsComm = new VNSComm(dev);
+			vnsComm.requestBatching(batching);
+			if (server.startsWith(SHARED_MEMORY_PREFIX)) {
+				String filename = forHost(
+						server.substring(SHARED_MEMORY_PREFIX.length()), host);
+				System.out.println(String.format(
+						"Connecting %s to server through %s", host, filename));
+				if (!vnsComm.connectToSharedMemory(filename)) {
+					System.exit(1);
+				}
 			} else {
-				((Router) dev).startRip();
+				System.out.println(String.format(
+						"Connecting %s to server %s:%d", host, server, port));
+				if (!vnsComm.connectToServer(port, server)) {
+					System.exit(1);
+				}
+			}
+			vnsComm.readFromServerExpect(Command.VNS_HW_INFO);
+
+			if (dev instanceof Router) {
+				// Read static route table
+				if (routeTableFile != null) {
+					((Router) dev).loadRouteTable(forHost(routeTableFile, host));
+				} else {
+					((Router) dev).startRip();
+				}
+
+				// Read static ACP cache
+				if (arpCacheFile != null) {
+					((Router) dev).loadArpCache(forHost(arpCacheFile, host));
+				}
+			} else if (dev instanceof Switch) {
+				// Read switch settings
+				if (configFile != null) {
+					((Switch) dev).loadConfig(forHost(configFile, host));
+				}
 			}
 
-			// Read static ACP cache
-			if (arpCacheFile != null) {
-				((Router) dev).loadArpCache(arpCacheFile);
+			// Read port mirroring sessions
+			if (mirrorFile != null) {
+				dev.loadPortMirror(forHost(mirrorFile, host));
 			}
+
+			devices.add(dev);
+			sessions.add(vnsComm);
 		}
 
-		// Read messages from the server until the server closes the connection
+		// Read messages from the server until the server closes the
+		// connection; each session reads on its own (virtual, if supported)
+		// thread
 		System.out.println("<-- Ready to process packets -->");
-		while (vnsComm.readFromServer())
-			;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < sessions.size(); i++) {
+			final VNSComm vnsComm = sessions.get(i);
+			threads.add(Scheduler.startThread("VNS " + hosts.get(i),
+					new Runnable() {
+						public void run() {
+							while (vnsComm.readFromServer())
+								;
+						}
+					}));
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		// Shutdown the devices
+		for (Device dev : devices) {
+			dev.destroy();
+		}
+	}
 
-		// Shutdown the router
-		dev.destroy();
+	/**
+	 * Substitute a host name for %s in a per-device file name.
+	 */
+	private static String forHost(String filename, String host) {
+		return filename.replace("%s", host);
 	}
 
 	static void usage() {
 		System.out.println("Virtual Network Client");
-		System.out.println("VNet -v host [-s server] [-p port] [-h]");
-		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("VNet -v host[,host...] [-s server] [-p port] [-h]");
+		System.out.println("     [-r routing_table] [-a arp_cache] [-c switch_config]");
+		System.out.println("     [-M mirror_file] [-l log_file] [-b] [-R]");
+		System.out.println("  -b asks the server for multi-frame VNS_PACKET_BATCH commands");
+		System.out.println("  -R has routers forward IPv4 packets without decoding them");
+		System.out.println("  -s shm:file connects through a shared memory file created by a local server");
+		System.out.println("  %s in a file name is replaced by each host's name");
 		System.out.println(String.format("  defaults server=%s port=%d",
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
@@ -0,0 +1,430 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Reads Ethernet frames from a classic PCAP or a PCAPNG capture file, such as
+ * the files written by {@link DumpFile}.
+ */
+public class PcapReader
+{
+	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NSEC = 0xa1b23c4d;
+	private static final int PCAPNG_SECTION_HEADER = 0x0a0d0d0a;
+	private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+	private static final int PCAPNG_INTERFACE_DESCRIPTION = 1;
+	private static final int PCAPNG_SIMPLE_PACKET = 3;
+	private static final int PCAPNG_ENHANCED_PACKET = 6;
+	private static final int PCAPNG_OPT_IF_TSRESOL = 9;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int MAX_INTERFACES = 256;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	/** Sizes of a PCAPNG block's header and trailer, of the smallest
+	 *  section header block, and of the fixed parts of the bodies of
+	 *  interface description, enhanced packet and simple packet blocks */
+	private static final int PCAPNG_BLOCK_OVERHEAD = 12;
+	private static final int PCAPNG_SECTION_HEADER_SIZE = 28;
+	private static final int PCAPNG_INTERFACE_DESCRIPTION_BODY = 8;
+	private static final int PCAPNG_ENHANCED_PACKET_BODY = 20;
+	private static final int PCAPNG_SIMPLE_PACKET_BODY = 4;
+
+	/** Largest binary and decimal exponents of a timestamp resolution
+	 *  whose units per second fit in a long */
+	private static final int MAX_TSRESOL_POW2 = 62;
+	private static final int MAX_TSRESOL_POW10 = 18;
+
+	/** A frame read from a capture file */
+	public static class Record
+	{
+		/** Capture timestamp, in nanoseconds since the epoch */
+		public long timestamp;
+
+		/** Index of the capture interface (always 0 for classic PCAP) */
+		public int ifaceId;
+
+		/** Captured bytes of the frame */
+		public byte[] data;
+	}
+
+	private DataInputStream inStream;
+
+	/** True if the file was written with the opposite byte order */
+	private boolean swapped;
+
+	/** True if the file is in PCAPNG format */
+	private boolean ng;
+
+	/** Nanoseconds per timestamp unit for classic PCAP files */
+	private long tsScale;
+
+	/** Largest frame a classic PCAP file may hold, from its snaplen */
+	private int maxCapLen;
+
+	/** Per-interface timestamp resolution (units per second) for PCAPNG */
+	private long[] ifaceTsRes;
+
+	/** Number of interfaces described in the current PCAPNG section */
+	private int ifaceCount;
+
+	private PcapReader(DataInputStream inStream)
+	{
+		this.inStream = inStream;
+		this.ifaceTsRes = new long[MAX_INTERFACES];
+		this.ifaceCount = 0;
+	}
+
+	/**
+	 * Open a capture file for reading.
+	 * @param filename name of the PCAP or PCAPNG file
+	 * @return a reader positioned at the first frame; null if the file could
+	 *         not be opened or is not an Ethernet capture
+	 */
+	public static PcapReader open(String filename)
+	{
+		PcapReader reader;
+		try
+		{
+			reader = new PcapReader(new DataInputStream(
+					new BufferedInputStream(new FileInputStream(filename),
+							1 << 16)));
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println("Cannot open " + filename);
+			return null;
+		}
+
+		if (!reader.readHeader())
+		{
+			reader.close();
+			return null;
+		}
+		return reader;
+	}
+
+	private boolean readHeader()
+	{
+		try
+		{
+			int magic = this.inStream.readInt();
+			switch (magic)
+			{
+			case TCPDUMP_MAGIC:
+			case TCPDUMP_MAGIC_NSEC:
+				this.swapped = false;
+				break;
+			case PCAPNG_SECTION_HEADER:
+				this.ng = true;
+				return this.readSectionHeader();
+			default:
+				if (Integer.reverseBytes(magic) != TCPDUMP_MAGIC
+						&& Integer.reverseBytes(magic) != TCPDUMP_MAGIC_NSEC)
+				{
+					System.err.println("Not a PCAP or PCAPNG file");
+					return false;
+				}
+				this.swapped = true;
+				magic = Integer.reverseBytes(magic);
+			}
+			this.tsScale = (TCPDUMP_MAGIC_NSEC == magic ? 1 : 1000);
+
+			// Skip version, zone and sigfigs; a snaplen of 0 (or one too
+			// large to be an int) means no limit beyond a frame's size
+			this.inStream.readFully(new byte[12]);
+			int snapLen = this.readInt();
+			this.maxCapLen = BufferPool.MAX_FRAME_SIZE;
+			if (snapLen > 0 && snapLen < this.maxCapLen)
+			{ this.maxCapLen = snapLen; }
+			int linkType = this.readInt();
+			if (linkType != LINKTYPE_ETHERNET)
+			{
+				System.err.println("Unsupported link type " + linkType);
+				return false;
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error reading capture header: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Read the remainder of a PCAPNG section header block, whose block type
+	 * has already been consumed.
+	 */
+	private boolean readSectionHeader() throws IOException
+	{
+		// Block length is read before we know the byte order
+		int rawLength = this.inStream.readInt();
+		int byteOrder = this.inStream.readInt();
+		if (PCAPNG_BYTE_ORDER_MAGIC == byteOrder)
+		{ this.swapped = false; }
+		else if (PCAPNG_BYTE_ORDER_MAGIC == Integer.reverseBytes(byteOrder))
+		{ this.swapped = true; }
+		else
+		{
+			System.err.println("Invalid PCAPNG byte order magic");
+			return false;
+		}
+		int length = (this.swapped ? Integer.reverseBytes(rawLength)
+				: rawLength);
+		if (length < PCAPNG_SECTION_HEADER_SIZE || (length & 3) != 0)
+		{
+			System.err.println("Invalid PCAPNG section header length "
+					+ length);
+			return false;
+		}
+		this.skip(length - 12);
+		this.ifaceCount = 0;
+		return true;
+	}
+
+	/**
+	 * Read the next frame from the capture.
+	 * @return the next frame; null at the end of the file or on error
+	 */
+	public Record next()
+	{
+		try
+		{
+			if (this.ng)
+			{ return this.nextBlock(); }
+
+			Record record = new Record();
+			long sec = this.readInt() & 0xffffffffL;
+			long frac = this.readInt() & 0xffffffffL;
+			record.timestamp = sec * 1000000000L + frac * this.tsScale;
+			int capLen = this.readInt();
+			this.readInt(); // original length
+			if (capLen < 0 || capLen > this.maxCapLen)
+			{
+				System.err.println("Invalid capture length "
+						+ (capLen & 0xffffffffL));
+				return null;
+			}
+			record.ifaceId = 0;
+			record.data = new byte[capLen];
+			this.inStream.readFully(record.data);
+			return record;
+		}
+		catch (EOFException e)
+		{ return null; }
+		catch (IOException e)
+		{
+			System.err.println("Error reading capture: " + e);
+			return null;
+		}
+	}
+
+	private Record nextBlock() throws IOException
+	{
+		while (true)
+		{
+			int type = this.inStream.readInt();
+			if (PCAPNG_SECTION_HEADER == type)
+			{
+				if (!this.readSectionHeader())
+				{ return null; }
+				continue;
+			}
+			if (this.swapped)
+			{ type = Integer.reverseBytes(type); }
+			int length = this.readInt();
+			if (length < PCAPNG_BLOCK_OVERHEAD || (length & 3) != 0)
+			{
+				System.err.println("Invalid PCAPNG block length "
+						+ (length & 0xffffffffL));
+				return null;
+			}
+			int body = length - PCAPNG_BLOCK_OVERHEAD;
+
+			switch (type)
+			{
+			case PCAPNG_INTERFACE_DESCRIPTION:
+			{
+				if (body < PCAPNG_INTERFACE_DESCRIPTION_BODY)
+				{
+					System.err.println("Invalid PCAPNG block length "
+							+ length);
+					return null;
+				}
+				int linkType = this.readShort();
+				this.readShort(); // reserved
+				this.readInt(); // snaplen
+				long tsRes = 1000000;
+				int remaining = body - 8;
+				while (remaining >= 4)
+				{
+					int code = this.readShort();
+					int optLen = this.readShort();
+					int padded = (optLen + 3) & ~3;
+					remaining -= 4 + padded;
+					if (PCAPNG_OPT_IF_TSRESOL == code && optLen >= 1)
+					{
+						int res = this.inStream.readUnsignedByte();
+						boolean pow2 = ((res & 0x80) != 0);
+						int exp = res & 0x7f;
+						if (exp > (pow2 ? MAX_TSRESOL_POW2
+								: MAX_TSRESOL_POW10))
+						{
+							System.err.println("Unsupported timestamp "
+									+ "resolution " + res);
+							return null;
+						}
+						tsRes = (pow2 ? 1L << exp : pow10(exp));
+						this.skip(padded - 1);
+					}
+					else
+					{ this.skip(padded); }
+					if (0 == code)
+					{ break; }
+				}
+				this.skip(Math.max(remaining, 0));
+				this.readInt(); // trailing length
+				if (linkType != LINKTYPE_ETHERNET)
+				{
+					System.err.println("Unsupported link type " + linkType);
+					return null;
+				}
+				if (this.ifaceCount < MAX_INTERFACES)
+				{ this.ifaceTsRes[this.ifaceCount++] = tsRes; }
+				break;
+			}
+			case PCAPNG_ENHANCED_PACKET:
+			{
+				if (body < PCAPNG_ENHANCED_PACKET_BODY)
+				{
+					System.err.println("Invalid PCAPNG block length "
+							+ length);
+					return null;
+				}
+				Record record = new Record();
+				record.ifaceId = this.readInt();
+				long ts = ((this.readInt() & 0xffffffffL) << 32)
+						| (this.readInt() & 0xffffffffL);
+				int capLen = this.readInt();
+				this.readInt(); // original length
+				if (capLen < 0 || capLen > BufferPool.MAX_FRAME_SIZE
+						|| capLen > body - PCAPNG_ENHANCED_PACKET_BODY)
+				{
+					System.err.println("Invalid capture length "
+							+ (capLen & 0xffffffffL));
+					return null;
+				}
+				record.data = new byte[capLen];
+				this.inStream.readFully(record.data);
+				this.skip(body - PCAPNG_ENHANCED_PACKET_BODY - capLen);
+				this.readInt(); // trailing length
+
+				long tsRes = 1000000;
+				if (record.ifaceId >= 0 && record.ifaceId < this.ifaceCount)
+				{ tsRes = this.ifaceTsRes[record.ifaceId]; }
+				record.timestamp = toNanos(ts, tsRes);
+				return record;
+			}
+			case PCAPNG_SIMPLE_PACKET:
+			{
+				if (body < PCAPNG_SIMPLE_PACKET_BODY)
+				{
+					System.err.println("Invalid PCAPNG block length "
+							+ length);
+					return null;
+				}
+				Record record = new Record();
+				int origLen = this.readInt();
+				record.ifaceId = 0;
+				record.timestamp = 0;
+				// The body is padded to 32 bits; frames longer than the
+				// body were truncated by the interface's snaplen
+				int capLen = body - PCAPNG_SIMPLE_PACKET_BODY;
+				if (origLen >= 0 && origLen < capLen)
+				{ capLen = origLen; }
+				if (capLen > BufferPool.MAX_FRAME_SIZE)
+				{
+					System.err.println("Invalid capture length " + capLen);
+					return null;
+				}
+				record.data = new byte[capLen];
+				this.inStream.readFully(record.data);
+				this.skip(body - PCAPNG_SIMPLE_PACKET_BODY - capLen);
+				this.readInt(); // trailing length
+				return record;
+			}
+			default:
+				this.skip(body);
+				this.readInt(); // trailing length
+			}
+		}
+	}
+
+	/**
+	 * Convert a PCAPNG timestamp to nanoseconds.
+	 * @param ts timestamp, an unsigned count of units
+	 * @param tsRes units per second
+	 */
+	private static long toNanos(long ts, long tsRes)
+	{
+		long sec = Long.divideUnsigned(ts, tsRes);
+		long frac = Long.remainderUnsigned(ts, tsRes);
+
+		// The fraction times 10^9 only fits in a long for resolutions
+		// coarser than about a tenth of a nanosecond
+		long fracNanos;
+		if (tsRes <= Long.MAX_VALUE / NANOS_PER_SECOND)
+		{ fracNanos = frac * NANOS_PER_SECOND / tsRes; }
+		else
+		{
+			fracNanos = BigInteger.valueOf(frac)
+					.multiply(BigInteger.valueOf(NANOS_PER_SECOND))
+					.divide(BigInteger.valueOf(tsRes)).longValue();
+		}
+		return sec * NANOS_PER_SECOND + fracNanos;
+	}
+
+	private static long pow10(int exp)
+	{
+		long result = 1;
+		for (int i = 0; i < exp; i++)
+		{ result *= 10; }
+		return result;
+	}
+
+	private int readInt() throws IOException
+	{
+		int value = this.inStream.readInt();
+		return (this.swapped ? Integer.reverseBytes(value) : value);
+	}
+
+	private int readShort() throws IOException
+	{
+		short value = this.inStream.readShort();
+		return (this.swapped ? Short.reverseBytes(value) : value) & 0xffff;
+	}
+
+	private void skip(int count) throws IOException
+	{
+		while (count > 0)
+		{
+			int skipped = this.inStream.skipBytes(count);
+			if (skipped <= 0)
+			{ throw new EOFException(); }
+			count -= skipped;
+		}
+	}
+
+	public void close()
+	{
+		try
+		{ this.inStream.close(); }
+		catch (IOException e) { }
+	}
+}
@@ -0,0 +1,97 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A region of a slab handed out by BufferPool. A buffer has a single owner,
+ * who gives it back to the pool with release() once done with it. Frames are
+ * sent synchronously, so a frame going out several interfaces is sent from
+ * one buffer and released once, after the last send.
+ */
+public class PooledBuffer
+{
+	/** Slab the buffer is carved out of */
+	private byte[] array;
+
+	/** Offset of the buffer in the slab */
+	private int offset;
+
+	private int capacity;
+
+	/** Index of the pool size class; -1 if the buffer isn't pooled */
+	private int sizeClass;
+
+	/** Number of bytes in use */
+	private int length;
+
+	/** True while the buffer is in the pool */
+	private boolean free;
+
+	PooledBuffer(byte[] array, int offset, int capacity, int sizeClass)
+	{
+		this.array = array;
+		this.offset = offset;
+		this.capacity = capacity;
+		this.sizeClass = sizeClass;
+		this.length = 0;
+		this.free = true;
+	}
+
+	/**
+	 * @return slab holding the buffer; data starts at getOffset()
+	 */
+	public byte[] getArray()
+	{ return this.array; }
+
+	/**
+	 * @return offset of the buffer in the array returned by getArray()
+	 */
+	public int getOffset()
+	{ return this.offset; }
+
+	public int getCapacity()
+	{ return this.capacity; }
+
+	/**
+	 * @return number of bytes in use
+	 */
+	public int getLength()
+	{ return this.length; }
+
+	public void setLength(int length)
+	{
+		if (length < 0 || length > this.capacity)
+		{ throw new IndexOutOfBoundsException("Invalid length " + length); }
+		this.length = length;
+	}
+
+	int getSizeClass()
+	{ return this.sizeClass; }
+
+	/**
+	 * @return a view of the bytes in use; positions are relative to the start
+	 *         of the slab, so array() and position() can be used together
+	 */
+	public ByteBuffer toByteBuffer()
+	{ return ByteBuffer.wrap(this.array, this.offset, this.length); }
+
+	/**
+	 * Return the buffer to the pool. The buffer must not be used afterward.
+	 */
+	public void release()
+	{
+		if (this.free)
+		{
+			System.err.println("Error: buffer released too many times");
+			return;
+		}
+		this.free = true;
+		BufferPool.free(this);
+	}
+
+	void reset()
+	{
+		this.length = 0;
+		this.free = false;
+	}
+}
@@ -0,0 +1,316 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Port mirroring (SPAN) for a device: copies of the frames received on,
+ * sent out, or both, a session's source interfaces are sent out the
+ * session's destination interface, e.g., to a traffic analyzer. Copies are
+ * sent from the same bytes as the frames they copy, so mirroring never
+ * serializes a frame again. They are best effort: a copy is dropped if the
+ * session is over its rate limit, or if sending it would mean waiting for
+ * another thread to finish sending, so mirroring never holds up forwarding.
+ * <p>
+ * Sessions are read from a file with one session per line:
+ * <pre>
+ * # comment
+ * span iface[,iface...] rx|tx|both destination-iface [rate]
+ * </pre>
+ * where rate is the most copies the session sends per second; 0, or no
+ * rate, for no limit.
+ */
+public class PortMirror
+{
+	/** Directions of traffic to mirror */
+	public static final int RX = 1;
+	public static final int TX = 2;
+	public static final int BOTH = RX | TX;
+
+	/** Time (in milliseconds) for which a session's tokens accumulate, so
+	 *  short bursts within its limit aren't dropped */
+	private static final int BURST_TIME = 1000;
+
+	/** A mirroring session */
+	public static class Session
+	{
+		/** Interface out which copies are sent */
+		private final Iface destination;
+
+		/** Most copies sent per second; 0 for no limit */
+		private final long rate;
+
+		/** Tokens, in thousandths of a copy, and the time (in milliseconds)
+		 *  they were last refilled */
+		private long tokens;
+		private long refilled;
+
+		/** Copies sent, and copies dropped for the rate limit or because
+		 *  the sender was busy */
+		private long sent;
+		private long drops;
+
+		Session(Iface destination, long rate)
+		{
+			this.destination = destination;
+			this.rate = rate;
+			this.tokens = rate * BURST_TIME;
+			this.refilled = Scheduler.currentTimeMillis();
+		}
+
+		public Iface getDestination()
+		{ return this.destination; }
+
+		public synchronized long getSent()
+		{ return this.sent; }
+
+		public synchronized long getDrops()
+		{ return this.drops; }
+
+		synchronized boolean admit(long now)
+		{
+			if (0 == this.rate)
+			{ return true; }
+			long elapsed = Math.min(now - this.refilled, BURST_TIME);
+			if (elapsed > 0)
+			{
+				this.tokens = Math.min(this.tokens + elapsed * this.rate,
+						Math.max(this.rate * BURST_TIME, 1000));
+				this.refilled = now;
+			}
+			if (this.tokens < 1000)
+			{
+				this.drops++;
+				return false;
+			}
+			this.tokens -= 1000;
+			return true;
+		}
+
+		synchronized void count(boolean sent)
+		{
+			if (sent)
+			{ this.sent++; }
+			else
+			{ this.drops++; }
+		}
+	}
+
+	/** All sessions */
+	private List<Session> sessions;
+
+	/** Sessions mirroring frames received on, and sent out, each interface;
+	 *  indexed by interface index; null where there are none */
+	private volatile Session[][] rxSessions;
+	private volatile Session[][] txSessions;
+
+	public PortMirror()
+	{
+		this.sessions = new ArrayList<Session>();
+		this.rxSessions = new Session[0][];
+		this.txSessions = new Session[0][];
+	}
+
+	/**
+	 * Add a mirroring session.
+	 * @param sources interfaces whose traffic is mirrored
+	 * @param direction RX, TX or BOTH
+	 * @param destination interface out which copies are sent
+	 * @param rate most copies sent per second; 0 for no limit
+	 * @return the session
+	 */
+	public synchronized Session addSession(Iface[] sources, int direction,
+			Iface destination, long rate)
+	{
+		Session session = new Session(destination, rate);
+		this.sessions.add(session);
+		Session[][] rxSessions = this.rxSessions;
+		Session[][] txSessions = this.txSessions;
+		for (Iface source : sources)
+		{
+			// Copies of the destination's own traffic would mirror copies
+			if (source == destination)
+			{ continue; }
+			if ((direction & RX) != 0)
+			{ rxSessions = addSession(rxSessions, source.getIndex(), session); }
+			if ((direction & TX) != 0)
+			{ txSessions = addSession(txSessions, source.getIndex(), session); }
+		}
+		this.rxSessions = rxSessions;
+		this.txSessions = txSessions;
+		return session;
+	}
+
+	/**
+	 * @return all sessions
+	 */
+	public synchronized List<Session> getSessions()
+	{ return new ArrayList<Session>(this.sessions); }
+
+	private static Session[][] addSession(Session[][] sessions,
+			int ifaceIndex, Session session)
+	{
+		sessions = Arrays.copyOf(sessions,
+				Math.max(sessions.length, ifaceIndex + 1));
+		Session[] ifaceSessions = sessions[ifaceIndex];
+		if (null == ifaceSessions)
+		{ ifaceSessions = new Session[0]; }
+		ifaceSessions = Arrays.copyOf(ifaceSessions, ifaceSessions.length + 1);
+		ifaceSessions[ifaceSessions.length - 1] = session;
+		sessions[ifaceIndex] = ifaceSessions;
+		return sessions;
+	}
+
+	/**
+	 * Mirror a frame received on an interface.
+	 * @param vnsComm connection through which to send copies
+	 */
+	public void received(VNSComm vnsComm, byte[] frame, int offset,
+			int length, Iface inIface)
+	{ mirror(this.rxSessions, vnsComm, frame, offset, length, inIface); }
+
+	/**
+	 * Mirror a frame sent out an interface.
+	 * @param vnsComm connection through which to send copies
+	 */
+	public void sent(VNSComm vnsComm, byte[] frame, int offset, int length,
+			Iface outIface)
+	{ mirror(this.txSessions, vnsComm, frame, offset, length, outIface); }
+
+	private static void mirror(Session[][] sessions, VNSComm vnsComm,
+			byte[] frame, int offset, int length, Iface iface)
+	{
+		int ifaceIndex = iface.getIndex();
+		if (ifaceIndex >= sessions.length || null == sessions[ifaceIndex])
+		{ return; }
+		long now = Scheduler.currentTimeMillis();
+		for (Session session : sessions[ifaceIndex])
+		{
+			if (session.admit(now))
+			{
+				session.count(vnsComm.offerFrame(frame, offset, length,
+						session.destination));
+			}
+		}
+	}
+
+	/**
+	 * Read mirroring sessions from a file.
+	 * @param filename name of the file containing the sessions
+	 * @param device device whose interfaces the sessions name
+	 * @return the sessions; null if the file could not be read or is invalid
+	 */
+	public static PortMirror load(String filename, Device device)
+	{
+		// Open the file
+		BufferedReader reader;
+		try
+		{
+			FileReader fileReader = new FileReader(filename);
+			reader = new BufferedReader(fileReader);
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		PortMirror portMirror = new PortMirror();
+		int lineNumber = 0;
+		while (true)
+		{
+			// Read a session from the file
+			String line = null;
+			try
+			{ line = reader.readLine(); }
+			catch (IOException e)
+			{
+				System.err.println(e.toString());
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+
+			// Stop if we have reached the end of the file
+			if (null == line)
+			{ break; }
+			lineNumber++;
+
+			// Skip comments and blank lines
+			int comment = line.indexOf('#');
+			if (comment >= 0)
+			{ line = line.substring(0, comment); }
+			line = line.trim();
+			if (0 == line.length())
+			{ continue; }
+
+			if (!portMirror.parse(line.split("\\s+"), device))
+			{
+				System.err.println(String.format(
+						"Invalid session on line %d of mirror file: %s",
+						lineNumber, line));
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+		}
+
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+		return portMirror;
+	}
+
+	/**
+	 * Add one session.
+	 * @param fields the session's keyword and arguments
+	 * @return true if the session is valid, otherwise false
+	 */
+	private boolean parse(String[] fields, Device device)
+	{
+		if (!fields[0].equals("span")
+				|| (fields.length != 4 && fields.length != 5))
+		{ return false; }
+
+		String[] sourceNames = fields[1].split(",");
+		Iface[] sources = new Iface[sourceNames.length];
+		for (int i = 0; i < sources.length; i++)
+		{
+			sources[i] = device.getInterface(sourceNames[i]);
+			if (null == sources[i])
+			{ return false; }
+		}
+
+		int direction;
+		if (fields[2].equals("rx"))
+		{ direction = RX; }
+		else if (fields[2].equals("tx"))
+		{ direction = TX; }
+		else if (fields[2].equals("both"))
+		{ direction = BOTH; }
+		else
+		{ return false; }
+
+		Iface destination = device.getInterface(fields[3]);
+		if (null == destination)
+		{ return false; }
+
+		long rate = 0;
+		if (5 == fields.length)
+		{
+			try
+			{ rate = Long.parseLong(fields[4]); }
+			catch (NumberFormatException e)
+			{ return false; }
+			if (rate < 0)
+			{ return false; }
+		}
+
+		this.addSession(sources, direction, destination, rate);
+		return true;
+	}
+}
@@ -0,0 +1,550 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.SharedMemoryTransport;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import edu.wisc.cs.sdn.vnet.vns.VNSServer;
+
+/**
+ * Replays a packet capture into a device and reports throughput, latency
+ * and per-interface output counts.
+ * <p>
+ * Frames are either passed directly to the device's handleFrame method
+ * ("direct" mode) or sent through a loopback connection ("loopback" mode) or
+ * a shared memory file ("shm" mode) to a stand-in VNS server, which also
+ * exercises VNSComm. Latency is the time
+ * from injecting a frame until the device has finished handling it.
+ */
+public class Replay
+{
+	private static final String MODE_DIRECT = "direct";
+	private static final String MODE_LOOPBACK = "loopback";
+	private static final String MODE_SHM = "shm";
+	private static final String TIMING_ORIGINAL = "original";
+	private static final String TIMING_AFAP = "afap";
+
+	/** Spin instead of parking when the next frame is due this soon */
+	private static final long SPIN_THRESHOLD_NS = 50 * 1000;
+
+	/** Output counters for one interface */
+	private static class IfaceCounter
+	{
+		AtomicLong packets = new AtomicLong();
+		AtomicLong bytes = new AtomicLong();
+	}
+
+	/** Output counters; maps interface names to counters */
+	private static Map<String,IfaceCounter> outCounters =
+			new TreeMap<String,IfaceCounter>();
+
+	/**
+	 * Stands in for VNSComm in direct mode, counting the frames the device
+	 * sends instead of writing them to a server.
+	 */
+	private static class CountingComm extends VNSComm
+	{
+		private Device device;
+
+		public CountingComm(Device device)
+		{
+			super(device);
+			this.device = device;
+		}
+
+		public boolean sendFrame(byte[] frame, int offset, int length,
+				Iface iface)
+		{
+			if (this.device.getLogFile() != null)
+			{ this.device.getLogFile().dump(frame, offset, length); }
+			countOutput(iface.getName(), length);
+			return true;
+		}
+
+		public boolean sendFrame(byte[] frame, int offset, int length,
+				Iface[] ifaces, int count)
+		{
+			for (int i = 0; i < count; i++)
+			{ this.sendFrame(frame, offset, length, ifaces[i]); }
+			return true;
+		}
+
+		public boolean offerFrame(byte[] frame, int offset, int length,
+				Iface iface)
+		{ return this.sendFrame(frame, offset, length, iface); }
+	}
+
+	private static void countOutput(String ifaceName, int length)
+	{
+		IfaceCounter counter;
+		synchronized (outCounters)
+		{
+			counter = outCounters.get(ifaceName);
+			if (null == counter)
+			{
+				counter = new IfaceCounter();
+				outCounters.put(ifaceName, counter);
+			}
+		}
+		counter.packets.incrementAndGet();
+		counter.bytes.addAndGet(length);
+	}
+
+	public static void main(String[] args)
+	{
+		String captureFile = null;
+		String host = null;
+		String mode = MODE_DIRECT;
+		String timing = TIMING_AFAP;
+		double speedup = 1.0;
+		String ingress = null;
+		String routeTableFile = null;
+		String arpCacheFile = null;
+		String switchConfigFile = null;
+		String mirrorFile = null;
+		String logfile = null;
+		boolean rawForwarding = false;
+		int limit = Integer.MAX_VALUE;
+		int batchSize = 0;
+		List<Iface> ifaces = new ArrayList<Iface>();
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-f"))
+			{ captureFile = args[++i]; }
+			else if (arg.equals("-v"))
+			{ host = args[++i]; }
+			else if (arg.equals("-m"))
+			{ mode = args[++i]; }
+			else if (arg.equals("-t"))
+			{ timing = args[++i]; }
+			else if (arg.equals("-x"))
+			{ speedup = Double.parseDouble(args[++i]); }
+			else if (arg.equals("-n"))
+			{ ingress = args[++i]; }
+			else if (arg.equals("-b"))
+			{ batchSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-c"))
+			{ limit = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-r"))
+			{ routeTableFile = args[++i]; }
+			else if (arg.equals("-a"))
+			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-s"))
+			{ switchConfigFile = args[++i]; }
+			else if (arg.equals("-M"))
+			{ mirrorFile = args[++i]; }
+			else if (arg.equals("-R"))
+			{ rawForwarding = true; }
+			else if (arg.equals("-l"))
+			{ logfile = args[++i]; }
+			else if (arg.equals("-i"))
+			{
+				Iface iface = parseIface(args[++i]);
+				if (null == iface)
+				{
+					System.err.println("Invalid interface " + args[i]);
+					return;
+				}
+				ifaces.add(iface);
+			}
+		}
+
+		if (null == captureFile || null == host || ifaces.isEmpty()
+				|| (!mode.equals(MODE_DIRECT) && !mode.equals(MODE_LOOPBACK)
+				&& !mode.equals(MODE_SHM)))
+		{
+			usage();
+			return;
+		}
+
+		long interval = 0;
+		if (!timing.equals(TIMING_ORIGINAL) && !timing.equals(TIMING_AFAP))
+		{
+			double rate = Double.parseDouble(timing);
+			if (rate <= 0)
+			{
+				usage();
+				return;
+			}
+			interval = (long)(1000000000L / rate);
+		}
+
+		// Load the capture into memory so disk reads don't skew timing
+		PcapReader reader = PcapReader.open(captureFile);
+		if (null == reader)
+		{
+			System.err.println("Error opening capture file " + captureFile);
+			return;
+		}
+		List<PcapReader.Record> records = new ArrayList<PcapReader.Record>();
+		PcapReader.Record record;
+		while (records.size() < limit && (record = reader.next()) != null)
+		{ records.add(record); }
+		reader.close();
+		if (records.isEmpty())
+		{
+			System.err.println("Capture file contains no frames");
+			return;
+		}
+
+		// Map each frame to the interface it arrives on
+		int defaultIngress = 0;
+		if (ingress != null)
+		{
+			defaultIngress = -1;
+			for (int i = 0; i < ifaces.size(); i++)
+			{
+				if (ifaces.get(i).getName().equals(ingress))
+				{ defaultIngress = i; }
+			}
+			if (defaultIngress < 0)
+			{
+				System.err.println("Unknown ingress interface " + ingress);
+				return;
+			}
+		}
+		final int count = records.size();
+		byte[][] frames = new byte[count][];
+		String[] inNames = new String[count];
+		long[] dueTimes = new long[count];
+		long firstTimestamp = records.get(0).timestamp;
+		for (int i = 0; i < count; i++)
+		{
+			record = records.get(i);
+			frames[i] = record.data;
+			int ifaceIdx = defaultIngress;
+			if (null == ingress && record.ifaceId < ifaces.size())
+			{ ifaceIdx = record.ifaceId; }
+			inNames[i] = ifaces.get(ifaceIdx).getName();
+			if (timing.equals(TIMING_ORIGINAL))
+			{
+				dueTimes[i] = (long)((record.timestamp - firstTimestamp)
+						/ speedup);
+			}
+			else
+			{ dueTimes[i] = i * interval; }
+		}
+		records = null;
+
+		// Open PCAP dump file for logging packets sent/received by the device
+		DumpFile dump = null;
+		if (logfile != null)
+		{
+			dump = DumpFile.open(logfile);
+			if (null == dump)
+			{
+				System.err.println("Error opening up dump file " + logfile);
+				return;
+			}
+		}
+
+		Device dev;
+		if (host.startsWith("s"))
+		{ dev = new Switch(host, dump); }
+		else if (host.startsWith("r"))
+		{
+			dev = new Router(host, dump);
+			((Router)dev).setRawForwarding(rawForwarding);
+		}
+		else
+		{
+			System.err.println("Device name must start with 's' or 'r'");
+			return;
+		}
+
+		final long[] injected = new long[count];
+		final long[] handled = new long[count];
+		long start;
+		long end;
+		if (mode.equals(MODE_DIRECT))
+		{
+			new CountingComm(dev);
+			for (Iface iface : ifaces)
+			{
+				Iface devIface = dev.addInterface(iface.getName());
+				devIface.setMacAddress(iface.getMacAddress());
+				devIface.setIpAddress(iface.getIpAddress());
+				devIface.setSubnetMask(iface.getSubnetMask());
+			}
+			configure(dev, routeTableFile, arpCacheFile,
+					switchConfigFile, mirrorFile);
+
+			// Resolve ingress interfaces before timing starts
+			Iface[] inIfaces = new Iface[count];
+			for (int i = 0; i < count; i++)
+			{ inIfaces[i] = dev.getInterface(inNames[i]); }
+
+			System.out.println("<-- Replaying " + count + " frames -->");
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+			{
+				injected[i] = waitUntil(start + dueTimes[i]);
+				if (dev.getLogFile() != null)
+				{ dev.getLogFile().dump(frames[i], 0, frames[i].length); }
+				dev.receiveFrame(frames[i], 0, frames[i].length, inIfaces[i]);
+				handled[i] = System.nanoTime();
+			}
+			end = System.nanoTime();
+		}
+		else
+		{
+			VNSServer server = new VNSServer(ifaces);
+			server.setBatchingAllowed(batchSize > 0);
+			server.setPacketListener(new VNSServer.PacketListener() {
+				public void receivedPacket(String ifaceName, byte[] frame,
+						int offset, int length)
+				{ countOutput(ifaceName, length); }
+			});
+			int port = 0;
+			String shmFile = null;
+			if (mode.equals(MODE_SHM))
+			{
+				shmFile = sharedMemoryFile(host);
+				if (!server.listenSharedMemory(shmFile,
+						SharedMemoryTransport.DEFAULT_CAPACITY))
+				{ System.exit(1); }
+			}
+			else
+			{
+				port = server.listen(0);
+				if (port < 0)
+				{ System.exit(1); }
+			}
+
+			final VNSComm vnsComm = new VNSComm(dev);
+			vnsComm.requestBatching(batchSize > 0);
+			Thread acceptThread = new Thread(new Runnable() {
+				public void run()
+				{ server.accept(); }
+			});
+			acceptThread.start();
+			boolean connected = (shmFile != null 
+					? vnsComm.connectToSharedMemory(shmFile)
+					: vnsComm.connectToServer(port, "127.0.0.1"));
+			if (!connected)
+			{ System.exit(1); }
+			try
+			{ acceptThread.join(); }
+			catch (InterruptedException e) { }
+			if (!vnsComm.readFromServerExpect(Command.VNS_HW_INFO))
+			{ System.exit(1); }
+			configure(dev, routeTableFile, arpCacheFile,
+					switchConfigFile, mirrorFile);
+
+			// The device handles frames in order on its own thread, so the
+			// i-th frame it finishes handling is the i-th frame injected
+			Thread deviceThread = new Thread(new Runnable() {
+				public void run()
+				{
+					int done = 0;
+					while (done < count)
+					{
+						if (!vnsComm.readFromServer())
+						{ break; }
+						long now = System.nanoTime();
+						int received = (int)Math.min(count,
+								vnsComm.getPacketsReceived());
+						for (; done < received; done++)
+						{ handled[done] = now; }
+					}
+				}
+			}, "Device " + host);
+			deviceThread.start();
+
+			System.out.println("<-- Replaying " + count + " frames -->");
+			start = System.nanoTime();
+			int step = Math.max(batchSize, 1);
+			for (int i = 0; i < count; i += step)
+			{
+				int n = Math.min(step, count - i);
+				long now = waitUntil(start + dueTimes[i]);
+				Arrays.fill(injected, i, i + n, now);
+				if (!server.sendPackets(frames, inNames, i, n))
+				{ break; }
+			}
+			try
+			{ deviceThread.join(); }
+			catch (InterruptedException e) { }
+			end = System.nanoTime();
+
+			// Closing the device's side lets the server drain its output
+			vnsComm.disconnect();
+			server.join();
+			server.close();
+		}
+
+		report(injected, handled, frames, end - start);
+		dev.destroy();
+		System.exit(0);
+	}
+
+	/**
+	 * Wait until a point in time, parking for long waits and spinning for
+	 * short ones.
+	 * @param deadline time (from System.nanoTime) to wait for
+	 * @return the time the wait ended
+	 */
+	private static long waitUntil(long deadline)
+	{
+		long now = System.nanoTime();
+		while (now < deadline)
+		{
+			long remaining = deadline - now;
+			if (remaining > SPIN_THRESHOLD_NS)
+			{ LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NS); }
+			else
+			{ Thread.onSpinWait(); }
+			now = System.nanoTime();
+		}
+		return now;
+	}
+
+	private static void configure(Device dev, String routeTableFile,
+			String arpCacheFile, String switchConfigFile, String mirrorFile)
+	{
+		// Read port mirroring sessions
+		if (mirrorFile != null)
+		{ dev.loadPortMirror(mirrorFile); }
+		
+		if (dev instanceof Switch)
+		{
+			// Read switch settings
+			if (switchConfigFile != null)
+			{ ((Switch)dev).loadConfig(switchConfigFile); }
+			return;
+		}
+		if (!(dev instanceof Router))
+		{ return; }
+
+		// Read static route table
+		if (routeTableFile != null)
+		{ ((Router)dev).loadRouteTable(routeTableFile); }
+		else
+		{ ((Router)dev).startRip(); }
+
+		// Read static ARP cache
+		if (arpCacheFile != null)
+		{ ((Router)dev).loadArpCache(arpCacheFile); }
+	}
+
+	/**
+	 * Parse an interface specification of the form name[,mac[,ip/prefix]].
+	 * @return the interface; null if the specification is invalid
+	 */
+	private static Iface parseIface(String spec)
+	{
+		String[] parts = spec.split(",");
+		Iface iface = new Iface(parts[0]);
+		try
+		{
+			if (parts.length > 1)
+			{ iface.setMacAddress(MACAddress.valueOf(parts[1])); }
+			if (parts.length > 2)
+			{
+				String[] addr = parts[2].split("/");
+				int prefix = (addr.length > 1 ? Integer.parseInt(addr[1]) : 32);
+				iface.setIpAddress(IPv4.toIPv4Address(addr[0]));
+				iface.setSubnetMask(0 == prefix ? 0 : -1 << (32 - prefix));
+			}
+		}
+		catch (IllegalArgumentException e)
+		{ return null; }
+		return iface;
+	}
+
+	private static void report(long[] injected, long[] handled,
+			byte[][] frames, long elapsed)
+	{
+		int done = 0;
+		long bytes = 0;
+		long[] latencies = new long[handled.length];
+		for (int i = 0; i < handled.length; i++)
+		{
+			if (0 == handled[i])
+			{ continue; }
+			latencies[done++] = handled[i] - injected[i];
+			bytes += frames[i].length;
+		}
+		latencies = Arrays.copyOf(latencies, done);
+		Arrays.sort(latencies);
+
+		double seconds = elapsed / 1e9;
+		System.out.println("-------------------------------------------------");
+		System.out.println(String.format("Frames handled: %d of %d in %.3f s",
+				done, handled.length, seconds));
+		System.out.println(String.format("Throughput: %.0f pkts/s, %.2f Mbit/s",
+				done / seconds, bytes * 8 / seconds / 1e6));
+		if (done > 0)
+		{
+			System.out.println(String.format(
+					"Latency (us): p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+					percentile(latencies, 0.50), percentile(latencies, 0.90),
+					percentile(latencies, 0.99), percentile(latencies, 0.999),
+					latencies[done - 1] / 1e3));
+		}
+		System.out.println("Output\t\tPackets\t\tBytes");
+		synchronized (outCounters)
+		{
+			for (Map.Entry<String,IfaceCounter> entry : outCounters.entrySet())
+			{
+				System.out.println(String.format("%s\t\t%d\t\t%d",
+						entry.getKey(), entry.getValue().packets.get(),
+						entry.getValue().bytes.get()));
+			}
+		}
+		System.out.println("-------------------------------------------------");
+	}
+
+	/**
+	 * @return name of a shared memory file for a replay session, in the
+	 *         RAM-backed /dev/shm when available
+	 */
+	private static String sharedMemoryFile(String host)
+	{
+		File dir = new File("/dev/shm");
+		if (!dir.isDirectory())
+		{ dir = new File(System.getProperty("java.io.tmpdir")); }
+		return new File(dir, "vnet-replay-" + host + ".shm").getPath();
+	}
+
+	private static double percentile(long[] sorted, double fraction)
+	{
+		int idx = (int)Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1e3;
+	}
+
+	static void usage()
+	{
+		System.out.println("Virtual Network Capture Replay");
+		System.out.println("Replay -f capture_file -v host -i iface [-i iface ...]");
+		System.out.println("     [-m direct|loopback|shm] [-t original|afap|rate_pps]");
+		System.out.println("     [-x speedup] [-n ingress_iface] [-c count] [-b batch_size]");
+		System.out.println("     [-r routing_table] [-a arp_cache] [-s switch_config]");
+		System.out.println("     [-M mirror_file] [-R] [-l log_file] [-h]");
+		System.out.println("  iface is name[,mac[,ip/prefix]], e.g. eth1,02:00:00:00:00:01,10.0.1.1/24");
+		System.out.println("  -R has a router forward IPv4 packets without decoding them");
+		System.out.println(String.format("  defaults mode=%s timing=%s",
+				MODE_DIRECT, TIMING_AFAP));
+	}
+}
@@ -0,0 +1,134 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer and thread services shared by all devices in a process, so hosting
+ * many devices doesn't cost a timer thread per device or per route.
+ */
+public class Scheduler
+{
+	/** Number of threads running timer tasks for all devices */
+	private static final int TIMER_THREADS = 2;
+
+	/** Shared timer service; created on first use */
+	private static ScheduledExecutorService timers;
+	
+	/** Period (in milliseconds) at which the coarse clock advances */
+	public static final int CLOCK_PERIOD = 10;
+	
+	/** Coarse wall clock time (in milliseconds since the epoch); 0 until
+	 *  first used */
+	private static volatile long coarseTime = 0;
+
+	/** Thread.ofVirtual() and the Thread.Builder methods we use, when the
+	 *  runtime supports virtual threads; null otherwise */
+	private static Method ofVirtual;
+	private static Method builderName;
+	private static Method builderStart;
+
+	static
+	{
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class);
+			builderStart = builder.getMethod("start", Runnable.class);
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+		}
+		catch (ReflectiveOperationException e)
+		{ ofVirtual = null; }
+	}
+
+	/**
+	 * @return the timer service shared by all devices
+	 */
+	public static synchronized ScheduledExecutorService getTimers()
+	{
+		if (null == timers)
+		{
+			ScheduledThreadPoolExecutor executor = 
+					new ScheduledThreadPoolExecutor(TIMER_THREADS,
+					new ThreadFactory() {
+						private int count = 0;
+						public synchronized Thread newThread(Runnable r)
+						{
+							Thread thread = new Thread(r, "Timer " + (++count));
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			// Route timeouts are rescheduled on every update, so don't let
+			// cancelled tasks pile up in the queue
+			executor.setRemoveOnCancelPolicy(true);
+			timers = executor;
+		}
+		return timers;
+	}
+
+	/**
+	 * Get the time from a clock shared by all devices that advances every
+	 * CLOCK_PERIOD milliseconds, for timestamping on hot paths where
+	 * System.currentTimeMillis() is too costly and the precision isn't
+	 * needed.
+	 * @return time (in milliseconds since the epoch), at most CLOCK_PERIOD
+	 *         (plus timer delay) behind the actual time
+	 */
+	public static long currentTimeMillis()
+	{
+		long now = coarseTime;
+		if (0 == now)
+		{ now = startClock(); }
+		return now;
+	}
+	
+	private static synchronized long startClock()
+	{
+		if (0 == coarseTime)
+		{
+			coarseTime = System.currentTimeMillis();
+			getTimers().scheduleAtFixedRate(new Runnable() {
+				public void run()
+				{ coarseTime = System.currentTimeMillis(); }
+			}, CLOCK_PERIOD, CLOCK_PERIOD, TimeUnit.MILLISECONDS);
+		}
+		return coarseTime;
+	}
+	
+	/**
+	 * @return true if session threads are virtual threads
+	 */
+	public static boolean hasVirtualThreads()
+	{ return ofVirtual != null; }
+
+	/**
+	 * Start a thread for a long-running, mostly blocked task such as a VNS
+	 * session's read loop. Uses a virtual thread when the runtime supports
+	 * them, otherwise a platform thread with a small stack.
+	 * @param name name of the thread
+	 * @param task task to run
+	 * @return the started thread
+	 */
+	public static Thread startThread(String name, Runnable task)
+	{
+		if (ofVirtual != null)
+		{
+			try
+			{
+				Object builder = ofVirtual.invoke(null);
+				builder = builderName.invoke(builder, name);
+				return (Thread)builderStart.invoke(builder, task);
+			}
+			catch (ReflectiveOperationException e)
+			{ ofVirtual = null; }
+		}
+
+		Thread thread = new Thread(null, task, name, 256 * 1024);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,249 @@
+package edu.wisc.cs.sdn.vnet.emu;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Connects a device to an emulated network in place of a VNS session. Frames
+ * the device sends are handed straight to the node on the other end of the
+ * link; frames arriving for the device are queued and handled in order on a
+ * shared executor, so a device never handles two frames at once but many
+ * devices can share a few threads.
+ */
+public class EmuComm extends VNSComm implements EmuNode, Runnable
+{
+	/** Maximum frames queued for a device before arrivals are dropped */
+	public static final int QUEUE_CAPACITY = 4096;
+
+	/** Frames handled per turn, so one busy device can't starve others */
+	private static final int BATCH_SIZE = 64;
+
+	/** A frame waiting to be handled by the device */
+	private static class Arrival
+	{
+		byte[] frame;
+		Iface iface;
+	}
+
+	/** The other end of a link */
+	private static class Peer
+	{
+		EmuNode node;
+		Iface iface;
+	}
+
+	private Device device;
+
+	/** Executor on which the device handles frames */
+	private Executor executor;
+
+	/** Other end of each of the device's links; indexed by the device's
+	 *  interface indices */
+	private Peer[] peers;
+
+	private Queue<Arrival> queue;
+	private AtomicInteger queued;
+
+	/** True while the device is scheduled on or running on the executor */
+	private AtomicBoolean scheduled;
+
+	private AtomicLong handled;
+	private AtomicLong sent;
+	private AtomicLong dropped;
+	private AtomicLong errors;
+
+	public EmuComm(Device device, Executor executor)
+	{
+		super(device);
+		this.device = device;
+		this.executor = executor;
+		this.peers = new Peer[0];
+		this.queue = new ConcurrentLinkedQueue<Arrival>();
+		this.queued = new AtomicInteger();
+		this.scheduled = new AtomicBoolean(false);
+		this.handled = new AtomicLong();
+		this.sent = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.errors = new AtomicLong();
+	}
+
+	public Device getDevice()
+	{ return this.device; }
+
+	public String getName()
+	{ return this.device.getHost(); }
+
+	public Iface getInterface(String ifaceName)
+	{ return this.device.getInterface(ifaceName); }
+
+	public void attach(String ifaceName, EmuNode peer, String peerIfaceName)
+	{
+		Iface iface = this.device.getInterface(ifaceName);
+		if (null == iface)
+		{
+			System.err.println("No interface " + ifaceName + " on "
+					+ this.getName());
+			return;
+		}
+		Iface peerIface = peer.getInterface(peerIfaceName);
+		if (null == peerIface)
+		{
+			System.err.println("No interface " + peerIfaceName + " on "
+					+ peer.getName());
+			return;
+		}
+		Peer end = new Peer();
+		end.node = peer;
+		end.iface = peerIface;
+		if (iface.getIndex() >= this.peers.length)
+		{ this.peers = Arrays.copyOf(this.peers, iface.getIndex() + 1); }
+		this.peers[iface.getIndex()] = end;
+	}
+
+	/**
+	 * @return number of frames the device has handled
+	 */
+	public long getHandled()
+	{ return this.handled.get(); }
+
+	/**
+	 * @return number of frames the device has sent
+	 */
+	public long getSent()
+	{ return this.sent.get(); }
+
+	/**
+	 * @return number of frames dropped because the device's queue was full
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	/**
+	 * @return number of frames whose handling threw an exception
+	 */
+	public long getErrors()
+	{ return this.errors.get(); }
+
+	public void deliver(byte[] frame, Iface iface)
+	{
+		if (this.queued.incrementAndGet() > QUEUE_CAPACITY)
+		{
+			this.queued.decrementAndGet();
+			this.dropped.incrementAndGet();
+			return;
+		}
+		Arrival arrival = new Arrival();
+		arrival.frame = frame;
+		arrival.iface = iface;
+		this.queue.add(arrival);
+		this.schedule();
+	}
+
+	private void schedule()
+	{
+		if (this.scheduled.compareAndSet(false, true))
+		{ this.executor.execute(this); }
+	}
+
+	/**
+	 * Handle a batch of queued frames.
+	 */
+	public void run()
+	{
+		for (int i = 0; i < BATCH_SIZE; i++)
+		{
+			Arrival arrival = this.queue.poll();
+			if (null == arrival)
+			{ break; }
+			this.queued.decrementAndGet();
+
+			if (this.device.getLogFile() != null)
+			{
+				this.device.getLogFile().dump(arrival.frame, 0, 
+						arrival.frame.length);
+			}
+			try
+			{
+				this.device.receiveFrame(arrival.frame, 0, 
+						arrival.frame.length, arrival.iface);
+			}
+			catch (RuntimeException e)
+			{
+				this.errors.incrementAndGet();
+				e.printStackTrace();
+			}
+			this.handled.incrementAndGet();
+		}
+
+		// Let the next arrival reschedule us, unless one raced in already
+		this.scheduled.set(false);
+		if (!this.queue.isEmpty())
+		{ this.schedule(); }
+	}
+
+	private Peer getPeer(Iface iface)
+	{
+		int index = iface.getIndex();
+		if (index < 0 || index >= this.peers.length)
+		{ return null; }
+		return this.peers[index];
+	}
+
+	public boolean sendPacket(Ethernet etherPacket, Iface iface)
+	{
+		Peer peer = this.getPeer(iface);
+		if (null == peer)
+		{ return false; }
+
+		byte[] frame = etherPacket.serialize();
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, 0, frame.length); }
+		peer.node.deliver(frame, peer.iface);
+		this.sent.incrementAndGet();
+		return true;
+	}
+
+	public boolean sendFrame(byte[] frame, int offset, int length,
+			Iface[] ifaces, int count)
+	{
+		boolean success = true;
+		for (int i = 0; i < count; i++)
+		{ success &= this.sendFrame(frame, offset, length, ifaces[i]); }
+		return success;
+	}
+
+	public boolean sendFrame(byte[] frame, int offset, int length,
+			Iface iface)
+	{
+		Peer peer = this.getPeer(iface);
+		if (null == peer)
+		{ return false; }
+
+		// The frame's buffer is reused once we return, so the peer gets a copy
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, offset, length); }
+		peer.node.deliver(Arrays.copyOfRange(frame, offset, offset + length),
+				peer.iface);
+		this.sent.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Send a frame; delivering to a peer never waits, since a full queue
+	 * drops the frame.
+	 */
+	public boolean offerFrame(byte[] frame, int offset, int length,
+			Iface iface)
+	{ return this.sendFrame(frame, offset, length, iface); }
+}
@@ -0,0 +1,188 @@
+package edu.wisc.cs.sdn.vnet.emu;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * An end host in an emulated network. It answers ARP requests for its own
+ * address, sends timestamped UDP probes, and records the latency of probes
+ * it receives.
+ */
+public class EmuHost implements EmuNode
+{
+	/** UDP port (discard) used for probes */
+	public static final short PROBE_PORT = 9;
+
+	private String name;
+
+	/** The host's only interface */
+	private Iface iface;
+
+	/** Default gateway; 0 if none */
+	private int gateway;
+
+	/** Static IP to MAC mappings for the whole network */
+	private Map<Integer,MACAddress> arpTable;
+
+	private EmuNode peer;
+	private Iface peerIface;
+
+	/** Latencies (in nanoseconds) of probes received */
+	private long[] latencies;
+	private int received;
+
+	public EmuHost(String name, Iface iface, int gateway,
+			Map<Integer,MACAddress> arpTable)
+	{
+		this.name = name;
+		this.iface = iface;
+		this.gateway = gateway;
+		this.arpTable = arpTable;
+		this.latencies = new long[64];
+		this.received = 0;
+	}
+
+	public String getName()
+	{ return this.name; }
+
+	public Iface getInterface()
+	{ return this.iface; }
+
+	public Iface getInterface(String ifaceName)
+	{ return (this.iface.getName().equals(ifaceName) ? this.iface : null); }
+
+	public void attach(String ifaceName, EmuNode peer, String peerIfaceName)
+	{
+		Iface peerIface = peer.getInterface(peerIfaceName);
+		if (null == peerIface)
+		{
+			System.err.println("No interface " + peerIfaceName + " on "
+					+ peer.getName());
+			return;
+		}
+		this.peer = peer;
+		this.peerIface = peerIface;
+	}
+
+	/**
+	 * Send a timestamped UDP probe to another host.
+	 * @param dstIp IP address of the destination host
+	 * @return true if the probe was sent, otherwise false
+	 */
+	public boolean sendProbe(int dstIp)
+	{
+		if (null == this.peer)
+		{ return false; }
+
+		// Send directly to hosts on our subnet, otherwise via the gateway
+		int nextHop = dstIp;
+		int mask = this.iface.getSubnetMask();
+		if ((dstIp & mask) != (this.iface.getIpAddress() & mask))
+		{ nextHop = this.gateway; }
+		MACAddress dstMac = this.arpTable.get(nextHop);
+		if (null == dstMac)
+		{ return false; }
+
+		Ethernet etherPacket = new Ethernet();
+		IPv4 ipPacket = new IPv4();
+		UDP udpPacket = new UDP();
+		etherPacket.setDestinationMACAddress(dstMac.toBytes());
+		etherPacket.setSourceMACAddress(this.iface.getMacAddress().toBytes());
+		etherPacket.setEtherType(Ethernet.TYPE_IPv4);
+		ipPacket.setSourceAddress(this.iface.getIpAddress());
+		ipPacket.setDestinationAddress(dstIp);
+		ipPacket.setProtocol(IPv4.PROTOCOL_UDP);
+		ipPacket.setTtl((byte)64);
+		udpPacket.setSourcePort(PROBE_PORT);
+		udpPacket.setDestinationPort(PROBE_PORT);
+		byte[] payload = ByteBuffer.allocate(8).putLong(System.nanoTime())
+				.array();
+		udpPacket.setPayload(new Data(payload));
+		ipPacket.setPayload(udpPacket);
+		etherPacket.setPayload(ipPacket);
+
+		this.peer.deliver(etherPacket.serialize(), this.peerIface);
+		return true;
+	}
+
+	public void deliver(byte[] frame, Iface iface)
+	{
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(frame, 0, frame.length);
+
+		if (etherPacket.getEtherType() == Ethernet.TYPE_ARP)
+		{
+			this.handleArp(etherPacket);
+			return;
+		}
+		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return; }
+
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		if (ipPacket.getDestinationAddress() != this.iface.getIpAddress()
+				|| ipPacket.getProtocol() != IPv4.PROTOCOL_UDP)
+		{ return; }
+		UDP udpPacket = (UDP)ipPacket.getPayload();
+		if (udpPacket.getDestinationPort() != PROBE_PORT)
+		{ return; }
+		byte[] payload = udpPacket.getPayload().serialize();
+		if (payload.length < 8)
+		{ return; }
+		this.record(System.nanoTime() - ByteBuffer.wrap(payload).getLong());
+	}
+
+	private void handleArp(Ethernet etherPacket)
+	{
+		ARP arpPacket = (ARP)etherPacket.getPayload();
+		if (arpPacket.getOpCode() != ARP.OP_REQUEST
+				|| IPv4.toIPv4Address(arpPacket.getTargetProtocolAddress())
+					!= this.iface.getIpAddress()
+				|| null == this.peer)
+		{ return; }
+
+		byte[] mac = this.iface.getMacAddress().toBytes();
+		ARP reply = new ARP();
+		reply.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		reply.setProtocolType(ARP.PROTO_TYPE_IP);
+		reply.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		reply.setProtocolAddressLength((byte)4);
+		reply.setOpCode(ARP.OP_REPLY);
+		reply.setSenderHardwareAddress(mac);
+		reply.setSenderProtocolAddress(this.iface.getIpAddress());
+		reply.setTargetHardwareAddress(arpPacket.getSenderHardwareAddress());
+		reply.setTargetProtocolAddress(arpPacket.getSenderProtocolAddress());
+
+		Ethernet replyPacket = new Ethernet();
+		replyPacket.setDestinationMACAddress(etherPacket.getSourceMACAddress());
+		replyPacket.setSourceMACAddress(mac);
+		replyPacket.setEtherType(Ethernet.TYPE_ARP);
+		replyPacket.setPayload(reply);
+		this.peer.deliver(replyPacket.serialize(), this.peerIface);
+	}
+
+	private synchronized void record(long latency)
+	{
+		if (this.received == this.latencies.length)
+		{
+			this.latencies = Arrays.copyOf(this.latencies,
+					this.latencies.length * 2);
+		}
+		this.latencies[this.received++] = latency;
+	}
+
+	/**
+	 * @return latencies (in nanoseconds) of the probes received so far
+	 */
+	public synchronized long[] getLatencies()
+	{ return Arrays.copyOf(this.latencies, this.received); }
+}
@@ -0,0 +1,38 @@
+package edu.wisc.cs.sdn.vnet.emu;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A node in an emulated network that can exchange frames with the nodes
+ * linked to its interfaces.
+ */
+public interface EmuNode
+{
+	/**
+	 * @return name of the node
+	 */
+	public String getName();
+
+	/**
+	 * @param ifaceName name of one of the node's interfaces
+	 * @return the interface; null if the node has none by that name
+	 */
+	public Iface getInterface(String ifaceName);
+
+	/**
+	 * Connect one of the node's interfaces to an interface on another node,
+	 * which must already have been added to that node.
+	 * @param ifaceName name of the local interface
+	 * @param peer node on the other end of the link
+	 * @param peerIfaceName name of the interface on the other node
+	 */
+	public void attach(String ifaceName, EmuNode peer, String peerIfaceName);
+
+	/**
+	 * Deliver a frame arriving on one of the node's interfaces. Called from
+	 * the sending node's thread, so it must not block.
+	 * @param frame the Ethernet frame
+	 * @param iface interface on which the frame arrives
+	 */
+	public void deliver(byte[] frame, Iface iface);
+}
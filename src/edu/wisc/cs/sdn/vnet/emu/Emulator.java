@@ -0,0 +1,492 @@
+package edu.wisc.cs.sdn.vnet.emu;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.SpanningTree;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+
+/**
+ * Runs every router and switch of a topology in a single JVM, with their
+ * interfaces linked through in-memory queues instead of VNS sessions.
+ * <p>
+ * Routers run RIP and the emulator reports how long it takes until every
+ * router has a route to every subnet. Hosts then exchange timestamped UDP
+ * probes to measure end-to-end delivery and latency.
+ */
+public class Emulator
+{
+	private static final int DEFAULT_CONVERGENCE_TIMEOUT = 120;
+	private static final int DEFAULT_PROBES = 10;
+
+	/** Time (in milliseconds) without new probe arrivals before giving up */
+	private static final long PROBE_IDLE_TIMEOUT = 2000;
+
+	private Topology topo;
+	private ExecutorService executor;
+	private String logDir;
+
+	/** Emulated devices, in topology order */
+	private List<EmuComm> devices;
+
+	/** Emulated hosts, in topology order */
+	private List<EmuHost> hosts;
+
+	/** Static IP to MAC mappings for every host and router interface */
+	private Map<Integer,MACAddress> arpTable;
+
+	public Emulator(Topology topo, int workers, String logDir)
+	{
+		this.topo = topo;
+		this.logDir = logDir;
+		this.devices = new ArrayList<EmuComm>();
+		this.hosts = new ArrayList<EmuHost>();
+		this.arpTable = new HashMap<Integer,MACAddress>();
+		this.executor = Executors.newFixedThreadPool(workers,
+				new ThreadFactory() {
+					private int count = 0;
+					public synchronized Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, "Emulator " + (++count));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Instantiate every node in the topology and link their interfaces.
+	 * @return true if the network was built, otherwise false
+	 */
+	public boolean build()
+	{
+		Map<String,EmuNode> nodes = new HashMap<String,EmuNode>();
+		Map<String,Integer> ifaceCounts = new HashMap<String,Integer>();
+		List<Topology.Node> topoNodes = this.topo.getNodes();
+		for (int i = 0; i < topoNodes.size(); i++)
+		{
+			Topology.Node node = topoNodes.get(i);
+			EmuNode emuNode;
+			if (node.kind.equals(Topology.HOST))
+			{
+				Iface iface = new Iface("eth0");
+				iface.setMacAddress(mac(i, 0));
+				if (!setAddress(iface, node.addresses.get(0)))
+				{ return false; }
+				int gateway = (null == node.gateway ? 0
+						: IPv4.toIPv4Address(node.gateway));
+				EmuHost host = new EmuHost(node.name, iface, gateway,
+						this.arpTable);
+				this.hosts.add(host);
+				this.arpTable.put(iface.getIpAddress(), iface.getMacAddress());
+				emuNode = host;
+			}
+			else
+			{
+				DumpFile dump = null;
+				if (this.logDir != null)
+				{
+					dump = DumpFile.open(new File(this.logDir,
+							node.name + ".pcap").getPath());
+					if (null == dump)
+					{ return false; }
+				}
+				Device dev;
+				if (node.kind.equals(Topology.ROUTER))
+				{ dev = new Router(node.name, dump); }
+				else
+				{ dev = new Switch(node.name, dump); }
+				EmuComm comm = new EmuComm(dev, this.executor);
+				this.devices.add(comm);
+				emuNode = comm;
+			}
+			nodes.put(node.name, emuNode);
+			ifaceCounts.put(node.name, 0);
+		}
+
+		// Interfaces are numbered in link order, as Mininet does
+		for (Topology.Link link : this.topo.getLinks())
+		{
+			String ifaceA = this.addInterface(link.nameA, nodes, ifaceCounts);
+			String ifaceB = this.addInterface(link.nameB, nodes, ifaceCounts);
+			if (null == ifaceA || null == ifaceB)
+			{ return false; }
+			EmuNode nodeA = nodes.get(link.nameA);
+			EmuNode nodeB = nodes.get(link.nameB);
+			nodeA.attach(ifaceA, nodeB, ifaceB);
+			nodeB.attach(ifaceB, nodeA, ifaceA);
+		}
+
+		// Give routers a static ARP cache, like run_mininet.py -a
+		for (EmuComm comm : this.devices)
+		{
+			if (!(comm.getDevice() instanceof Router))
+			{ continue; }
+			Router router = (Router)comm.getDevice();
+			for (Map.Entry<Integer,MACAddress> entry : this.arpTable.entrySet())
+			{ router.getArpCache().insertStatic(entry.getValue(), entry.getKey()); }
+		}
+		return true;
+	}
+
+	private String addInterface(String name, Map<String,EmuNode> nodes,
+			Map<String,Integer> ifaceCounts)
+	{
+		Topology.Node node = this.topo.getNode(name);
+		int count = ifaceCounts.get(name) + 1;
+		ifaceCounts.put(name, count);
+		EmuNode emuNode = nodes.get(name);
+
+		if (emuNode instanceof EmuHost)
+		{
+			if (count > 1)
+			{
+				System.err.println("Host " + name + " has more than one link");
+				return null;
+			}
+			return "eth0";
+		}
+
+		Device dev = ((EmuComm)emuNode).getDevice();
+		Iface iface = dev.addInterface("eth" + count);
+		if (node.kind.equals(Topology.ROUTER))
+		{
+			if (count > node.addresses.size())
+			{
+				System.err.println("Router " + name
+						+ " has more links than addresses");
+				return null;
+			}
+			iface.setMacAddress(mac(this.topo.getNodes().indexOf(node), count));
+			if (!setAddress(iface, node.addresses.get(count - 1)))
+			{ return null; }
+			this.arpTable.put(iface.getIpAddress(), iface.getMacAddress());
+		}
+		return iface.getName();
+	}
+
+	private static MACAddress mac(int nodeIdx, int ifaceIdx)
+	{
+		return MACAddress.valueOf(0x020000000000L | ((long)nodeIdx << 16)
+				| ifaceIdx);
+	}
+
+	private static boolean setAddress(Iface iface, String address)
+	{
+		String[] parts = address.split("/");
+		int ip = IPv4.toIPv4Address(parts[0]);
+		int prefix = Integer.parseInt(parts[1]);
+		if (0 == ip || prefix < 0 || prefix > 32)
+		{
+			System.err.println("Invalid address " + address);
+			return false;
+		}
+		iface.setIpAddress(ip);
+		iface.setSubnetMask(0 == prefix ? 0 : -1 << (32 - prefix));
+		return true;
+	}
+
+	/**
+	 * Start RIP on every router and wait until every router has a route to
+	 * every router subnet and every switch's spanning tree, if enabled, has
+	 * settled.
+	 * @param timeout maximum time (in milliseconds) to wait
+	 * @return time (in milliseconds) until convergence; -1 if the network
+	 *         did not converge before the timeout
+	 */
+	public long converge(long timeout)
+	{
+		List<Router> routers = new ArrayList<Router>();
+		List<Iface> subnets = new ArrayList<Iface>();
+		List<SpanningTree> spanningTrees = new ArrayList<SpanningTree>();
+		for (EmuComm comm : this.devices)
+		{
+			if (comm.getDevice() instanceof Router)
+			{
+				routers.add((Router)comm.getDevice());
+				subnets.addAll(comm.getDevice().getInterfaces().values());
+			}
+			else if (comm.getDevice() instanceof Switch)
+			{
+				Switch sw = (Switch)comm.getDevice();
+				if (sw.getSpanningTree() != null)
+				{ spanningTrees.add(sw.getSpanningTree()); }
+			}
+		}
+		if (routers.isEmpty() && spanningTrees.isEmpty())
+		{ return 0; }
+
+		long start = System.currentTimeMillis();
+		for (Router router : routers)
+		{ router.startRip(); }
+
+		while (System.currentTimeMillis() - start < timeout)
+		{
+			boolean converged = true;
+			for (Router router : routers)
+			{
+				for (Iface subnet : subnets)
+				{
+					int mask = subnet.getSubnetMask();
+					if (null == router.getRouteTable().find(
+							subnet.getIpAddress() & mask, mask))
+					{
+						converged = false;
+						break;
+					}
+				}
+				if (!converged)
+				{ break; }
+			}
+			for (SpanningTree spanningTree : spanningTrees)
+			{ converged &= spanningTree.isStable(); }
+			if (converged)
+			{ return System.currentTimeMillis() - start; }
+
+			try
+			{ Thread.sleep(10); }
+			catch (InterruptedException e)
+			{ break; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Send probes between pairs of hosts and wait for them to arrive.
+	 * @param probes number of probes to send per pair
+	 * @param allPairs true to probe every ordered pair of hosts; otherwise
+	 *        each host probes the host halfway around the host list
+	 * @return number of probes sent
+	 */
+	public int probe(int probes, boolean allPairs)
+	{
+		int n = this.hosts.size();
+		if (n < 2)
+		{ return 0; }
+
+		int sent = 0;
+		for (int round = 0; round < probes; round++)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				for (int j = 0; j < n; j++)
+				{
+					if (i == j || (!allPairs && j != (i + n / 2) % n))
+					{ continue; }
+					int dstIp = this.hosts.get(j).getInterface().getIpAddress();
+					if (this.hosts.get(i).sendProbe(dstIp))
+					{ sent++; }
+				}
+			}
+			try
+			{ Thread.sleep(1); }
+			catch (InterruptedException e)
+			{ break; }
+		}
+
+		// Wait until every probe arrived or arrivals stop
+		int received = 0;
+		long lastChange = System.currentTimeMillis();
+		while (received < sent
+				&& System.currentTimeMillis() - lastChange < PROBE_IDLE_TIMEOUT)
+		{
+			try
+			{ Thread.sleep(10); }
+			catch (InterruptedException e)
+			{ break; }
+			int now = this.getProbeLatencies().length;
+			if (now != received)
+			{
+				received = now;
+				lastChange = System.currentTimeMillis();
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * @return latencies (in nanoseconds) of all probes received, sorted
+	 */
+	public long[] getProbeLatencies()
+	{
+		long[] all = new long[0];
+		for (EmuHost host : this.hosts)
+		{
+			long[] latencies = host.getLatencies();
+			int offset = all.length;
+			all = Arrays.copyOf(all, offset + latencies.length);
+			System.arraycopy(latencies, 0, all, offset, latencies.length);
+		}
+		Arrays.sort(all);
+		return all;
+	}
+
+	/**
+	 * @return total number of frames handled by all devices
+	 */
+	public long getFramesHandled()
+	{
+		long handled = 0;
+		for (EmuComm comm : this.devices)
+		{ handled += comm.getHandled(); }
+		return handled;
+	}
+
+	public List<EmuComm> getDevices()
+	{ return this.devices; }
+
+	public static void main(String[] args)
+	{
+		String topoSpec = null;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int convergenceTimeout = DEFAULT_CONVERGENCE_TIMEOUT;
+		int probes = DEFAULT_PROBES;
+		boolean allPairs = false;
+		boolean quiet = false;
+		String logDir = null;
+		String switchConfigFile = null;
+		boolean rawForwarding = false;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-t"))
+			{ topoSpec = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-c"))
+			{ convergenceTimeout = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-p"))
+			{ probes = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-A"))
+			{ allPairs = true; }
+			else if (arg.equals("-q"))
+			{ quiet = true; }
+			else if (arg.equals("-l"))
+			{ logDir = args[++i]; }
+			else if (arg.equals("-s"))
+			{ switchConfigFile = args[++i]; }
+			else if (arg.equals("-R"))
+			{ rawForwarding = true; }
+		}
+
+		if (null == topoSpec || workers < 1)
+		{
+			usage();
+			return;
+		}
+
+		Topology topo;
+		if (new File(topoSpec).exists())
+		{ topo = Topology.load(topoSpec); }
+		else
+		{ topo = Topology.generate(topoSpec); }
+		if (null == topo)
+		{
+			System.err.println("Error loading topology " + topoSpec);
+			return;
+		}
+
+		// Devices log every packet to stdout; keep only our own report
+		PrintStream report = System.out;
+		if (quiet)
+		{ System.setOut(new PrintStream(OutputStream.nullOutputStream())); }
+
+		Emulator emulator = new Emulator(topo, workers, logDir);
+		if (!emulator.build())
+		{ System.exit(1); }
+		if (switchConfigFile != null)
+		{
+			for (EmuComm comm : emulator.getDevices())
+			{
+				if (comm.getDevice() instanceof Switch)
+				{ ((Switch)comm.getDevice()).loadConfig(switchConfigFile); }
+			}
+		}
+		if (rawForwarding)
+		{
+			for (EmuComm comm : emulator.getDevices())
+			{
+				if (comm.getDevice() instanceof Router)
+				{ ((Router)comm.getDevice()).setRawForwarding(true); }
+			}
+		}
+		report.println(String.format("Emulating %d devices and %d hosts on %d threads",
+				emulator.getDevices().size(), emulator.hosts.size(), workers));
+
+		long convergence = emulator.converge(convergenceTimeout * 1000L);
+		if (convergence < 0)
+		{
+			report.println(String.format("Did not converge within %d s",
+					convergenceTimeout));
+		}
+		else
+		{ report.println(String.format("Converged in %d ms", convergence)); }
+
+		long handledBefore = emulator.getFramesHandled();
+		long start = System.nanoTime();
+		int sent = emulator.probe(probes, allPairs);
+		long elapsed = System.nanoTime() - start;
+		long handled = emulator.getFramesHandled() - handledBefore;
+
+		long[] latencies = emulator.getProbeLatencies();
+		report.println("-------------------------------------------------");
+		report.println(String.format("Probes delivered: %d of %d",
+				latencies.length, sent));
+		if (latencies.length > 0)
+		{
+			report.println(String.format(
+					"Probe latency (us): p50 %.1f  p99 %.1f  max %.1f",
+					latencies[latencies.length / 2] / 1e3,
+					latencies[(int)Math.ceil(latencies.length * 0.99) - 1] / 1e3,
+					latencies[latencies.length - 1] / 1e3));
+		}
+		long dropped = 0;
+		long errors = 0;
+		for (EmuComm comm : emulator.getDevices())
+		{
+			dropped += comm.getDropped();
+			errors += comm.getErrors();
+		}
+		report.println(String.format(
+				"Device frames handled: %d (%.0f frames/s during probes)",
+				emulator.getFramesHandled(), handled / (elapsed / 1e9)));
+		report.println(String.format("Queue drops: %d  Handler errors: %d",
+				dropped, errors));
+		report.println("-------------------------------------------------");
+		System.exit(0);
+	}
+
+	static void usage()
+	{
+		System.out.println("Virtual Network Topology Emulator");
+		System.out.println("Emulator -t topo_file|linear:N|ring:N [-w workers]");
+		System.out.println("     [-c convergence_timeout_s] [-p probes_per_pair] [-A]");
+		System.out.println("     [-s switch_config] [-R] [-l log_dir] [-q] [-h]");
+		System.out.println(String.format("  defaults workers=%d timeout=%d probes=%d",
+				Runtime.getRuntime().availableProcessors(),
+				DEFAULT_CONVERGENCE_TIMEOUT, DEFAULT_PROBES));
+	}
+}
@@ -0,0 +1,227 @@
+package edu.wisc.cs.sdn.vnet.emu;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A virtual network topology, as described by the files in the topos
+ * directory: hosts, switches and routers, and the links between them.
+ */
+public class Topology
+{
+	public static final String HOST = "host";
+	public static final String SWITCH = "switch";
+	public static final String ROUTER = "router";
+
+	/** A host, switch or router in the topology */
+	public static class Node
+	{
+		/** Name of the node (e.g., h1, s1, r1) */
+		public String name;
+
+		/** One of HOST, SWITCH or ROUTER */
+		public String kind;
+
+		/** Addresses (ip/prefix) of the node's interfaces, in link order */
+		public List<String> addresses = new ArrayList<String>();
+
+		/** Default gateway of a host; null if none */
+		public String gateway;
+	}
+
+	/** A link between two nodes */
+	public static class Link
+	{
+		public String nameA;
+		public String nameB;
+	}
+
+	/** Nodes in the order they were declared */
+	private List<Node> nodes;
+
+	/** Maps node names to nodes */
+	private Map<String,Node> nodesByName;
+
+	/** Links in the order they were declared */
+	private List<Link> links;
+
+	public Topology()
+	{
+		this.nodes = new ArrayList<Node>();
+		this.nodesByName = new HashMap<String,Node>();
+		this.links = new ArrayList<Link>();
+	}
+
+	public List<Node> getNodes()
+	{ return this.nodes; }
+
+	public Node getNode(String name)
+	{ return this.nodesByName.get(name); }
+
+	public List<Link> getLinks()
+	{ return this.links; }
+
+	private Node addNode(String name, String kind)
+	{
+		Node node = new Node();
+		node.name = name;
+		node.kind = kind;
+		this.nodes.add(node);
+		this.nodesByName.put(name, node);
+		return node;
+	}
+
+	private void addLink(String nameA, String nameB)
+	{
+		Link link = new Link();
+		link.nameA = nameA;
+		link.nameB = nameB;
+		this.links.add(link);
+	}
+
+	/**
+	 * Load a topology from a file.
+	 * @param filename name of the topology file
+	 * @return the topology; null if the file could not be read or is invalid
+	 */
+	public static Topology load(String filename)
+	{
+		// Open the file
+		BufferedReader reader;
+		try
+		{ reader = new BufferedReader(new FileReader(filename)); }
+		catch (FileNotFoundException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		Topology topo = new Topology();
+		while (true)
+		{
+			String line = null;
+			try
+			{ line = reader.readLine(); }
+			catch (IOException e)
+			{
+				System.err.println(e.toString());
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+
+			// Stop if we have reached the end of the file
+			if (null == line)
+			{ break; }
+
+			String[] parts = line.trim().split("\\s+");
+			if (0 == parts[0].length() || parts[0].startsWith("#"))
+			{ continue; }
+
+			boolean valid;
+			if (parts[0].equals(HOST))
+			{
+				valid = (4 == parts.length && parts[2].contains("/"));
+				if (valid)
+				{
+					Node node = topo.addNode(parts[1], HOST);
+					node.addresses.add(parts[2]);
+					node.gateway = (parts[3].equals("-") ? null : parts[3]);
+				}
+			}
+			else if (parts[0].equals(SWITCH))
+			{
+				valid = (2 == parts.length);
+				if (valid)
+				{ topo.addNode(parts[1], SWITCH); }
+			}
+			else if (parts[0].equals(ROUTER))
+			{
+				valid = (parts.length >= 3);
+				if (valid)
+				{
+					Node node = topo.addNode(parts[1], ROUTER);
+					for (int i = 2; i < parts.length; i++)
+					{ node.addresses.add(parts[i]); }
+				}
+			}
+			else if (parts[0].equals("link"))
+			{
+				valid = (3 == parts.length
+						&& topo.getNode(parts[1]) != null
+						&& topo.getNode(parts[2]) != null);
+				if (valid)
+				{ topo.addLink(parts[1], parts[2]); }
+			}
+			else
+			{ valid = false; }
+
+			if (!valid)
+			{
+				System.err.println("Error in topology configuration line: "
+						+ line);
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+		}
+
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+		return topo;
+	}
+
+	/**
+	 * Generate a chain or ring of routers with one host attached to each.
+	 * Router i's host subnet is 10.x.y.0/24 and its link towards router i+1
+	 * is 172.x.y.0/24, where x.y encodes i.
+	 * @param spec "linear:N" or "ring:N"
+	 * @return the topology; null if the specification is invalid
+	 */
+	public static Topology generate(String spec)
+	{
+		String[] parts = spec.split(":");
+		if (parts.length != 2
+				|| (!parts[0].equals("linear") && !parts[0].equals("ring")))
+		{ return null; }
+		int count;
+		try
+		{ count = Integer.parseInt(parts[1]); }
+		catch (NumberFormatException e)
+		{ return null; }
+		boolean ring = parts[0].equals("ring");
+		if (count < 1 || count > 4000 || (ring && count < 3))
+		{ return null; }
+
+		Topology topo = new Topology();
+		for (int i = 1; i <= count; i++)
+		{
+			String lan = subnet(10, i);
+			Node host = topo.addNode("h" + i, HOST);
+			host.addresses.add(lan + ".100/24");
+			host.gateway = lan + ".1";
+			topo.addNode("r" + i, ROUTER).addresses.add(lan + ".1/24");
+			topo.addLink("r" + i, "h" + i);
+		}
+
+		// Link i joins router i and router i+1 (router 1 for the last link
+		// of a ring); interfaces are numbered in link order
+		int links = (ring ? count : count - 1);
+		for (int i = 1; i <= links; i++)
+		{
+			int next = (i == count ? 1 : i + 1);
+			String net = subnet(172, i);
+			topo.getNode("r" + i).addresses.add(net + ".1/24");
+			topo.getNode("r" + next).addresses.add(net + ".2/24");
+			topo.addLink("r" + i, "r" + next);
+		}
+		return topo;
+	}
+
+	private static String subnet(int first, int i)
+	{ return String.format("%d.%d.%d", first, i >> 8, i & 0xff); }
+}
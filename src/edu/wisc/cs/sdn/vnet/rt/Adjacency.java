@@ -0,0 +1,93 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.Ethernet;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A next hop reached out an interface, with the Ethernet header that IPv4
+ * packets forwarded to it get, prebuilt, so forwarding a packet only copies
+ * the header onto the frame. The header is rebuilt when the next hop's MAC
+ * address changes.
+ */
+public class Adjacency
+{
+	/** Length of the prebuilt header */
+	public static final int HEADER_LENGTH = 14;
+
+	/** A header and the next hop MAC address it was built for; replaced,
+	 *  not modified, when rebuilt */
+	private static class Rewrite
+	{
+		final long mac;
+		final byte[] header;
+
+		Rewrite(long mac, byte[] header)
+		{
+			this.mac = mac;
+			this.header = header;
+		}
+	}
+
+	/** IP address of the next hop */
+	private final int nextHop;
+
+	/** Interface out which the next hop is reached */
+	private final Iface iface;
+
+	private volatile Rewrite rewrite;
+
+	/** Time (in milliseconds) the adjacency was last looked up in its
+	 *  table */
+	volatile long used;
+
+	public Adjacency(int nextHop, Iface iface)
+	{
+		this.nextHop = nextHop;
+		this.iface = iface;
+	}
+
+	/**
+	 * @return IP address of the next hop
+	 */
+	public int getNextHop()
+	{ return this.nextHop; }
+
+	/**
+	 * @return interface out which the next hop is reached
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * Get the header for packets to the next hop.
+	 * @param mac the next hop's MAC address, as returned by
+	 *        MACAddress.toLong()
+	 * @return the header, which must not be modified
+	 */
+	public byte[] getHeader(long mac)
+	{
+		Rewrite rewrite = this.rewrite;
+		if (null == rewrite || rewrite.mac != mac)
+		{
+			rewrite = new Rewrite(mac, this.buildHeader(mac));
+			this.rewrite = rewrite;
+		}
+		return rewrite.header;
+	}
+
+	private byte[] buildHeader(long mac)
+	{
+		byte[] header = new byte[HEADER_LENGTH];
+		byte[] srcMac = this.iface.getMacAddress().toBytes();
+		for (int i = 0; i < Ethernet.DATALAYER_ADDRESS_LENGTH; i++)
+		{
+			header[i] = (byte)(mac >>> (8 * (Ethernet.DATALAYER_ADDRESS_LENGTH
+					- 1 - i)));
+		}
+		System.arraycopy(srcMac, 0, header, Ethernet.DATALAYER_ADDRESS_LENGTH,
+				Ethernet.DATALAYER_ADDRESS_LENGTH);
+		header[12] = (byte)(Ethernet.TYPE_IPv4 >>> 8);
+		header[13] = (byte)Ethernet.TYPE_IPv4;
+		return header;
+	}
+}
@@ -0,0 +1,89 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Scheduler;
+
+/**
+ * A router's adjacencies, keyed by next hop IP address and interface.
+ * Adjacencies are created when first looked up, and removed once they
+ * haven't been looked up for a while. Route entries keep a reference to
+ * the adjacency of their gateway, so most packets don't look up the table
+ * at all.
+ */
+public class AdjacencyTable implements Runnable
+{
+	/** Time (in milliseconds) after which an adjacency that hasn't been
+	 *  looked up is removed */
+	public static final int TIMEOUT = 60 * 1000;
+
+	/** Interval (in milliseconds) between sweeps for unused adjacencies */
+	private static final int SWEEP_PERIOD = 10 * 1000;
+
+	/** Adjacencies, keyed by interface index and next hop IP address */
+	private Map<Long,Adjacency> adjacencies;
+
+	/** Task, run on the shared timers, for removing unused adjacencies */
+	private ScheduledFuture<?> timeoutTask;
+
+	public AdjacencyTable()
+	{
+		this.adjacencies = new ConcurrentHashMap<Long,Adjacency>();
+		this.timeoutTask = Scheduler.getTimers().scheduleAtFixedRate(this,
+				SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop removing unused adjacencies.
+	 */
+	public void destroy()
+	{ this.timeoutTask.cancel(false); }
+
+	/**
+	 * @return number of adjacencies in the table
+	 */
+	public int getSize()
+	{ return this.adjacencies.size(); }
+
+	/**
+	 * Get the adjacency for a next hop, creating it if needed.
+	 * @param nextHop IP address of the next hop
+	 * @param iface interface out which the next hop is reached
+	 * @return the adjacency
+	 */
+	public Adjacency get(int nextHop, Iface iface)
+	{
+		Long key = ((long)iface.getIndex() << 32) | (nextHop & 0xffffffffL);
+		Adjacency adjacency = this.adjacencies.get(key);
+		if (null == adjacency)
+		{
+			adjacency = new Adjacency(nextHop, iface);
+			Adjacency existing = this.adjacencies.putIfAbsent(key, adjacency);
+			if (existing != null)
+			{ adjacency = existing; }
+		}
+		adjacency.used = Scheduler.currentTimeMillis();
+		return adjacency;
+	}
+
+	/**
+	 * Every sweep period: remove adjacencies that haven't been looked up
+	 * within the timeout. Route entries that still refer to one keep using
+	 * it.
+	 */
+	public void run()
+	{
+		long now = Scheduler.currentTimeMillis();
+		Iterator<Adjacency> it = this.adjacencies.values().iterator();
+		while (it.hasNext())
+		{
+			if (now - it.next().used > TIMEOUT)
+			{ it.remove(); }
+		}
+	}
+}
@@ -4,44 +4,314 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
+import edu.wisc.cs.sdn.vnet.LongHashTable;
+import edu.wisc.cs.sdn.vnet.Scheduler;
 
 /**
- * A cache of MAC address to IP address mappings.
+ * A cache of MAC address to IP address mappings. IP addresses are kept in
+ * a LongHashTable, with each entry's MAC address and expiry time in
+ * parallel arrays. Writers bump a per-slot version before and after
+ * changing an entry; readers read it again if the version was odd or
+ * changed meanwhile, then check the address again, so readers see a
+ * consistent entry without locking or boxing.
+ * <p>
+ * Entries loaded from a file or otherwise configured never expire; learned
+ * entries expire after a timeout. A lookup of a learned entry close to
+ * expiring tells the caller, once, to refresh it, so neighbors in use are
+ * re-resolved before they expire. Addresses that could not be resolved
+ * are cached briefly as negative entries, so packets to them are dropped
+ * without sending more requests. A background task reclaims expired
+ * entries.
  * @author Aaron Gember-Jacobson
  */
-public class ArpCache {
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+public class ArpCache implements Runnable
+{
+	/** Timeout (in milliseconds) for learned entries */
+	public static final int TIMEOUT = 60 * 1000;
+
+	/** Time (in milliseconds) before a learned entry expires during which
+	 *  lookups ask for it to be refreshed */
+	public static final int REFRESH_TIME = 5 * 1000;
+
+	/** Timeout (in milliseconds) for negative entries */
+	public static final int NEGATIVE_TIMEOUT = 5 * 1000;
+
+	/** Returned by lookupMac for addresses not in the cache and for
+	 *  addresses that could not be resolved */
+	public static final long MISSING = -1;
+	public static final long UNREACHABLE = -2;
+
+	/** Set in a MAC address returned by lookupMac when the entry should be
+	 *  refreshed */
+	public static final long REFRESH = 1L << 48;
+
+	/** Bits of a value returned by lookupMac holding the MAC address */
+	public static final long MAC_MASK = REFRESH - 1;
+
+	/** Interval (in milliseconds) between sweeps for expired entries */
+	private static final int SWEEP_PERIOD = 1000;
+
+	/** Initial number of slots; always a power of two */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** MAC address of negative entries */
+	private static final long NEGATIVE = -1;
+
+	/** Expiry time of entries that never expire */
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private static final VarHandle VERSIONS =
+			MethodHandles.arrayElementVarHandle(int[].class);
+
+	/** Keys, which can't be EMPTY or DELETED since they are IP addresses
+	 *  other than 0 as unsigned ints, with per-slot MAC addresses, per-slot
+	 *  expiry times, per-slot versions, odd while the slot's entry is being
+	 *  written, and per-slot flags for entries whose refresh was requested.
+	 *  Unlike a MAC table's entries, which readers need only one value of,
+	 *  an entry's MAC address and expiry time are read together, so they
+	 *  are versioned */
+	private static class Table extends LongHashTable
+	{
+		long[] macs;
+		long[] expires;
+		int[] versions;
+		boolean[] refreshing;
+
+		Table(int capacity)
+		{
+			super(capacity);
+			this.macs = new long[capacity];
+			this.expires = new long[capacity];
+			this.versions = new int[capacity];
+			this.refreshing = new boolean[capacity];
+		}
+	}
+
+	/** Current table; writers hold the cache's lock */
+	private volatile Table table;
+
+	/** Task, run on the shared timers, for timing out entries */
+	private ScheduledFuture<?> timeoutTask;
 
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{
+		this.table = new Table(INITIAL_CAPACITY);
+		this.timeoutTask = Scheduler.getTimers().scheduleAtFixedRate(this,
+				SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop timing out entries.
+	 */
+	public void destroy()
+	{ this.timeoutTask.cancel(false); }
+
+	/**
+	 * @return number of entries in the cache, including negative entries
+	 *         and expired entries that haven't been reclaimed yet
+	 */
+	public int getSize()
+	{ return this.table.getSize(); }
 
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
-	 * pair.
+	 * pair, learned from the network; it expires unless refreshed. Entries
+	 * that never expire are not replaced.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{
+		long expires = Scheduler.currentTimeMillis() + TIMEOUT;
+		synchronized (this)
+		{ this.put(getKey(ip), mac.toLong(), expires, false); }
+	}
+
+	/**
+	 * Insert an entry that never expires, e.g., one that is configured
+	 * rather than learned.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public synchronized void insertStatic(MACAddress mac, int ip)
+	{ this.put(getKey(ip), mac.toLong(), NEVER, true); }
+
+	/**
+	 * Record that an IP address could not be resolved, unless it has a
+	 * valid entry.
+	 * @param ip IP address that could not be resolved
+	 */
+	public void insertNegative(int ip)
+	{
+		long now = Scheduler.currentTimeMillis();
+		synchronized (this)
+		{
+			Table table = this.table;
+			int slot = table.find(getKey(ip));
+			if (slot >= 0 && table.macs[slot] != NEGATIVE
+					&& table.expires[slot] > now)
+			{ return; }
+			this.put(getKey(ip), NEGATIVE, now + NEGATIVE_TIMEOUT, false);
+		}
+	}
+
+	/**
+	 * Look up the MAC address for an IP address.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address, as returned by MACAddress.toLong(), with
+	 *         REFRESH set the first time the entry is looked up close to
+	 *         expiring, in which case the caller should send a request to
+	 *         refresh it; MISSING if the address is not in the cache;
+	 *         UNREACHABLE if it could not be resolved
+	 */
+	public long lookupMac(int ip)
+	{ return this.get(ip, true); }
 
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
 	 * @param ip IP address whose MAC address is desired
-	 * @return the IP->MAC mapping from the cache; null if none exists 
+	 * @return the IP->MAC mapping from the cache; null if none exists
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{
+		long mac = this.get(ip, false);
+		if (mac < 0)
+		{ return null; }
+		return new ArpEntry(MACAddress.valueOf(mac), ip);
+	}
+
+	private long get(int ip, boolean claimRefresh)
+	{
+		long key = getKey(ip);
+		Table table = this.table;
+		int slot = table.find(key);
+		if (slot < 0)
+		{ return MISSING; }
+		long mac;
+		long expires;
+		int version;
+		do
+		{
+			version = (int)VERSIONS.getAcquire(table.versions, slot);
+			mac = table.macs[slot];
+			expires = table.expires[slot];
+			VarHandle.loadLoadFence();
+		} while ((version & 1) != 0
+				|| (int)VERSIONS.getOpaque(table.versions, slot) != version);
+		if (!table.holds(slot, key))
+		{ return MISSING; }
+
+		long now = Scheduler.currentTimeMillis();
+		if (expires <= now)
+		{ return MISSING; }
+		if (NEGATIVE == mac)
+		{ return UNREACHABLE; }
+
+		// Two threads may both claim the refresh; that only costs an extra
+		// request
+		if (claimRefresh && expires - now <= REFRESH_TIME
+				&& !table.refreshing[slot])
+		{
+			table.refreshing[slot] = true;
+			return mac | REFRESH;
+		}
+		return mac;
+	}
+
+	private static long getKey(int ip)
+	{ return ip & 0xffffffffL; }
+
+	/**
+	 * Add or update an entry; called with the cache locked.
+	 * @param replaceStatic true to replace an entry that never expires
+	 */
+	private void put(long key, long mac, long expires, boolean replaceStatic)
+	{
+		if (LongHashTable.EMPTY == key)
+		{ return; }
+		Table table = this.table;
+		int slot = table.find(key);
+		if (slot >= 0)
+		{
+			if (NEVER == table.expires[slot] && !replaceStatic)
+			{ return; }
+			setEntry(table, slot, mac, expires);
+			table.refreshing[slot] = false;
+			return;
+		}
+
+		if (table.isFull())
+		{ table = this.rehash(table, table.getReplacementCapacity()); }
+
+		slot = table.add(key);
+		setEntry(table, slot, mac, expires);
+		table.refreshing[slot] = false;
+		table.publish(slot, key);
+	}
+
+	/**
+	 * Write a slot's MAC address and expiry time, making its version odd
+	 * while they are written; called with the cache locked.
+	 */
+	private static void setEntry(Table table, int slot, long mac,
+			long expires)
+	{
+		int version = table.versions[slot];
+		VERSIONS.setOpaque(table.versions, slot, version + 1);
+		VarHandle.storeStoreFence();
+		table.macs[slot] = mac;
+		table.expires[slot] = expires;
+		VERSIONS.setRelease(table.versions, slot, version + 2);
+	}
+
+	/**
+	 * Copy the entries into a new table, dropping removed slots and expired
+	 * entries, and publish it; called with the cache locked.
+	 */
+	private Table rehash(Table old, int capacity)
+	{
+		Table table = new Table(capacity);
+		long now = Scheduler.currentTimeMillis();
+		for (int i = 0; i < old.getCapacity(); i++)
+		{
+			if (!old.isEntry(i) || old.expires[i] <= now)
+			{ continue; }
+			long key = old.getKey(i);
+			int slot = table.add(key);
+			table.macs[slot] = old.macs[i];
+			table.expires[slot] = old.expires[i];
+			table.refreshing[slot] = old.refreshing[i];
+			table.publish(slot, key);
+		}
+		this.table = table;
+		return table;
+	}
+
+	/**
+	 * Every sweep period: reclaim the slots of expired entries.
+	 */
+	public synchronized void run()
+	{
+		Table table = this.table;
+		long now = Scheduler.currentTimeMillis();
+		for (int slot = 0; slot < table.getCapacity(); slot++)
+		{
+			if (table.isEntry(slot) && table.expires[slot] <= now)
+			{ table.remove(slot); }
+		}
+	}
 
 	/**
 	 * Populate the ARP cache from a file.
@@ -53,12 +323,12 @@ public class ArpCache {
 	{
 		// Open the file
 		BufferedReader reader;
-		try 
+		try
 		{
 			FileReader fileReader = new FileReader(filename);
 			reader = new BufferedReader(fileReader);
 		}
-		catch (FileNotFoundException e) 
+		catch (FileNotFoundException e)
 		{
 			System.err.println(e.toString());
 			return false;
@@ -68,9 +338,9 @@ public class ArpCache {
 		{
 			// Read an ARP entry from the file
 			String line = null;
-			try 
+			try
 			{ line = reader.readLine(); }
-			catch (IOException e) 
+			catch (IOException e)
 			{
 				System.err.println(e.toString());
 				try { reader.close(); } catch (IOException f) {};
@@ -109,14 +379,14 @@ public class ArpCache {
 			{ mac = MACAddress.valueOf(matcher.group(2)); }
 			catch(IllegalArgumentException iae)
 			{
-				System.err.println("Error loading ARP cache, cannot convert " 
+				System.err.println("Error loading ARP cache, cannot convert "
 						+ matcher.group(3) + " to valid MAC");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
 
-			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			// Add an entry to the ACP cache, which never expires
+			this.insertStatic(mac, ip);
 		}
 
 		// Close the file
@@ -124,11 +394,19 @@ public class ArpCache {
 		return true;
 	}
 
-	public String toString()
+	public synchronized String toString()
 	{
 		String result = "IP\t\tMAC\n";
-		for (ArpEntry entry : this.entries.values())
-		{ result += entry.toString()+"\n"; }
+		Table table = this.table;
+		long now = Scheduler.currentTimeMillis();
+		for (int slot = 0; slot < table.getCapacity(); slot++)
+		{
+			if (!table.isEntry(slot) || NEGATIVE == table.macs[slot]
+					|| table.expires[slot] <= now)
+			{ continue; }
+			result += new ArpEntry(MACAddress.valueOf(table.macs[slot]),
+					(int)table.getKey(slot)).toString()+"\n";
+		}
 		return result;
 	}
 }
@@ -0,0 +1,275 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Scheduler;
+
+/**
+ * Resolves next hops missing from a router's ARP cache. Packets to an
+ * unresolved next hop wait in a bounded queue for that next hop while ARP
+ * requests for it are broadcast; packets to a next hop already being
+ * resolved join its queue without sending another request. Requests are
+ * retried with exponential backoff. The queue is sent once a reply arrives,
+ * or dropped once the last request goes unanswered, in which case the next
+ * hop is cached as unreachable for a while.
+ */
+public class ArpResolver
+{
+	/** Requests sent for a next hop before giving up on it */
+	public static final int MAX_TRIES = 3;
+
+	/** Time (in milliseconds) to wait for a reply to the first request;
+	 *  doubled after each unanswered request */
+	public static final int RETRY_TIME = 1000;
+
+	/** Most packets queued for a next hop */
+	public static final int QUEUE_LIMIT = 64;
+
+	/** A packet waiting for its next hop to be resolved */
+	private static class QueuedPacket
+	{
+		final Ethernet etherPacket;
+		final Iface outIface;
+
+		QueuedPacket(Ethernet etherPacket, Iface outIface)
+		{
+			this.etherPacket = etherPacket;
+			this.outIface = outIface;
+		}
+	}
+
+	/** A next hop being resolved */
+	private class Resolution implements Runnable
+	{
+		final int nextHop;
+
+		/** Interface out which requests are sent */
+		final Iface outIface;
+
+		final Queue<QueuedPacket> packets;
+
+		/** Requests sent so far */
+		int tries;
+
+		/** Task, run on the shared timers, for retrying the request */
+		ScheduledFuture<?> retryTask;
+
+		Resolution(int nextHop, Iface outIface)
+		{
+			this.nextHop = nextHop;
+			this.outIface = outIface;
+			this.packets = new ArrayDeque<QueuedPacket>();
+			this.tries = 0;
+		}
+
+		/**
+		 * When a request goes unanswered: send another, or give up.
+		 */
+		public void run()
+		{ retry(this); }
+	}
+
+	/** Device that sends the requests and queued packets */
+	private Device device;
+
+	/** Cache in which next hops that can't be resolved are recorded */
+	private ArpCache arpCache;
+
+	/** Next hops being resolved, keyed by IP address */
+	private Map<Integer,Resolution> resolutions;
+
+	/** Requests sent, packets dropped because their queue was full, and
+	 *  packets dropped because their next hop could not be resolved */
+	private long requests;
+	private long queueDrops;
+	private long failureDrops;
+
+	public ArpResolver(Device device, ArpCache arpCache)
+	{
+		this.device = device;
+		this.arpCache = arpCache;
+		this.resolutions = new HashMap<Integer,Resolution>();
+		this.requests = 0;
+		this.queueDrops = 0;
+		this.failureDrops = 0;
+	}
+
+	/**
+	 * Stop resolving all next hops, dropping their queued packets.
+	 */
+	public synchronized void destroy()
+	{
+		for (Resolution resolution : this.resolutions.values())
+		{ resolution.retryTask.cancel(false); }
+		this.resolutions.clear();
+	}
+
+	/**
+	 * Queue a packet until its next hop is resolved, sending a request for
+	 * the next hop unless one is already outstanding.
+	 * @param etherPacket the packet, with every field but its destination
+	 *        MAC address set
+	 * @param outIface interface out which to send the packet
+	 * @param nextHop IP address of the next hop
+	 */
+	public void enqueue(Ethernet etherPacket, Iface outIface, int nextHop)
+	{
+		Resolution resolution;
+		synchronized (this)
+		{
+			resolution = this.resolutions.get(nextHop);
+			if (resolution != null)
+			{
+				if (resolution.packets.size() >= QUEUE_LIMIT)
+				{ this.queueDrops++; }
+				else
+				{
+					resolution.packets.add(
+							new QueuedPacket(etherPacket, outIface));
+				}
+				return;
+			}
+
+			resolution = new Resolution(nextHop, outIface);
+			resolution.packets.add(new QueuedPacket(etherPacket, outIface));
+			resolution.tries = 1;
+			this.requests++;
+			this.resolutions.put(nextHop, resolution);
+			resolution.retryTask = Scheduler.getTimers().schedule(resolution,
+					RETRY_TIME, TimeUnit.MILLISECONDS);
+		}
+		this.sendRequest(resolution.nextHop, resolution.outIface);
+	}
+
+	/**
+	 * Send a request to refresh a cached next hop before its entry expires,
+	 * unless the next hop is already being resolved.
+	 * @param nextHop IP address of the next hop
+	 * @param outIface interface out which to send the request
+	 */
+	public void refresh(int nextHop, Iface outIface)
+	{
+		synchronized (this)
+		{
+			if (this.resolutions.containsKey(nextHop))
+			{ return; }
+			this.requests++;
+		}
+		this.sendRequest(nextHop, outIface);
+	}
+
+	/**
+	 * Send the packets queued for a next hop whose MAC address is now known.
+	 * @param nextHop IP address of the next hop
+	 * @param mac MAC address of the next hop
+	 */
+	public void resolved(int nextHop, MACAddress mac)
+	{
+		Resolution resolution;
+		synchronized (this)
+		{
+			resolution = this.resolutions.remove(nextHop);
+			if (null == resolution)
+			{ return; }
+			resolution.retryTask.cancel(false);
+		}
+
+		// The resolution is no longer reachable, so its queue can be drained
+		// without the lock
+		byte[] macBytes = mac.toBytes();
+		for (QueuedPacket packet : resolution.packets)
+		{
+			packet.etherPacket.setDestinationMACAddress(macBytes);
+			this.device.sendPacket(packet.etherPacket, packet.outIface);
+		}
+	}
+
+	/**
+	 * @return number of ARP requests sent
+	 */
+	public synchronized long getRequests()
+	{ return this.requests; }
+
+	/**
+	 * @return number of packets dropped because their next hop's queue was
+	 *         full
+	 */
+	public synchronized long getQueueDrops()
+	{ return this.queueDrops; }
+
+	/**
+	 * @return number of packets dropped because their next hop could not be
+	 *         resolved
+	 */
+	public synchronized long getFailureDrops()
+	{ return this.failureDrops; }
+
+	/**
+	 * @return number of next hops being resolved
+	 */
+	public synchronized int getPendingCount()
+	{ return this.resolutions.size(); }
+
+	private void retry(Resolution resolution)
+	{
+		synchronized (this)
+		{
+			// Ignore a retry that raced with the reply
+			if (this.resolutions.get(resolution.nextHop) != resolution)
+			{ return; }
+			if (resolution.tries >= MAX_TRIES)
+			{
+				this.resolutions.remove(resolution.nextHop);
+				this.arpCache.insertNegative(resolution.nextHop);
+				this.failureDrops += resolution.packets.size();
+				System.err.println(String.format("ARP: no reply from %s "
+						+ "after %d requests; dropped %d packets",
+						IPv4.fromIPv4Address(resolution.nextHop),
+						resolution.tries, resolution.packets.size()));
+				return;
+			}
+			resolution.tries++;
+			this.requests++;
+			resolution.retryTask = Scheduler.getTimers().schedule(resolution,
+					(long)RETRY_TIME << (resolution.tries - 1),
+					TimeUnit.MILLISECONDS);
+		}
+		this.sendRequest(resolution.nextHop, resolution.outIface);
+	}
+
+	/**
+	 * Broadcast an ARP request for a next hop.
+	 */
+	private void sendRequest(int nextHop, Iface outIface)
+	{
+		ARP request = new ARP();
+		request.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		request.setProtocolType(ARP.PROTO_TYPE_IP);
+		request.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		request.setProtocolAddressLength((byte)4);
+		request.setOpCode(ARP.OP_REQUEST);
+		request.setSenderHardwareAddress(outIface.getMacAddress().toBytes());
+		request.setSenderProtocolAddress(outIface.getIpAddress());
+		request.setTargetHardwareAddress(
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+		request.setTargetProtocolAddress(nextHop);
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setDestinationMACAddress("ff:ff:ff:ff:ff:ff");
+		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		etherPacket.setEtherType(Ethernet.TYPE_ARP);
+		etherPacket.setPayload(request);
+		this.device.sendPacket(etherPacket, outIface);
+	}
+}
@@ -2,8 +2,9 @@ package edu.wisc.cs.sdn.vnet.rt;
 
 import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
-import java.util.Timer;
-import java.util.TimerTask;
+import edu.wisc.cs.sdn.vnet.Scheduler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An entry in a route table.
@@ -29,7 +30,14 @@ public class RouteEntry {
 	/* Hold the metric for the distance vector */
 	private int metric;
 
-	private Timer timer;
+	/**
+	 * Adjacency most recently used to forward packets matching the entry;
+	 * cleared when the gateway or interface changes
+	 */
+	private volatile Adjacency adjacency;
+
+	/* Removes the entry once it goes 30 seconds without a refresh */
+	private ScheduledFuture<?> expiry;
 	private RouteTable routeTable; // Need this in order to remove from route table holding this entry
 
 	/**
@@ -83,6 +91,7 @@ public class RouteEntry {
 
 	public void setGatewayAddress(int gatewayAddress) {
 		this.gatewayAddress = gatewayAddress;
+		this.adjacency = null;
 	}
 
 	/**
@@ -124,15 +133,26 @@ public class RouteEntry {
 
 	public void setInterface(Iface iface) {
 		this.iface = iface;
+		this.adjacency = null;
+	}
+
+	/**
+	 * @return adjacency most recently used to forward packets matching the
+	 *         entry; null if none
+	 */
+	public Adjacency getAdjacency() {
+		return this.adjacency;
+	}
+
+	public void setAdjacency(Adjacency adjacency) {
+		this.adjacency = adjacency;
 	}
 
 	public void refresh() {
-		if (timer != null) {
-			this.timer.cancel();
-			this.timer.purge();
+		if (expiry != null) {
+			this.expiry.cancel(false);
 		}
-		timer = new Timer();
-		this.timer.schedule(new TimerTask() {
+		this.expiry = Scheduler.getTimers().schedule(new Runnable() {
 			@Override
 			public void run() {
 				routeTable.remove(destinationAddress, maskAddress);
@@ -140,7 +160,7 @@ public class RouteEntry {
 				System.out.println("---------- ROUTE TABLE AFTER 30 SECOND CLEANUP ---------");
 				System.out.println(routeTable);
 			}
-		}, (long) 30000);
+		}, 30000, TimeUnit.MILLISECONDS);
 	}
 
 	public String toString() {
@@ -3,9 +3,13 @@ package edu.wisc.cs.sdn.vnet.rt;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Scheduler;
 
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
@@ -24,13 +28,27 @@ public class Router extends Device {
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 
+	/** Resolves next hops missing from the ARP cache */
+	private ArpResolver arpResolver;
+
+	/** Prebuilt Ethernet headers for next hops */
+	private AdjacencyTable adjacencyTable;
+
+	/** True to forward IPv4 packets straight from the received frames */
+	private volatile boolean rawForwarding;
+
 	private static int RIP_PORT = 520;
 
+	/** Sizes of an Ethernet header and an IPv4 header without options */
+	private static final int ETHER_HEADER_SIZE = 14;
+	private static final int IPV4_HEADER_SIZE = 20;
+
 	private static int RIP_MULTICAST_IP = IPv4.toIPv4Address("224.0.0.9");
 	private static MACAddress RIP_BROADCAST_MAC;
 
 	private static byte[] broadcast_addr = new byte[6];
-	private Timer timer = new Timer("Unsolicited RIP responses");
+	/** Periodic unsolicited RIP responses, run on the shared timers */
+	private ScheduledFuture<?> ripTask;
 
 	static {
 		Arrays.fill(broadcast_addr, (byte) 0xFF);
@@ -46,6 +64,8 @@ public class Router extends Device {
 		super(host, logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
+		this.arpResolver = new ArpResolver(this, this.arpCache);
+		this.adjacencyTable = new AdjacencyTable();
 	}
 
 	/**
@@ -55,6 +75,43 @@ public class Router extends Device {
 		return this.routeTable;
 	}
 
+	/**
+	 * @return ARP cache for the router
+	 */
+	public ArpCache getArpCache() {
+		return this.arpCache;
+	}
+
+	/**
+	 * @return resolver for next hops missing from the ARP cache
+	 */
+	public ArpResolver getArpResolver() {
+		return this.arpResolver;
+	}
+
+	/**
+	 * @return prebuilt Ethernet headers for next hops
+	 */
+	public AdjacencyTable getAdjacencyTable() {
+		return this.adjacencyTable;
+	}
+
+	/**
+	 * @return true if IPv4 packets are forwarded straight from the received
+	 *         frames
+	 */
+	public boolean isRawForwarding() {
+		return this.rawForwarding;
+	}
+
+	/**
+	 * @param rawForwarding true to forward IPv4 packets straight from the
+	 *                      received frames, without decoding them
+	 */
+	public void setRawForwarding(boolean rawForwarding) {
+		this.rawForwarding = rawForwarding;
+	}
+
 	/**
 	 * Load a new routing table from a file.
 	 * 
@@ -91,6 +148,141 @@ public class Router extends Device {
 		System.out.println("----------------------------------");
 	}
 
+	/**
+	 * Handle a frame received on a specific interface. In raw forwarding
+	 * mode, IPv4 packets passing through the router are forwarded straight
+	 * from the received frame, which is rewritten in place; RIP and ARP
+	 * messages, packets addressed to the router, packets whose next hop
+	 * must be resolved and malformed packets are decoded and passed to
+	 * handlePacket.
+	 */
+	@Override
+	public void handleFrame(byte[] frame, int offset, int length, Iface inIface) {
+		if (!this.rawForwarding || !this.forwardFrame(frame, offset, length, inIface)) {
+			super.handleFrame(frame, offset, length, inIface);
+		}
+	}
+
+	/**
+	 * Forward an IPv4 packet using only the bytes of its frame.
+	 * 
+	 * @return true if the frame was forwarded or dropped, false if it must be
+	 *         decoded and handled by handlePacket
+	 */
+	private boolean forwardFrame(byte[] frame, int offset, int length, Iface inIface) {
+		// Make sure it's a well-formed IPv4 packet
+		if (length < ETHER_HEADER_SIZE + IPV4_HEADER_SIZE
+				|| getShort(frame, offset + 12) != Ethernet.TYPE_IPv4) {
+			return false;
+		}
+		int ip = offset + ETHER_HEADER_SIZE;
+		int headerLength = (frame[ip] & 0x0f) * 4;
+		int totalLength = getShort(frame, ip + 2);
+		if ((frame[ip] & 0xf0) != 0x40 || headerLength < IPV4_HEADER_SIZE
+				|| totalLength < headerLength
+				|| ETHER_HEADER_SIZE + totalLength > length) {
+			return false;
+		}
+
+		// Verify checksum
+		if (sumWords(frame, ip, headerLength) != 0xffff) {
+			return true;
+		}
+
+		// RIP messages and packets for the router are handled as objects
+		if (IPv4.PROTOCOL_UDP == frame[ip + 9]
+				&& headerLength + 4 <= totalLength) {
+			int srcPort = getShort(frame, ip + headerLength);
+			int dstPort = getShort(frame, ip + headerLength + 2);
+			if (srcPort == RIP_PORT || dstPort == RIP_PORT) {
+				return false;
+			}
+		}
+		int dstAddr = getInt(frame, ip + 16);
+		for (int i = 0; i < this.interfaceCount; i++) {
+			if (dstAddr == this.interfacesByIndex[i].getIpAddress()) {
+				return false;
+			}
+		}
+
+		// Check TTL
+		int ttl = frame[ip + 8] & 0xff;
+		if (ttl <= 1) {
+			return true;
+		}
+
+		// Find matching route table entry, and make sure we don't send the
+		// packet back out the interface it came in
+		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+		if (null == bestMatch) {
+			return true;
+		}
+		Iface outIface = bestMatch.getInterface();
+		if (outIface == inIface) {
+			return true;
+		}
+		int nextHop = bestMatch.getGatewayAddress();
+		if (0 == nextHop) {
+			nextHop = dstAddr;
+		}
+
+		// Packets waiting on ARP are queued as objects
+		long mac = this.arpCache.lookupMac(nextHop);
+		if (ArpCache.UNREACHABLE == mac) {
+			return true;
+		}
+		if (ArpCache.MISSING == mac) {
+			return false;
+		}
+		if ((mac & ArpCache.REFRESH) != 0) {
+			this.arpResolver.refresh(nextHop, outIface);
+		}
+
+		// Decrement TTL, updating the checksum incrementally (RFC 1624)
+		int oldWord = getShort(frame, ip + 8);
+		int newWord = oldWord - 0x0100;
+		int sum = (~getShort(frame, ip + 10) & 0xffff) + (~oldWord & 0xffff) + newWord;
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		frame[ip + 8] = (byte) (ttl - 1);
+		putShort(frame, ip + 10, ~sum);
+
+		// Copy the next hop's prebuilt Ethernet header onto the frame, and
+		// send it without any padding that followed the packet
+		Adjacency adjacency = this.getAdjacency(bestMatch, nextHop, outIface);
+		System.arraycopy(adjacency.getHeader(mac & ArpCache.MAC_MASK), 0,
+				frame, offset, Adjacency.HEADER_LENGTH);
+		this.sendFrame(frame, offset, ETHER_HEADER_SIZE + totalLength, outIface);
+		return true;
+	}
+
+	private static int getShort(byte[] frame, int offset) {
+		return ((frame[offset] & 0xff) << 8) | (frame[offset + 1] & 0xff);
+	}
+
+	private static int getInt(byte[] frame, int offset) {
+		return (getShort(frame, offset) << 16) | getShort(frame, offset + 2);
+	}
+
+	private static void putShort(byte[] frame, int offset, int value) {
+		frame[offset] = (byte) (value >>> 8);
+		frame[offset + 1] = (byte) value;
+	}
+
+	/**
+	 * @return the ones' complement sum of the 16-bit words in part of a
+	 *         frame; 0xffff over a header with a valid checksum
+	 */
+	private static int sumWords(byte[] frame, int offset, int length) {
+		int sum = 0;
+		for (int i = 0; i < length; i += 2) {
+			sum += getShort(frame, offset + i);
+		}
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		return sum;
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * 
@@ -108,6 +300,9 @@ public class Router extends Device {
 			case Ethernet.TYPE_IPv4:
 				this.handleIpPacket(etherPacket, inIface);
 				break;
+			case Ethernet.TYPE_ARP:
+				this.handleArpPacket(etherPacket, inIface);
+				break;
 			// Ignore all other packet types, for now
 		}
 		/********************************************************************/
@@ -156,7 +351,8 @@ public class Router extends Device {
 	}
 
 	private void broadcast(byte mode) {
-		for (Iface iface : this.getInterfaces().values()) {
+		for (int i = 0; i < this.interfaceCount; i++) {
+			Iface iface = this.interfacesByIndex[i];
 			sendRipPacket(RIP_MULTICAST_IP, RIP_BROADCAST_MAC, mode, iface);
 		}
 	}
@@ -175,14 +371,29 @@ public class Router extends Device {
 
 		System.out.println("-------------- ROUTE TABLE AFTER INITIAL BROADCAST REQUEST -------------- ");
 		System.out.println(this.routeTable);
-		timer.scheduleAtFixedRate(new TimerTask() { // This will periodically send unsolicited response out
+		ripTask = Scheduler.getTimers().scheduleAtFixedRate(new Runnable() { // This will periodically send unsolicited response out
 			@Override
 			public void run() {
 				System.out.println("------- 10 SECOND UNSOLICITED BROADCAST! SENT BELOW: ----- ");
 				System.out.println(routeTable);
 				broadcast(RIPv2.COMMAND_RESPONSE);
 			}
-		}, 10000, 10000);
+		}, 10000, 10000, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop sending RIP responses and ARP requests, stop timing out ARP
+	 * cache entries and adjacencies and close the PCAP dump file.
+	 */
+	@Override
+	public void destroy() {
+		if (ripTask != null) {
+			ripTask.cancel(false);
+		}
+		this.arpResolver.destroy();
+		this.arpCache.destroy();
+		this.adjacencyTable.destroy();
+		super.destroy();
 	}
 
 	private void updateTable(RIPv2 ripPacket, Iface inIface, int ripSenderIp) { // Handles RIP responses. No need to
@@ -240,6 +451,48 @@ public class Router extends Device {
 
 	}
 
+	private void handleArpPacket(Ethernet etherPacket, Iface inIface) {
+		ARP arpPacket = (ARP) etherPacket.getPayload();
+		if (arpPacket.getHardwareType() != ARP.HW_TYPE_ETHERNET
+				|| arpPacket.getProtocolType() != ARP.PROTO_TYPE_IP) {
+			return;
+		}
+
+		// Only requests and replies for the receiving interface concern us
+		int targetIp = IPv4.toIPv4Address(arpPacket.getTargetProtocolAddress());
+		if (targetIp != inIface.getIpAddress()) {
+			return;
+		}
+
+		// Learn the sender, and send any packets waiting for it
+		int senderIp = IPv4.toIPv4Address(arpPacket.getSenderProtocolAddress());
+		MACAddress senderMac = MACAddress.valueOf(arpPacket.getSenderHardwareAddress());
+		if (senderIp != 0) {
+			this.arpCache.insert(senderMac, senderIp);
+			this.arpResolver.resolved(senderIp, senderMac);
+		}
+
+		if (arpPacket.getOpCode() == ARP.OP_REQUEST) {
+			ARP reply = new ARP();
+			reply.setHardwareType(ARP.HW_TYPE_ETHERNET);
+			reply.setProtocolType(ARP.PROTO_TYPE_IP);
+			reply.setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH);
+			reply.setProtocolAddressLength((byte) 4);
+			reply.setOpCode(ARP.OP_REPLY);
+			reply.setSenderHardwareAddress(inIface.getMacAddress().toBytes());
+			reply.setSenderProtocolAddress(inIface.getIpAddress());
+			reply.setTargetHardwareAddress(arpPacket.getSenderHardwareAddress());
+			reply.setTargetProtocolAddress(arpPacket.getSenderProtocolAddress());
+
+			Ethernet replyPacket = new Ethernet();
+			replyPacket.setDestinationMACAddress(etherPacket.getSourceMACAddress());
+			replyPacket.setSourceMACAddress(inIface.getMacAddress().toBytes());
+			replyPacket.setEtherType(Ethernet.TYPE_ARP);
+			replyPacket.setPayload(reply);
+			this.sendPacket(replyPacket, inIface);
+		}
+	}
+
 	private void handleIpPacket(Ethernet etherPacket, Iface inIface) {
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4) {
@@ -278,8 +531,8 @@ public class Router extends Device {
 		}
 
 		// Check if packet is destined for one of router's interfaces
-		for (Iface iface : this.interfaces.values()) {
-			if (ipPacket.getDestinationAddress() == iface.getIpAddress()) {
+		for (int i = 0; i < this.interfaceCount; i++) {
+			if (ipPacket.getDestinationAddress() == this.interfacesByIndex[i].getIpAddress()) {
 				return;
 			}
 		}
@@ -313,23 +566,50 @@ public class Router extends Device {
 			return;
 		}
 
-		// Set source MAC address in Ethernet header
-		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
-
 		// If no gateway, then nextHop is IP destination
 		int nextHop = bestMatch.getGatewayAddress();
 		if (0 == nextHop) {
 			nextHop = dstAddr;
 		}
 
-		// Set destination MAC address in Ethernet header
-		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-		if (null == arpEntry) {
+		// Find the next hop's MAC address, or hold the packet until the next
+		// hop is resolved; drop it if the next hop recently could not be
+		// resolved
+		long mac = this.arpCache.lookupMac(nextHop);
+		if (ArpCache.UNREACHABLE == mac) {
 			return;
 		}
-		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+		if (ArpCache.MISSING == mac) {
+			etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+			this.arpResolver.enqueue(etherPacket, outIface, nextHop);
+			return;
+		}
+		if ((mac & ArpCache.REFRESH) != 0) {
+			this.arpResolver.refresh(nextHop, outIface);
+		}
 
-		this.sendPacket(etherPacket, outIface);
+		// Copy the next hop's prebuilt Ethernet header onto the frame
+		Adjacency adjacency = this.getAdjacency(bestMatch, nextHop, outIface);
+		etherPacket.setVlanID(Ethernet.VLAN_UNTAGGED);
+		byte[] frame = etherPacket.serialize();
+		System.arraycopy(adjacency.getHeader(mac & ArpCache.MAC_MASK), 0,
+				frame, 0, Adjacency.HEADER_LENGTH);
+
+		this.sendFrame(frame, 0, frame.length, outIface);
+	}
+
+	/**
+	 * Get the adjacency for a next hop, preferring the one the route entry
+	 * used last.
+	 */
+	private Adjacency getAdjacency(RouteEntry route, int nextHop, Iface outIface) {
+		Adjacency adjacency = route.getAdjacency();
+		if (null == adjacency || adjacency.getNextHop() != nextHop
+				|| adjacency.getInterface() != outIface) {
+			adjacency = this.adjacencyTable.get(nextHop, outIface);
+			route.setAdjacency(adjacency);
+		}
+		return adjacency;
 	}
 
 }
@@ -0,0 +1,200 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import edu.wisc.cs.sdn.vnet.Scheduler;
+
+/**
+ * ARP suppression for a switch. Learns, from the sender fields of the ARP
+ * messages passing through the switch, which MAC address each IP address in
+ * each VLAN belongs to, so the switch can answer ARP requests for known
+ * addresses itself instead of flooding them. Bindings age out unless
+ * refreshed by more ARP traffic from their owners. When two MAC addresses
+ * claim the same IP address, the address is in conflict: the switch stops
+ * answering for it, and floods requests so every claimant answers, until
+ * the conflicting claims stop.
+ */
+public class ArpSuppression implements Runnable
+{
+	/** Time (in milliseconds) a binding lasts without ARP traffic from its
+	 *  owner */
+	public static final int BINDING_TIMEOUT = 60 * 1000;
+
+	/** Time (in milliseconds) an address stays in conflict after the last
+	 *  conflicting claim */
+	public static final int CONFLICT_TIMEOUT = 60 * 1000;
+
+	/** Interval (in milliseconds) between sweeps for expired bindings */
+	private static final int SWEEP_PERIOD = 1000;
+
+	/** An IP address's binding; replaced, not modified, when updated */
+	private static class Binding
+	{
+		/** MAC address the IP address was last claimed by */
+		final long macAddress;
+
+		/** Time the binding expires */
+		final long expires;
+
+		/** Time the address's conflict ends; 0 if it was never in
+		 *  conflict */
+		final long conflictExpires;
+
+		Binding(long macAddress, long expires, long conflictExpires)
+		{
+			this.macAddress = macAddress;
+			this.expires = expires;
+			this.conflictExpires = conflictExpires;
+		}
+	}
+
+	/** Bindings, keyed by VLAN and IP address */
+	private Map<Long,Binding> bindings;
+
+	/** Task, run on the shared timers, for timing out bindings */
+	private ScheduledFuture<?> timeoutTask;
+
+	public ArpSuppression()
+	{
+		this.bindings = new ConcurrentHashMap<Long,Binding>();
+		this.timeoutTask = Scheduler.getTimers().scheduleAtFixedRate(this,
+				SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop timing out bindings.
+	 */
+	public void destroy()
+	{ this.timeoutTask.cancel(false); }
+
+	/**
+	 * @return true if an ARP message maps IPv4 addresses to Ethernet
+	 *         addresses, i.e., the switch can learn from or answer it
+	 */
+	public static boolean isValid(ARP arp)
+	{
+		return (ARP.HW_TYPE_ETHERNET == arp.getHardwareType()
+				&& ARP.PROTO_TYPE_IP == arp.getProtocolType()
+				&& Ethernet.DATALAYER_ADDRESS_LENGTH
+					== arp.getHardwareAddressLength()
+				&& 4 == arp.getProtocolAddressLength());
+	}
+
+	/**
+	 * Learn the binding claimed by the sender of an ARP request or reply.
+	 * Probes, whose sender address is 0, claim nothing.
+	 * @param vlan VLAN in which the message arrived
+	 * @param arp the message, which must be valid
+	 */
+	public synchronized void learn(int vlan, ARP arp)
+	{
+		int ipAddress = IPv4.toIPv4Address(arp.getSenderProtocolAddress());
+		long macAddress = MACAddress.valueOf(
+				arp.getSenderHardwareAddress()).toLong();
+		if (0 == ipAddress || isGroupAddress(macAddress))
+		{ return; }
+
+		long key = getKey(vlan, ipAddress);
+		long now = Scheduler.currentTimeMillis();
+		Binding binding = this.bindings.get(key);
+		long conflictExpires = 0;
+		if (binding != null && binding.expires > now)
+		{
+			conflictExpires = binding.conflictExpires;
+			if (binding.macAddress != macAddress)
+			{
+				if (binding.conflictExpires <= now)
+				{
+					System.err.println(String.format("ARP suppression: %s in "
+							+ "VLAN %d claimed by both %s and %s",
+							IPv4.fromIPv4Address(ipAddress), vlan,
+							MACAddress.valueOf(binding.macAddress),
+							MACAddress.valueOf(macAddress)));
+				}
+				conflictExpires = now + CONFLICT_TIMEOUT;
+			}
+		}
+		this.bindings.put(key, new Binding(macAddress,
+				now + BINDING_TIMEOUT, conflictExpires));
+	}
+
+	/**
+	 * Decide whether the switch can answer an ARP request itself.
+	 * @param vlan VLAN in which the request arrived
+	 * @param arp the request, which must be valid
+	 * @return the MAC address the requested IP address belongs to; -1 if the
+	 *         request must be flooded, because the address is unknown or in
+	 *         conflict, or because the request comes from the address's
+	 *         owner, e.g., to check that no one else uses it
+	 */
+	public long lookup(int vlan, ARP arp)
+	{
+		int ipAddress = IPv4.toIPv4Address(arp.getTargetProtocolAddress());
+		Binding binding = this.bindings.get(getKey(vlan, ipAddress));
+		long now = Scheduler.currentTimeMillis();
+		if (null == binding || binding.expires <= now
+				|| binding.conflictExpires > now
+				|| MACAddress.valueOf(arp.getSenderHardwareAddress()).toLong()
+					== binding.macAddress
+				|| IPv4.toIPv4Address(arp.getSenderProtocolAddress())
+					== ipAddress)
+		{ return -1; }
+		return binding.macAddress;
+	}
+
+	/**
+	 * Build the reply the owner of an address would send to an ARP request.
+	 * @param request the request
+	 * @param macAddress MAC address the requested IP address belongs to
+	 * @return the reply, addressed to the requester
+	 */
+	public static Ethernet makeReply(ARP request, long macAddress)
+	{
+		byte[] mac = MACAddress.valueOf(macAddress).toBytes();
+		ARP reply = new ARP();
+		reply.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		reply.setProtocolType(ARP.PROTO_TYPE_IP);
+		reply.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		reply.setProtocolAddressLength((byte)4);
+		reply.setOpCode(ARP.OP_REPLY);
+		reply.setSenderHardwareAddress(mac);
+		reply.setSenderProtocolAddress(request.getTargetProtocolAddress());
+		reply.setTargetHardwareAddress(request.getSenderHardwareAddress());
+		reply.setTargetProtocolAddress(request.getSenderProtocolAddress());
+
+		Ethernet replyPacket = new Ethernet();
+		replyPacket.setDestinationMACAddress(request.getSenderHardwareAddress());
+		replyPacket.setSourceMACAddress(mac);
+		replyPacket.setEtherType(Ethernet.TYPE_ARP);
+		replyPacket.setPayload(reply);
+		return replyPacket;
+	}
+
+	private static boolean isGroupAddress(long macAddress)
+	{ return ((macAddress >>> 40) & 0x1) != 0; }
+
+	private static long getKey(int vlan, int ipAddress)
+	{ return ((long)vlan << 32) | (ipAddress & 0xffffffffL); }
+
+	/**
+	 * Every sweep period: remove expired bindings.
+	 */
+	public synchronized void run()
+	{
+		long now = Scheduler.currentTimeMillis();
+		Iterator<Binding> it = this.bindings.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().expires <= now)
+			{ it.remove(); }
+		}
+	}
+}
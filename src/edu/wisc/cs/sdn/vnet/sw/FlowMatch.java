@@ -0,0 +1,136 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+/**
+ * Fields a flow rule matches on, with a mask of the bits that must match.
+ * Fields not set are wildcarded. The fields are packed into words, laid out
+ * as in a flow key built by FlowTable:
+ * <pre>
+ * word 0: destination MAC (48 bits), ingress port (16)
+ * word 1: source MAC (48), EtherType (16)
+ * word 2: IPv4 source (32), IPv4 destination (32)
+ * word 3: VLAN (12, at bit 40), IP protocol (8, at bit 32),
+ *         TCP/UDP source port (16), TCP/UDP destination port (16)
+ * </pre>
+ * IP fields are 0 for frames that aren't IPv4, and port fields are 0 for
+ * packets that aren't TCP or UDP or are fragments.
+ */
+public class FlowMatch
+{
+	/** Number of words in a key */
+	public static final int WORDS = 4;
+
+	private static final long MAC_MASK = 0xffffffffffffL;
+
+	private long[] key;
+	private long[] mask;
+
+	public FlowMatch()
+	{
+		this.key = new long[WORDS];
+		this.mask = new long[WORDS];
+	}
+
+	/**
+	 * Match frames arriving on a port.
+	 * @param port the port: an interface index or a link aggregation
+	 *        group's logical port
+	 */
+	public void setInPort(int port)
+	{ this.set(0, 0, 0xffff, port); }
+
+	public void setDataLayerDestination(long macAddress)
+	{ this.set(0, 16, MAC_MASK, macAddress); }
+
+	public void setDataLayerSource(long macAddress)
+	{ this.set(1, 16, MAC_MASK, macAddress); }
+
+	public void setEtherType(int etherType)
+	{ this.set(1, 0, 0xffff, etherType); }
+
+	/**
+	 * Match IPv4 packets from a subnet.
+	 * @param prefixLength number of leading bits of the address to match
+	 */
+	public void setNetworkSource(int address, int prefixLength)
+	{ this.set(2, 32, 0xffffffffL, getPrefixMask(prefixLength), address); }
+
+	/**
+	 * Match IPv4 packets to a subnet.
+	 * @param prefixLength number of leading bits of the address to match
+	 */
+	public void setNetworkDestination(int address, int prefixLength)
+	{ this.set(2, 0, 0xffffffffL, getPrefixMask(prefixLength), address); }
+
+	/**
+	 * Match frames in a VLAN: the VLAN a frame is in on arrival, not
+	 * necessarily the VLAN in its tag.
+	 */
+	public void setVlan(int vlan)
+	{ this.set(3, 40, 0xfff, vlan); }
+
+	public void setNetworkProtocol(int protocol)
+	{ this.set(3, 32, 0xff, protocol); }
+
+	public void setTransportSource(int port)
+	{ this.set(3, 16, 0xffff, port); }
+
+	public void setTransportDestination(int port)
+	{ this.set(3, 0, 0xffff, port); }
+
+	/**
+	 * @return true if the match has an IP or TCP/UDP field, which only IPv4
+	 *         packets carry
+	 */
+	public boolean hasNetworkFields()
+	{ return (this.mask[2] != 0 || (this.mask[3] & 0xffffffffffL) != 0); }
+
+	/**
+	 * @return true if the match has the EtherType field
+	 */
+	public boolean hasEtherType()
+	{ return ((this.mask[1] & 0xffff) != 0); }
+
+	/**
+	 * @return a word of the match's key, with bits outside the mask clear
+	 */
+	long getKey(int word)
+	{ return this.key[word]; }
+
+	/**
+	 * @return a word of the match's mask
+	 */
+	long getMask(int word)
+	{ return this.mask[word]; }
+
+	private void set(int word, int shift, long fieldMask, long value)
+	{ this.set(word, shift, fieldMask, fieldMask, value); }
+
+	/**
+	 * Set a field, or only some of its bits.
+	 * @param fieldMask all of the field's bits
+	 * @param matchMask the bits to match
+	 */
+	private void set(int word, int shift, long fieldMask, long matchMask,
+			long value)
+	{
+		this.key[word] &= ~(fieldMask << shift);
+		this.mask[word] &= ~(fieldMask << shift);
+		this.key[word] |= (value & matchMask) << shift;
+		this.mask[word] |= matchMask << shift;
+	}
+
+	private static long getPrefixMask(int prefixLength)
+	{
+		if (prefixLength <= 0)
+		{ return 0; }
+		return (0xffffffffL << (32 - Math.min(prefixLength, 32))) & 0xffffffffL;
+	}
+
+	public String toString()
+	{
+		return String.format("key=%016x.%016x.%016x.%016x "
+				+ "mask=%016x.%016x.%016x.%016x",
+				this.key[0], this.key[1], this.key[2], this.key[3],
+				this.mask[0], this.mask[1], this.mask[2], this.mask[3]);
+	}
+}
@@ -0,0 +1,69 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+/**
+ * A rule in a switch's flow table: frames that match it have its actions
+ * applied, in order: their VLAN is rewritten, a copy is sent out a mirror
+ * port, and then they are dropped, sent out a port or forwarded normally
+ * by MAC learning.
+ */
+public class FlowRule
+{
+	/** Values of outPort for frames forwarded normally and for frames to
+	 *  drop */
+	public static final int OUTPUT_NORMAL = -1;
+	public static final int OUTPUT_DROP = -2;
+
+	/** Frames that match several rules have the actions of the one with the
+	 *  highest priority applied */
+	private final int priority;
+
+	private final FlowMatch match;
+
+	/** VLAN to move frames to; 0 to leave them in their VLAN */
+	private final int setVlan;
+
+	/** Port out which to send a copy of frames; -1 for none */
+	private final int mirrorPort;
+
+	/** Port out which to send frames, OUTPUT_NORMAL or OUTPUT_DROP */
+	private final int outPort;
+
+	/**
+	 * Create a rule.
+	 * @param setVlan VLAN to move frames to; 0 to leave them in their VLAN
+	 * @param mirrorPort port out which to send a copy of frames; -1 for none
+	 * @param outPort port out which to send frames, OUTPUT_NORMAL or
+	 *        OUTPUT_DROP
+	 */
+	public FlowRule(int priority, FlowMatch match, int setVlan,
+			int mirrorPort, int outPort)
+	{
+		this.priority = priority;
+		this.match = match;
+		this.setVlan = setVlan;
+		this.mirrorPort = mirrorPort;
+		this.outPort = outPort;
+	}
+
+	public int getPriority()
+	{ return this.priority; }
+
+	public FlowMatch getMatch()
+	{ return this.match; }
+
+	public int getSetVlan()
+	{ return this.setVlan; }
+
+	public int getMirrorPort()
+	{ return this.mirrorPort; }
+
+	public int getOutPort()
+	{ return this.outPort; }
+
+	public String toString()
+	{
+		return String.format("priority=%d %s set-vlan=%d mirror=%d out=%d",
+				this.priority, this.match, this.setVlan, this.mirrorPort,
+				this.outPort);
+	}
+}
@@ -0,0 +1,370 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * A switch's flow table: rules, ordered by priority, that match frames on
+ * their L2-L4 fields and say what to do with them. Lookups use tuple space
+ * search: rules with the same mask share a hash table keyed by their masked
+ * fields, so a lookup costs one probe per distinct mask, not one comparison
+ * per rule. Tables are tried from the one with the highest priority rule
+ * down, stopping once no remaining table can beat the best match. An
+ * exact-match cache of recent flows, hits and misses alike, sits in front,
+ * so most frames skip the search altogether. Changes build new tables and
+ * swap them in, so lookups never lock.
+ */
+public class FlowTable
+{
+	/** Number of entries in the flow cache; a power of 2 */
+	private static final int CACHE_SIZE = 4096;
+
+	/** Multiplier for mixing hashes; 2^64 divided by the golden ratio */
+	private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+	/** Size of the destination and source MAC addresses that start a
+	 *  frame, of an 802.1Q tag and of an IPv4 header without options */
+	private static final int ETHER_ADDRS_SIZE = 12;
+	private static final int VLAN_TAG_SIZE = 4;
+	private static final int VLAN_TPID = 0x8100;
+	private static final int IPV4_HEADER_SIZE = 20;
+
+	/** Rules with the same mask, in a hash table keyed by their masked
+	 *  fields; never modified once built */
+	private static class Subtable
+	{
+		final long[] mask;
+
+		/** Highest priority of the table's rules */
+		final int maxPriority;
+
+		/** Masked fields of the rule in each slot, FlowMatch.WORDS words per
+		 *  slot */
+		final long[] keys;
+
+		/** Rule in each slot; null for empty slots */
+		final FlowRule[] rules;
+
+		Subtable(long[] mask, List<FlowRule> rules)
+		{
+			this.mask = mask;
+			int capacity = 2;
+			while (capacity < 2 * rules.size())
+			{ capacity *= 2; }
+			this.keys = new long[capacity * FlowMatch.WORDS];
+			this.rules = new FlowRule[capacity];
+
+			int maxPriority = Integer.MIN_VALUE;
+			for (FlowRule rule : rules)
+			{
+				FlowMatch match = rule.getMatch();
+				int slot = this.find(match.getKey(0), match.getKey(1),
+						match.getKey(2), match.getKey(3));
+				// Of rules with the same match, only the highest priority
+				// one can ever apply; a later rule replaces an equal one
+				if (this.rules[slot] != null
+						&& this.rules[slot].getPriority() > rule.getPriority())
+				{ continue; }
+				for (int i = 0; i < FlowMatch.WORDS; i++)
+				{ this.keys[slot * FlowMatch.WORDS + i] = match.getKey(i); }
+				this.rules[slot] = rule;
+				maxPriority = Math.max(maxPriority, rule.getPriority());
+			}
+			this.maxPriority = maxPriority;
+		}
+
+		/**
+		 * @return the rule matching a frame's fields; null if there is none
+		 */
+		FlowRule lookup(long w0, long w1, long w2, long w3)
+		{
+			return this.rules[this.find(w0 & this.mask[0], w1 & this.mask[1],
+					w2 & this.mask[2], w3 & this.mask[3])];
+		}
+
+		/**
+		 * @return the slot holding masked fields, or the empty slot where
+		 *         they belong
+		 */
+		private int find(long m0, long m1, long m2, long m3)
+		{
+			int slotMask = this.rules.length - 1;
+			int slot = hash(m0, m1, m2, m3) & slotMask;
+			while (this.rules[slot] != null)
+			{
+				int base = slot * FlowMatch.WORDS;
+				if (this.keys[base] == m0 && this.keys[base + 1] == m1
+						&& this.keys[base + 2] == m2
+						&& this.keys[base + 3] == m3)
+				{ break; }
+				slot = (slot + 1) & slotMask;
+			}
+			return slot;
+		}
+	}
+
+	/** A flow's fields and the rule they match; never modified */
+	private static class CacheEntry
+	{
+		final long w0, w1, w2, w3;
+
+		/** Tables the rule was found in */
+		final Subtable[] subtables;
+
+		/** The rule; null if no rule matches */
+		final FlowRule rule;
+
+		CacheEntry(long w0, long w1, long w2, long w3, Subtable[] subtables,
+				FlowRule rule)
+		{
+			this.w0 = w0;
+			this.w1 = w1;
+			this.w2 = w2;
+			this.w3 = w3;
+			this.subtables = subtables;
+			this.rule = rule;
+		}
+	}
+
+	/** All rules, in the order they were added */
+	private List<FlowRule> rules;
+
+	/** Tables of rules, in decreasing order of their highest priority;
+	 *  replaced, not modified, when rules change */
+	private volatile Subtable[] subtables;
+
+	/** Recent flows, indexed by the low bits of their hash; entries found
+	 *  in tables other than the current ones are stale */
+	private CacheEntry[] cache;
+
+	public FlowTable()
+	{
+		this.rules = new ArrayList<FlowRule>();
+		this.subtables = new Subtable[0];
+		this.cache = new CacheEntry[CACHE_SIZE];
+	}
+
+	/**
+	 * Add rules to the table.
+	 */
+	public synchronized void add(List<FlowRule> rules)
+	{
+		this.rules.addAll(rules);
+		this.rebuild();
+	}
+
+	/**
+	 * Remove all rules from the table.
+	 */
+	public synchronized void clear()
+	{
+		this.rules.clear();
+		this.rebuild();
+	}
+
+	/**
+	 * @return number of rules in the table
+	 */
+	public synchronized int getRuleCount()
+	{ return this.rules.size(); }
+
+	/**
+	 * @return number of distinct masks, i.e., of hash tables a search may
+	 *         probe
+	 */
+	public int getSubtableCount()
+	{ return this.subtables.length; }
+
+	private void rebuild()
+	{
+		List<long[]> masks = new ArrayList<long[]>();
+		List<List<FlowRule>> groups = new ArrayList<List<FlowRule>>();
+		for (FlowRule rule : this.rules)
+		{
+			long[] mask = new long[FlowMatch.WORDS];
+			for (int i = 0; i < FlowMatch.WORDS; i++)
+			{ mask[i] = rule.getMatch().getMask(i); }
+			int group = 0;
+			while (group < masks.size()
+					&& !Arrays.equals(masks.get(group), mask))
+			{ group++; }
+			if (group == masks.size())
+			{
+				masks.add(mask);
+				groups.add(new ArrayList<FlowRule>());
+			}
+			groups.get(group).add(rule);
+		}
+
+		List<Subtable> subtables = new ArrayList<Subtable>();
+		for (int i = 0; i < masks.size(); i++)
+		{ subtables.add(new Subtable(masks.get(i), groups.get(i))); }
+		Collections.sort(subtables, new Comparator<Subtable>()
+		{
+			public int compare(Subtable a, Subtable b)
+			{ return Integer.compare(b.maxPriority, a.maxPriority); }
+		});
+		this.subtables = subtables.toArray(new Subtable[subtables.size()]);
+	}
+
+	/**
+	 * Find the rule that applies to a frame, reading its fields from its
+	 * bytes.
+	 * @param inPort the port on which the frame arrived; -1 if the switch
+	 *        itself sent the frame
+	 * @param vlan the frame's VLAN
+	 * @return the highest priority rule the frame matches; null if it
+	 *         matches none
+	 */
+	public FlowRule lookup(byte[] frame, int offset, int length, int inPort,
+			int vlan)
+	{
+		int end = offset + length;
+		int typeOffset = offset + ETHER_ADDRS_SIZE;
+		if (typeOffset + 2 <= end && VLAN_TPID == getShort(frame, typeOffset))
+		{ typeOffset += VLAN_TAG_SIZE; }
+		int etherType = (typeOffset + 2 <= end
+				? getShort(frame, typeOffset) : 0);
+		long w2 = 0;
+		long w3 = (long)vlan << 40;
+		int ipOffset = typeOffset + 2;
+		if (Ethernet.TYPE_IPv4 == etherType
+				&& ipOffset + IPV4_HEADER_SIZE <= end)
+		{
+			w2 = getInt(frame, ipOffset + 12) & 0xffffffffL;
+			w2 = (w2 << 32) | (getInt(frame, ipOffset + 16) & 0xffffffffL);
+			int protocol = frame[ipOffset + 9] & 0xff;
+			w3 |= (long)protocol << 32;
+			int l4Offset = ipOffset + 4 * (frame[ipOffset] & 0x0f);
+			boolean fragment = ((getShort(frame, ipOffset + 6) & 0x3fff) != 0);
+			if (!fragment && (IPv4.PROTOCOL_TCP == protocol
+						|| IPv4.PROTOCOL_UDP == protocol)
+					&& l4Offset + 4 <= end)
+			{ w3 |= getInt(frame, l4Offset) & 0xffffffffL; }
+		}
+		return this.lookup((getAddress(frame, offset) << 16) | (inPort & 0xffff),
+				(getAddress(frame, offset + 6) << 16) | etherType, w2, w3);
+	}
+
+	/**
+	 * Find the rule that applies to a decoded frame.
+	 * @param inPort the port on which the frame arrived; -1 if the switch
+	 *        itself sent the frame
+	 * @param vlan the frame's VLAN
+	 * @return the highest priority rule the frame matches; null if it
+	 *         matches none
+	 */
+	public FlowRule lookup(Ethernet etherPacket, int inPort, int vlan)
+	{
+		long w2 = 0;
+		long w3 = (long)vlan << 40;
+		if (etherPacket.getPayload() instanceof IPv4)
+		{
+			IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+			w2 = ((long)ipPacket.getSourceAddress() << 32)
+					| (ipPacket.getDestinationAddress() & 0xffffffffL);
+			w3 |= (long)(ipPacket.getProtocol() & 0xff) << 32;
+			boolean fragment = ((ipPacket.getFlags() & 0x1) != 0
+					|| ipPacket.getFragmentOffset() != 0);
+			if (!fragment && ipPacket.getPayload() instanceof TCP)
+			{
+				TCP tcpPacket = (TCP)ipPacket.getPayload();
+				w3 |= ((long)(tcpPacket.getSourcePort() & 0xffff) << 16)
+						| (tcpPacket.getDestinationPort() & 0xffff);
+			}
+			else if (!fragment && ipPacket.getPayload() instanceof UDP)
+			{
+				UDP udpPacket = (UDP)ipPacket.getPayload();
+				w3 |= ((long)(udpPacket.getSourcePort() & 0xffff) << 16)
+						| (udpPacket.getDestinationPort() & 0xffff);
+			}
+		}
+		Subtable[] subtables = this.subtables;
+		FlowRule rule = this.lookup(
+				(etherPacket.getDestinationMAC().toLong() << 16)
+					| (inPort & 0xffff),
+				(etherPacket.getSourceMAC().toLong() << 16)
+					| (etherPacket.getEtherType() & 0xffff),
+				w2, w3);
+		// The rules may change between the two lookups
+		assert this.lookupsAgree(etherPacket, inPort, vlan, rule)
+				|| subtables != this.subtables;
+		return rule;
+	}
+
+	/**
+	 * Check, when assertions are enabled, that a decoded frame's fields
+	 * are read the same way as its bytes.
+	 * @return true if looking up the frame's bytes finds the rule that
+	 *         looking up its decoded fields found
+	 */
+	private boolean lookupsAgree(Ethernet etherPacket, int inPort, int vlan,
+			FlowRule rule)
+	{
+		byte[] frame = etherPacket.serialize();
+		return (this.lookup(frame, 0, frame.length, inPort, vlan) == rule);
+	}
+
+	private FlowRule lookup(long w0, long w1, long w2, long w3)
+	{
+		Subtable[] subtables = this.subtables;
+		if (0 == subtables.length)
+		{ return null; }
+
+		int index = hash(w0, w1, w2, w3) & (CACHE_SIZE - 1);
+		CacheEntry entry = this.cache[index];
+		if (entry != null && entry.subtables == subtables && entry.w0 == w0
+				&& entry.w1 == w1 && entry.w2 == w2 && entry.w3 == w3)
+		{ return entry.rule; }
+
+		FlowRule best = null;
+		for (Subtable subtable : subtables)
+		{
+			if (best != null && best.getPriority() >= subtable.maxPriority)
+			{ break; }
+			FlowRule rule = subtable.lookup(w0, w1, w2, w3);
+			if (rule != null
+					&& (null == best || rule.getPriority() > best.getPriority()))
+			{ best = rule; }
+		}
+		this.cache[index] = new CacheEntry(w0, w1, w2, w3, subtables, best);
+		return best;
+	}
+
+	/**
+	 * @return hash of a flow's fields, with every bit of the fields mixed
+	 *         into the low bits, which index the tables and the cache
+	 */
+	private static int hash(long w0, long w1, long w2, long w3)
+	{
+		long hash = w0 * HASH_MULTIPLIER;
+		hash = (hash ^ w1) * HASH_MULTIPLIER;
+		hash = (hash ^ w2) * HASH_MULTIPLIER;
+		hash = (hash ^ w3) * HASH_MULTIPLIER;
+
+		// A product's low bits depend only on its operands' low bits, so
+		// fold the high bits down and mix again, taking the top half
+		hash = (hash ^ (hash >>> 32)) * HASH_MULTIPLIER;
+		return (int)(hash >>> 32);
+	}
+
+	private static long getAddress(byte[] frame, int offset)
+	{
+		return ((long)getShort(frame, offset) << 32)
+				| (getInt(frame, offset + 2) & 0xffffffffL);
+	}
+
+	private static int getShort(byte[] frame, int offset)
+	{ return ((frame[offset] & 0xff) << 8) | (frame[offset + 1] & 0xff); }
+
+	private static int getInt(byte[] frame, int offset)
+	{ return (getShort(frame, offset) << 16) | getShort(frame, offset + 2); }
+}
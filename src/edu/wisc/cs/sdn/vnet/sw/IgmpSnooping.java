@@ -0,0 +1,246 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.IGMP;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Scheduler;
+
+/**
+ * IGMP snooping for a switch (RFC 4541). Learns, from the IGMP messages
+ * exchanged by hosts and multicast routers, which ports lead to members of
+ * each multicast group and which lead to multicast routers, so multicast
+ * traffic is forwarded only to interested ports and router ports instead of
+ * being flooded. Membership is kept per VLAN and group, not per source, and
+ * ages out unless refreshed by reports, or, for router ports, by queries.
+ * Traffic to the link-local groups 224.0.0.0/24 (e.g., RIP's 224.0.0.9) is
+ * still flooded, since hosts never report membership of those groups.
+ */
+public class IgmpSnooping implements Runnable
+{
+	/** Time (in milliseconds) a membership lasts without a report: the
+	 *  robustness variable times the query interval, plus the query
+	 *  response interval */
+	public static final int MEMBERSHIP_TIMEOUT = 260 * 1000;
+
+	/** Time (in milliseconds) a router port lasts without a query */
+	public static final int ROUTER_TIMEOUT = 255 * 1000;
+
+	/** Time (in milliseconds) a membership lasts after a leave, long enough
+	 *  for remaining members to answer the router's group-specific
+	 *  queries */
+	public static final int LEAVE_TIMEOUT = 2 * 1000;
+
+	/** Interval (in milliseconds) between sweeps for expired entries */
+	private static final int SWEEP_PERIOD = 1000;
+
+	/** Group under which router ports are kept; 0.0.0.0 is never a
+	 *  multicast group */
+	public static final int ROUTERS = 0;
+
+	/** Expiry times, per port, of the members of each group (and of the
+	 *  router ports) in each VLAN; arrays are indexed by interface index,
+	 *  and are replaced, not modified in place, when updated */
+	private Map<Long,long[]> entries;
+
+	/** True for each interface, by index, configured as a router port */
+	private volatile boolean[] staticRouters;
+
+	/** Task, run on the shared timers, for timing out entries */
+	private ScheduledFuture<?> timeoutTask;
+
+	public IgmpSnooping()
+	{
+		this.entries = new ConcurrentHashMap<Long,long[]>();
+		this.staticRouters = new boolean[0];
+		this.timeoutTask = Scheduler.getTimers().scheduleAtFixedRate(this,
+				SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop timing out entries.
+	 */
+	public void destroy()
+	{ this.timeoutTask.cancel(false); }
+
+	/**
+	 * Make a port a router port in every VLAN, whether or not queries
+	 * arrive on it.
+	 * @param ifaceIndex index of the interface
+	 */
+	public synchronized void setRouterPort(int ifaceIndex)
+	{
+		boolean[] staticRouters = Arrays.copyOf(this.staticRouters,
+				Math.max(this.staticRouters.length, ifaceIndex + 1));
+		staticRouters[ifaceIndex] = true;
+		this.staticRouters = staticRouters;
+	}
+
+	/**
+	 * @return true if traffic to a group is forwarded by membership, i.e.,
+	 *         the group is multicast but not link-local
+	 */
+	public static boolean isSnooped(int group)
+	{ return (0xe == (group >>> 28) && (group >>> 8) != 0xe00000); }
+
+	/**
+	 * Learn from an IGMP message arriving on a port.
+	 * @param vlan VLAN in which the message arrived
+	 * @param igmp the message
+	 * @param ifaceIndex index of the interface on which the message arrived
+	 */
+	public void receive(int vlan, IGMP igmp, int ifaceIndex)
+	{
+		switch (igmp.getType())
+		{
+		case IGMP.TYPE_MEMBERSHIP_QUERY:
+			this.refresh(vlan, ROUTERS, ifaceIndex, ROUTER_TIMEOUT);
+			break;
+		case IGMP.TYPE_V1_MEMBERSHIP_REPORT:
+		case IGMP.TYPE_V2_MEMBERSHIP_REPORT:
+			this.join(vlan, igmp.getGroupAddress(), ifaceIndex);
+			break;
+		case IGMP.TYPE_LEAVE_GROUP:
+			this.leave(vlan, igmp.getGroupAddress(), ifaceIndex);
+			break;
+		case IGMP.TYPE_V3_MEMBERSHIP_REPORT:
+			for (IGMP.GroupRecord record : igmp.getRecords())
+			{
+				// Sources aren't tracked, so a port stays a member while it
+				// wants any source; blocking some sources says nothing about
+				// the rest
+				byte type = record.getRecordType();
+				if (IGMP.BLOCK_OLD_SOURCES == type)
+				{ continue; }
+				if ((IGMP.MODE_IS_INCLUDE == type
+						|| IGMP.CHANGE_TO_INCLUDE_MODE == type)
+						&& 0 == record.getSources().length)
+				{ this.leave(vlan, record.getGroupAddress(), ifaceIndex); }
+				else
+				{ this.join(vlan, record.getGroupAddress(), ifaceIndex); }
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Choose the interfaces that lead to members of a group or to multicast
+	 * routers.
+	 * @param vlan VLAN of the traffic
+	 * @param group the group; ROUTERS for only router ports
+	 * @param ifaces candidate interfaces
+	 * @return the chosen interfaces; the candidates themselves if all are
+	 *         chosen
+	 */
+	public Iface[] filter(int vlan, int group, Iface[] ifaces)
+	{
+		long now = Scheduler.currentTimeMillis();
+		long[] members = (ROUTERS == group ? null
+				: this.entries.get(getKey(vlan, group)));
+		long[] routers = this.entries.get(getKey(vlan, ROUTERS));
+		boolean[] staticRouters = this.staticRouters;
+
+		// Copy the candidates only once one isn't chosen
+		Iface[] chosen = null;
+		int count = 0;
+		for (int i = 0; i < ifaces.length; i++)
+		{
+			int ifaceIndex = ifaces[i].getIndex();
+			if (isCurrent(members, ifaceIndex, now)
+					|| isCurrent(routers, ifaceIndex, now)
+					|| (ifaceIndex < staticRouters.length
+						&& staticRouters[ifaceIndex]))
+			{
+				if (chosen != null)
+				{ chosen[count] = ifaces[i]; }
+				count++;
+			}
+			else if (null == chosen)
+			{ chosen = Arrays.copyOf(ifaces, ifaces.length); }
+		}
+		if (null == chosen)
+		{ return ifaces; }
+		return Arrays.copyOf(chosen, count);
+	}
+
+	/**
+	 * @return true if a port leads to members of a group in a VLAN
+	 */
+	public boolean isMember(int vlan, int group, int ifaceIndex)
+	{
+		return isCurrent(this.entries.get(getKey(vlan, group)), ifaceIndex,
+				Scheduler.currentTimeMillis());
+	}
+
+	private static boolean isCurrent(long[] expires, int ifaceIndex,
+			long now)
+	{
+		return (expires != null && ifaceIndex < expires.length
+				&& expires[ifaceIndex] > now);
+	}
+
+	private static long getKey(int vlan, int group)
+	{ return ((long)vlan << 32) | (group & 0xffffffffL); }
+
+	private void join(int vlan, int group, int ifaceIndex)
+	{
+		if (isSnooped(group))
+		{ this.refresh(vlan, group, ifaceIndex, MEMBERSHIP_TIMEOUT); }
+	}
+
+	/**
+	 * Shorten a port's membership of a group, so it ends soon unless a
+	 * member answers the router's queries.
+	 */
+	private synchronized void leave(int vlan, int group, int ifaceIndex)
+	{
+		long key = getKey(vlan, group);
+		long[] expires = this.entries.get(key);
+		long leaveExpires = Scheduler.currentTimeMillis() + LEAVE_TIMEOUT;
+		if (null == expires || ifaceIndex >= expires.length
+				|| expires[ifaceIndex] <= leaveExpires)
+		{ return; }
+		expires = expires.clone();
+		expires[ifaceIndex] = leaveExpires;
+		this.entries.put(key, expires);
+	}
+
+	private synchronized void refresh(int vlan, int group, int ifaceIndex,
+			int timeout)
+	{
+		long key = getKey(vlan, group);
+		long[] expires = this.entries.get(key);
+		if (null == expires)
+		{ expires = new long[ifaceIndex + 1]; }
+		else
+		{
+			expires = Arrays.copyOf(expires,
+					Math.max(expires.length, ifaceIndex + 1));
+		}
+		expires[ifaceIndex] = Scheduler.currentTimeMillis() + timeout;
+		this.entries.put(key, expires);
+	}
+
+	/**
+	 * Every sweep period: remove groups with no current members.
+	 */
+	public synchronized void run()
+	{
+		long now = Scheduler.currentTimeMillis();
+		Iterator<long[]> it = this.entries.values().iterator();
+		while (it.hasNext())
+		{
+			long[] expires = it.next();
+			boolean current = false;
+			for (long expiry : expires)
+			{ current |= (expiry > now); }
+			if (!current)
+			{ it.remove(); }
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Static link aggregation groups for a switch. Each group bundles several
+ * interfaces into one logical port, identified by the index of the group's
+ * first member, so addresses are learned, and the spanning tree, VLANs and
+ * other per-port settings apply, on the group as a whole. Frames sent to a
+ * group go out the member chosen by a hash of the frame's flow, so a flow's
+ * frames stay in order on one link while different flows spread across
+ * all of them.
+ */
+public class LinkAggregation
+{
+	/** Logical port of each interface: the index of the first member of its
+	 *  group, or its own index if it isn't aggregated; indexed by interface
+	 *  index */
+	private int[] ports;
+
+	/** Members of each group, indexed by the group's logical port; null for
+	 *  ports that aren't groups */
+	private Iface[][] members;
+
+	/** First member of each group; maps group names to interfaces */
+	private Map<String,Iface> groups;
+
+	public LinkAggregation()
+	{
+		this.ports = new int[0];
+		this.members = new Iface[0][];
+		this.groups = new HashMap<String,Iface>();
+	}
+
+	/**
+	 * Bundle interfaces into a group.
+	 * @param name name of the group
+	 * @param ifaces the members
+	 * @return false if an interface already belongs to a group, otherwise
+	 *         true
+	 */
+	public boolean addGroup(String name, Iface[] ifaces)
+	{
+		Iface[] members = ifaces.clone();
+		Arrays.sort(members, new Comparator<Iface>()
+		{
+			public int compare(Iface a, Iface b)
+			{ return Integer.compare(a.getIndex(), b.getIndex()); }
+		});
+		for (Iface member : members)
+		{
+			this.ensureInterface(member.getIndex());
+			if (this.ports[member.getIndex()] != member.getIndex()
+					|| this.members[member.getIndex()] != null)
+			{ return false; }
+		}
+
+		int port = members[0].getIndex();
+		for (Iface member : members)
+		{ this.ports[member.getIndex()] = port; }
+		this.members[port] = members;
+		this.groups.put(name, members[0]);
+		return true;
+	}
+
+	/**
+	 * @return the first member of a group, which stands for the group in
+	 *         per-port settings; null if there is no such group
+	 */
+	public Iface getGroup(String name)
+	{ return this.groups.get(name); }
+
+	/**
+	 * @return logical port of an interface
+	 */
+	public int getPort(int ifaceIndex)
+	{
+		if (ifaceIndex >= this.ports.length)
+		{ return ifaceIndex; }
+		return this.ports[ifaceIndex];
+	}
+
+	/**
+	 * @return true if an interface belongs to a group but doesn't stand for
+	 *         it, so frames are never flooded out it
+	 */
+	public boolean isSecondary(int ifaceIndex)
+	{ return (this.getPort(ifaceIndex) != ifaceIndex); }
+
+	/**
+	 * @return members of the group a logical port stands for; null if the
+	 *         port isn't a group
+	 */
+	public Iface[] getMembers(int port)
+	{
+		if (port < 0 || port >= this.members.length)
+		{ return null; }
+		return this.members[port];
+	}
+
+	/**
+	 * Choose the member of a group out which to send a frame.
+	 * @param members members of the group
+	 * @param flowHash hash of the frame's flow
+	 * @return the member
+	 */
+	public static Iface selectMember(Iface[] members, int flowHash)
+	{ return members[(flowHash & 0x7fffffff) % members.length]; }
+
+	private void ensureInterface(int ifaceIndex)
+	{
+		int count = this.ports.length;
+		if (ifaceIndex < count)
+		{ return; }
+		this.ports = Arrays.copyOf(this.ports, ifaceIndex + 1);
+		this.members = Arrays.copyOf(this.members, ifaceIndex + 1);
+		for (int i = count; i <= ifaceIndex; i++)
+		{ this.ports[i] = i; }
+	}
+}
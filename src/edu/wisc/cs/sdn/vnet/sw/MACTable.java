@@ -1,77 +1,560 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-import edu.wisc.cs.sdn.vnet.Iface;
-
-import net.floodlightcontroller.packet.MACAddress;
+import edu.wisc.cs.sdn.vnet.LongHashTable;
+import edu.wisc.cs.sdn.vnet.Scheduler;
 
 /**
- * A MAC learning table.
+ * A MAC learning table, keyed by VLAN and MAC address. Keys are packed into
+ * longs and kept in a LongHashTable; the index of the interface an entry
+ * was learned on is kept in a parallel array, written before the key is
+ * published and checked against the key again after it is read, so readers
+ * see a consistent entry without locking. Other changes are made
+ * with the table locked, except refreshing an entry, the common case when
+ * learning, which only writes the entry's update time and reference bit.
+ * A refresh that races with its slot being reused or the table being
+ * replaced may instead refresh another entry, which only delays that
+ * entry's expiry, and is redone with the table locked.
+ * <p>
+ * Entries expire lazily: a lookup ignores an entry that hasn't been updated
+ * within the timeout. A background task reclaims expired slots, sweeping a
+ * bounded slice of the table each time it runs, so aging costs the same
+ * however large the table grows. Times come from the scheduler's coarse
+ * clock.
+ * <p>
+ * The table can be limited in size, in which case the least recently used
+ * entries are evicted, approximately, by the CLOCK algorithm; and each
+ * interface can be limited in how many addresses are learned on it, in
+ * which case further addresses are refused until entries expire.
+ * <p>
+ * Moves of an address between interfaces can be dampened: an address that
+ * moves too often within a window, e.g., because of a loop, is held for a
+ * time, either frozen on the interface it was on, ignoring further moves,
+ * or blackholed, so frames from and to it are dropped.
  * @author Aaron Gember-Jacobson
  */
 public class MACTable implements Runnable
 {
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
-	
-	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
-	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+
+	/** Interval (in milliseconds) between sweeps for expired entries */
+	private static final int SWEEP_PERIOD = 100;
+
+	/** Slots examined per sweep */
+	private static final int SWEEP_SLICE = 1024;
+
+	/** Initial number of slots; always a power of two */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** Bits of a key holding the MAC address, below the VLAN ID */
+	private static final int MAC_BITS = 48;
+
+	/** Bit set in the first octet of group (multicast and broadcast) MACs */
+	private static final long GROUP_BIT = 1L << 40;
+
+	/** Returned by lookup and learnAndLookup for blackholed addresses */
+	public static final int BLACKHOLED = -2;
+
+	/** Keys, which can't be EMPTY or DELETED since VLAN IDs are at least 1
+	 *  and at most 12 bits, with per-slot interface indexes, per-slot
+	 *  update times, per-slot CLOCK reference bits and per-slot move state */
+	private static class Table extends LongHashTable
+	{
+		int[] indices;
+		long[] updated;
+		boolean[] referenced;
+
+		/** Moves within the current window, the time the window started,
+		 *  and the time a hold on the address ends (0 if not held) */
+		int[] moves;
+		long[] moveWindows;
+		long[] held;
+
+		Table(int capacity)
+		{
+			super(capacity);
+			this.indices = new int[capacity];
+			this.updated = new long[capacity];
+			this.referenced = new boolean[capacity];
+			this.moves = new int[capacity];
+			this.moveWindows = new long[capacity];
+			this.held = new long[capacity];
+		}
+	}
+
+	/** Current table; writers hold the MAC table's lock */
+	private volatile Table table;
+
+	/** Task, run on the shared timers, for timing out entries */
+	private ScheduledFuture<?> timeoutTask;
+
+	/** Slot at which the next sweep starts */
+	private int sweepCursor;
+
+	/** Most entries in the table; 0 for no limit */
+	private int capacity;
+
+	/** Most entries learned on each interface, 0 for no limit, and number
+	 *  of entries learned on each interface; indexed by interface index */
+	private int[] ifaceLimits;
+	private int[] ifaceCounts;
+
+	/** Slot at which the next search for an entry to evict starts */
+	private int clockHand;
+
+	/** Number of entries evicted to make room for new entries */
+	private long evictions;
+
+	/** Number of addresses not learned because of an interface's limit */
+	private long refusals;
+
+	/** Moves within a window that make an address flap; 0 to not dampen
+	 *  moves */
+	private int flapThreshold;
+
+	/** Time (in milliseconds) within which moves are counted, and time for
+	 *  which a flapping address is held */
+	private int flapWindow;
+	private int holdTime;
+
+	/** True to blackhole flapping addresses, false to freeze them */
+	private boolean blackhole;
+
+	/** Number of moves between interfaces, number of times an address was
+	 *  held for flapping, and number of moves ignored while held */
+	private long moves;
+	private long flaps;
+	private long heldMoves;
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
-	 * @param sw switch to which this table belongs
 	 */
 	public MACTable()
 	{
-		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
+		this.table = new Table(INITIAL_CAPACITY);
+		this.sweepCursor = 0;
+		this.capacity = 0;
+		this.ifaceLimits = new int[0];
+		this.ifaceCounts = new int[0];
+		this.clockHand = 0;
+		this.evictions = 0;
+		this.refusals = 0;
+		this.flapThreshold = 0;
+		this.flapWindow = 0;
+		this.holdTime = 0;
+		this.blackhole = false;
+		this.moves = 0;
+		this.flaps = 0;
+		this.heldMoves = 0;
+		timeoutTask = Scheduler.getTimers().scheduleAtFixedRate(this,
+				SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop timing out entries.
+	 */
+	public void destroy()
+	{ this.timeoutTask.cancel(false); }
+
+	/**
+	 * @return number of entries in the table, including expired entries
+	 *         that haven't been reclaimed yet
+	 */
+	public int getSize()
+	{ return this.table.getSize(); }
+
+	/**
+	 * @param capacity most entries in the table; 0 for no limit
+	 */
+	public synchronized void setCapacity(int capacity)
+	{
+		this.capacity = capacity;
+		while (capacity > 0 && this.table.getSize() > capacity)
+		{ this.evict(); }
+	}
+
+	/**
+	 * @param ifaceIndex index of an interface
+	 * @param limit most entries learned on the interface; 0 for no limit
+	 */
+	public synchronized void setInterfaceLimit(int ifaceIndex, int limit)
+	{
+		this.ensureInterface(ifaceIndex);
+		this.ifaceLimits[ifaceIndex] = limit;
+	}
+
+	/**
+	 * Dampen moves of addresses between interfaces.
+	 * @param threshold moves within a window that make an address flap; 0
+	 *        to not dampen moves
+	 * @param window time (in milliseconds) within which moves are counted
+	 * @param holdTime time (in milliseconds) for which a flapping address
+	 *        is held
+	 * @param blackhole true to drop frames from and to a flapping address,
+	 *        false to freeze it on the interface it was on
+	 */
+	public synchronized void setFlapDampening(int threshold, int window,
+			int holdTime, boolean blackhole)
+	{
+		this.flapThreshold = threshold;
+		this.flapWindow = window;
+		this.holdTime = holdTime;
+		this.blackhole = blackhole;
+	}
+
+	/**
+	 * @return number of entries evicted to make room for new entries
+	 */
+	public synchronized long getEvictions()
+	{ return this.evictions; }
+
+	/**
+	 * @return number of addresses not learned because an interface had
+	 *         reached its limit
+	 */
+	public synchronized long getRefusals()
+	{ return this.refusals; }
+
+	/**
+	 * @return number of times an address moved between interfaces
+	 */
+	public synchronized long getMoves()
+	{ return this.moves; }
+
+	/**
+	 * @return number of times an address was held for flapping
+	 */
+	public synchronized long getFlaps()
+	{ return this.flaps; }
+
+	/**
+	 * @return number of moves ignored because the address was held
+	 */
+	public synchronized long getHeldMoves()
+	{ return this.heldMoves; }
+
+	/**
+	 * @return number of entries learned on an interface
+	 */
+	public synchronized int getInterfaceCount(int ifaceIndex)
+	{
+		if (ifaceIndex < 0 || ifaceIndex >= this.ifaceCounts.length)
+		{ return 0; }
+		return this.ifaceCounts[ifaceIndex];
+	}
+
+	/**
+	 * @param vlan VLAN ID, from 1 to 4094
+	 * @param macAddress MAC address, as returned by MACAddress.toLong()
+	 * @return the key for the MAC address in the VLAN
+	 */
+	public static long getKey(int vlan, long macAddress)
+	{ return ((long)vlan << MAC_BITS) | macAddress; }
+
+	/**
+	 * Learn the interface on which a MAC address is reached.
+	 * @param key VLAN and MAC address, as returned by getKey()
+	 * @param ifaceIndex index of the interface
+	 * @return false if the address is blackholed, otherwise true
+	 */
+	public boolean insert(long key, int ifaceIndex)
+	{
+		if ((key & GROUP_BIT) != 0 || LongHashTable.EMPTY == key
+				|| ifaceIndex < 0)
+		{ return true; }
+
+		// Refreshing an existing entry, by far the common case, only touches
+		// its update time and reference bit; the slot is checked again once
+		// they are written
+		Table table = this.table;
+		int slot = table.find(key);
+		if (slot >= 0 && getIndex(table, slot, key) == ifaceIndex)
+		{
+			long now = Scheduler.currentTimeMillis();
+			long held = table.held[slot];
+			table.updated[slot] = now;
+			table.referenced[slot] = true;
+			VarHandle.fullFence();
+			if (table.holds(slot, key) && this.table == table)
+			{ return !(held != 0 && this.blackhole && held > now); }
+		}
+
+		synchronized (this)
+		{ return this.put(key, ifaceIndex); }
+	}
+
+	/**
+	 * Look up the interface on which a MAC address is reached.
+	 * @param key VLAN and MAC address, as returned by getKey()
+	 * @return index of the interface; -1 if the address is unknown;
+	 *         BLACKHOLED if the address is blackholed
+	 */
+	public int lookup(long key)
+	{
+		Table table = this.table;
+		int slot = table.find(key);
+		if (slot < 0)
+		{ return -1; }
+		int ifaceIndex = getIndex(table, slot, key);
+		if (ifaceIndex < 0)
+		{ return -1; }
+		long now = Scheduler.currentTimeMillis();
+		if (now - table.updated[slot] > TIMEOUT)
+		{ return -1; }
+		if (table.held[slot] != 0 && this.blackhole && table.held[slot] > now)
+		{ return BLACKHOLED; }
+		table.referenced[slot] = true;
+		return ifaceIndex;
+	}
+
+	/**
+	 * Learn the interface on which a frame's source is reached, and look up
+	 * the interface on which its destination is reached.
+	 * @param srcKey VLAN and source MAC address
+	 * @param ifaceIndex index of the interface on which the frame arrived
+	 * @param dstKey VLAN and destination MAC address
+	 * @return index of the interface for the destination; -1 if the
+	 *         destination is unknown or a group address; BLACKHOLED if the
+	 *         source or destination is blackholed
+	 */
+	public int learnAndLookup(long srcKey, int ifaceIndex, long dstKey)
+	{
+		if (!this.insert(srcKey, ifaceIndex))
+		{ return BLACKHOLED; }
+		if ((dstKey & GROUP_BIT) != 0)
+		{ return -1; }
+		return this.lookup(dstKey);
+	}
+
+	/**
+	 * Remove the entries learned on some interfaces, e.g., after a topology
+	 * change.
+	 * @param ifaces true for each interface, by index, whose entries should
+	 *        be removed
+	 */
+	public synchronized void flush(boolean[] ifaces)
+	{
+		Table table = this.table;
+		for (int slot = 0; slot < table.getCapacity(); slot++)
+		{
+			if (!table.isEntry(slot))
+			{ continue; }
+			int ifaceIndex = table.indices[slot];
+			if (ifaceIndex < ifaces.length && ifaces[ifaceIndex])
+			{ this.remove(table, slot); }
+		}
+	}
+
+	/**
+	 * @return the interface index in a slot found to hold a key; -1 if the
+	 *         slot has since been reused for another key
+	 */
+	private static int getIndex(Table table, int slot, long key)
+	{
+		int ifaceIndex = table.indices[slot];
+		if (!table.holds(slot, key))
+		{ return -1; }
+		return ifaceIndex;
 	}
-	
-	public void insert(MACAddress macAddress, Iface iface)
+
+	/**
+	 * Add or update an entry; called with the table locked.
+	 * @return false if the address is blackholed, otherwise true
+	 */
+	private boolean put(long key, int ifaceIndex)
 	{
-		MACTableEntry entry = this.lookup(macAddress);
-		if(entry != null)
-		{ entry.update(iface); }
-		else
-		{ 
-			entry = new MACTableEntry(macAddress, iface);
-			this.entries.put(macAddress, entry); 
+		Table table = this.table;
+		long now = Scheduler.currentTimeMillis();
+		this.ensureInterface(ifaceIndex);
+		int moves = 0;
+		long moveWindow = now;
+		long held = 0;
+		int slot = table.find(key);
+		if (slot >= 0 && table.indices[slot] == ifaceIndex)
+		{
+			// A refresh that raced with a change to the table
+			table.updated[slot] = now;
+			table.referenced[slot] = true;
+			held = table.held[slot];
+			return !(held != 0 && this.blackhole && held > now);
+		}
+		if (slot >= 0)
+		{
+			// The address moved to another interface; a move from an expired
+			// entry is a new arrival, not a flap
+			if (now - table.updated[slot] <= TIMEOUT)
+			{
+				this.moves++;
+				moves = table.moves[slot];
+				moveWindow = table.moveWindows[slot];
+				held = table.held[slot];
+				if (held > now)
+				{
+					// Keep the held entry alive while the address is active
+					table.updated[slot] = now;
+					this.heldMoves++;
+					return !this.blackhole;
+				}
+				if (held != 0 || now - moveWindow > this.flapWindow)
+				{
+					moves = 0;
+					moveWindow = now;
+					held = 0;
+				}
+				moves++;
+				if (this.flapThreshold > 0 && moves >= this.flapThreshold)
+				{
+					this.hold(table, slot, key, now);
+					return !this.blackhole;
+				}
+			}
+			this.remove(table, slot);
 		}
+
+		if (this.ifaceLimits[ifaceIndex] > 0 && this.ifaceCounts[ifaceIndex]
+				>= this.ifaceLimits[ifaceIndex])
+		{
+			this.refusals++;
+			return true;
+		}
+		if (this.capacity > 0 && table.getSize() >= this.capacity)
+		{ this.evict(); }
+		if (table.isFull())
+		{ table = this.rehash(table, table.getReplacementCapacity()); }
+
+		slot = table.add(key);
+		table.updated[slot] = now;
+		table.referenced[slot] = true;
+		table.indices[slot] = ifaceIndex;
+		table.moves[slot] = moves;
+		table.moveWindows[slot] = moveWindow;
+		table.held[slot] = held;
+		table.publish(slot, key);
+		this.ifaceCounts[ifaceIndex]++;
+		return true;
+	}
+
+	/**
+	 * Hold a flapping address on the interface it is on; called with the
+	 * table locked.
+	 */
+	private void hold(Table table, int slot, long key, long now)
+	{
+		table.moves[slot] = 0;
+		table.moveWindows[slot] = now;
+		table.held[slot] = now + this.holdTime;
+		table.updated[slot] = now;
+		this.flaps++;
+		this.heldMoves++;
+		System.err.println(String.format("MAC %012x in VLAN %d is flapping; "
+				+ "%s for %d ms", key & ((1L << MAC_BITS) - 1),
+				key >>> MAC_BITS, (this.blackhole ? "blackholed" : "frozen"),
+				this.holdTime));
 	}
-	
-	public MACTableEntry lookup(MACAddress macAddress) 
+
+	/**
+	 * Remove the entry in a slot; called with the table locked.
+	 */
+	private void remove(Table table, int slot)
 	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
+		this.ifaceCounts[table.indices[slot]]--;
+		table.remove(slot);
 	}
-	
+
 	/**
-	 * Every second: timeout MAC table entries.
+	 * Remove an entry that hasn't been used recently, preferring expired
+	 * entries; called with the table locked.
 	 */
-	public void run()
+	private void evict()
 	{
+		Table table = this.table;
+		if (0 == table.getSize())
+		{ return; }
+		long now = Scheduler.currentTimeMillis();
+		int mask = table.getCapacity() - 1;
+
+		// Give each entry a second chance: clear its reference bit the first
+		// time the hand passes, and evict it the second time
+		int slot = this.clockHand & mask;
 		while (true)
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
+			if (table.isEntry(slot))
+			{
+				if (!table.referenced[slot]
+						|| (now - table.updated[slot]) > TIMEOUT)
+				{ break; }
+				table.referenced[slot] = false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		this.remove(table, slot);
+		this.evictions++;
+		this.clockHand = (slot + 1) & mask;
+	}
+
+	private void ensureInterface(int ifaceIndex)
+	{
+		if (ifaceIndex >= this.ifaceCounts.length)
+		{
+			this.ifaceCounts = Arrays.copyOf(this.ifaceCounts, ifaceIndex + 1);
+			this.ifaceLimits = Arrays.copyOf(this.ifaceLimits, ifaceIndex + 1);
+		}
+	}
+
+	/**
+	 * Copy the entries into a new table, dropping removed slots and expired
+	 * entries, and publish it; called with the table locked.
+	 */
+	private Table rehash(Table old, int capacity)
+	{
+		Table table = new Table(capacity);
+		long now = Scheduler.currentTimeMillis();
+		for (int i = 0; i < old.getCapacity(); i++)
+		{
+			if (!old.isEntry(i))
+			{ continue; }
+			if ((now - old.updated[i]) > TIMEOUT)
 			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
+				this.ifaceCounts[old.indices[i]]--;
+				continue;
 			}
+			long key = old.getKey(i);
+			int slot = table.add(key);
+			table.indices[slot] = old.indices[i];
+			table.updated[slot] = old.updated[i];
+			table.referenced[slot] = old.referenced[i];
+			table.moves[slot] = old.moves[i];
+			table.moveWindows[slot] = old.moveWindows[i];
+			table.held[slot] = old.held[i];
+			table.publish(slot, key);
+		}
+		this.table = table;
+		return table;
+	}
+
+	/**
+	 * Every sweep period: reclaim the slots of expired entries in the next
+	 * slice of the table.
+	 */
+	public synchronized void run()
+	{
+		Table table = this.table;
+		long now = Scheduler.currentTimeMillis();
+		int mask = table.getCapacity() - 1;
+		int slot = this.sweepCursor & mask;
+		int count = Math.min(SWEEP_SLICE, table.getCapacity());
+		for (int i = 0; i < count; i++, slot = (slot + 1) & mask)
+		{
+			if (!table.isEntry(slot))
+			{ continue; }
+			if ((now - table.updated[slot]) > TIMEOUT)
+			{ this.remove(table, slot); }
 		}
+		this.sweepCursor = slot;
 	}
 }
@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * VLAN membership of a switch's ports. An access port belongs to one VLAN
+ * and sends and receives its frames untagged. A trunk port belongs to a set
+ * of VLANs and sends and receives their frames tagged, except for frames in
+ * its native VLAN, if it has one, which are untagged; a trunk without a
+ * native VLAN drops untagged frames. Ports that aren't configured are
+ * access ports in the default VLAN.
+ */
+public class PortVlans
+{
+	/** VLAN of ports that aren't configured */
+	public static final int DEFAULT_VLAN = 1;
+
+	/** Largest usable VLAN ID; 0 and 4095 are reserved */
+	public static final int MAX_VLAN = 4094;
+
+	/** Number of 12-bit VLAN IDs */
+	public static final int VLAN_COUNT = 4096;
+
+	/** VLAN of untagged frames on each port, i.e., its access VLAN or its
+	 *  native VLAN; 0 if untagged frames are dropped; indexed by interface
+	 *  index */
+	private int[] untaggedVlans;
+
+	/** VLANs each port belongs to, tagged or untagged; indexed by interface
+	 *  index */
+	private BitSet[] members;
+
+	public PortVlans()
+	{
+		this.untaggedVlans = new int[0];
+		this.members = new BitSet[0];
+	}
+
+	/**
+	 * Make a port an access port.
+	 * @param ifaceIndex index of the interface
+	 * @param vlan the port's VLAN
+	 */
+	public void setAccess(int ifaceIndex, int vlan)
+	{
+		this.ensureInterface(ifaceIndex);
+		this.untaggedVlans[ifaceIndex] = vlan;
+		this.members[ifaceIndex] = new BitSet(VLAN_COUNT);
+		this.members[ifaceIndex].set(vlan);
+	}
+
+	/**
+	 * Make a port a trunk port, without a native VLAN.
+	 * @param ifaceIndex index of the interface
+	 * @param vlans the VLANs the port carries
+	 */
+	public void setTrunk(int ifaceIndex, BitSet vlans)
+	{
+		this.ensureInterface(ifaceIndex);
+		this.untaggedVlans[ifaceIndex] = 0;
+		this.members[ifaceIndex] = (BitSet)vlans.clone();
+	}
+
+	/**
+	 * Set the VLAN of untagged frames on a trunk port.
+	 * @param ifaceIndex index of the interface
+	 * @param vlan the port's native VLAN
+	 */
+	public void setNative(int ifaceIndex, int vlan)
+	{
+		this.ensureInterface(ifaceIndex);
+		this.untaggedVlans[ifaceIndex] = vlan;
+		this.members[ifaceIndex].set(vlan);
+	}
+
+	/**
+	 * Decide which VLAN a frame arriving on a port is in.
+	 * @param ifaceIndex index of the interface on which the frame arrived
+	 * @param tagVlan VLAN ID in the frame's tag; 0 or less if the frame is
+	 *        untagged or only priority tagged
+	 * @return the frame's VLAN; 0 if the port doesn't accept the frame
+	 */
+	public int getIngressVlan(int ifaceIndex, int tagVlan)
+	{
+		if (tagVlan <= 0)
+		{
+			if (ifaceIndex >= this.untaggedVlans.length)
+			{ return DEFAULT_VLAN; }
+			return this.untaggedVlans[ifaceIndex];
+		}
+		if (!this.isMember(ifaceIndex, tagVlan))
+		{ return 0; }
+		return tagVlan;
+	}
+
+	/**
+	 * @return true if a port belongs to a VLAN
+	 */
+	public boolean isMember(int ifaceIndex, int vlan)
+	{
+		if (ifaceIndex >= this.members.length)
+		{ return (DEFAULT_VLAN == vlan); }
+		return this.members[ifaceIndex].get(vlan);
+	}
+
+	/**
+	 * @return true if a port sends frames in a VLAN it belongs to tagged
+	 */
+	public boolean isTagged(int ifaceIndex, int vlan)
+	{
+		if (ifaceIndex >= this.untaggedVlans.length)
+		{ return (vlan != DEFAULT_VLAN); }
+		return (vlan != this.untaggedVlans[ifaceIndex]);
+	}
+
+	private void ensureInterface(int ifaceIndex)
+	{
+		int count = this.members.length;
+		if (ifaceIndex < count)
+		{ return; }
+		this.untaggedVlans = Arrays.copyOf(this.untaggedVlans, ifaceIndex + 1);
+		this.members = Arrays.copyOf(this.members, ifaceIndex + 1);
+		for (int i = count; i <= ifaceIndex; i++)
+		{
+			this.untaggedVlans[i] = DEFAULT_VLAN;
+			this.members[i] = new BitSet(VLAN_COUNT);
+			this.members[i].set(DEFAULT_VLAN);
+		}
+	}
+}
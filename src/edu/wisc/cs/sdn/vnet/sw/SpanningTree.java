@@ -0,0 +1,893 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.BPDU;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Scheduler;
+
+/**
+ * Rapid Spanning Tree Protocol (IEEE 802.1w) for a switch. Each port is
+ * given a role, from the priority vectors in the BPDUs it receives, and a
+ * state saying whether frames arriving on or leaving through it are
+ * forwarded and learned.
+ * <p>
+ * Convergence is fast on the point-to-point links of a virtual network: a
+ * designated port proposes to forward, and the bridge on the other end
+ * agrees once its own designated ports are in sync, so the tree settles in
+ * a few BPDU round trips instead of two forward delays. A designated port
+ * that hears no BPDUs, e.g., one facing a host, is taken to be an edge port
+ * after EDGE_DELAY. Ports facing bridges that never agree fall back to the
+ * forward delay timer.
+ * <p>
+ * Port states are read on every frame, so they are published as an array
+ * that is replaced, not modified, when a state changes; everything else is
+ * guarded by the spanning tree's lock.
+ */
+public class SpanningTree implements Runnable
+{
+	/** Port roles */
+	public static final int ROLE_ROOT = 0;
+	public static final int ROLE_DESIGNATED = 1;
+	public static final int ROLE_ALTERNATE = 2;
+	public static final int ROLE_BACKUP = 3;
+	public static final int ROLE_DISABLED = 4;
+
+	/** Port states */
+	public static final int STATE_DISCARDING = 0;
+	public static final int STATE_LEARNING = 1;
+	public static final int STATE_FORWARDING = 2;
+
+	/** Default bridge priority; lower is preferred as the root */
+	public static final int DEFAULT_PRIORITY = 32768;
+
+	/** Default path cost for a port (that of a 1 Gb/s link) */
+	public static final int DEFAULT_PATH_COST = 20000;
+
+	/** Priority of every port; breaks ties between ports of a bridge */
+	private static final int PORT_PRIORITY = 128;
+
+	/** Timers (in milliseconds) */
+	private static final int HELLO_TIME = 2000;
+	private static final int MAX_AGE = 20000;
+	private static final int FORWARD_DELAY = 15000;
+
+	/** Time (in milliseconds) a proposing designated port waits for a BPDU
+	 *  before taking itself to be an edge port */
+	private static final int EDGE_DELAY = 3000;
+
+	/** Interval (in milliseconds) between runs of the timers */
+	private static final int TICK_PERIOD = 500;
+
+	/** Most BPDUs sent out a port per second */
+	private static final int TX_HOLD_COUNT = 6;
+
+	/** Times in BPDUs are in 1/256ths of a second */
+	private static final int BPDU_TIME_UNIT = 256;
+
+	private static final String[] ROLE_NAMES =
+			{ "root", "designated", "alternate", "backup", "disabled" };
+	private static final String[] STATE_NAMES =
+			{ "discarding", "learning", "forwarding" };
+
+	/** Spanning tree information for one port */
+	private static class Port
+	{
+		int index;
+		int portId;
+		int pathCost;
+		int role;
+		int state;
+
+		/** True if the port is known to face an end station, because it was
+		 *  configured that way or because it hears no BPDUs */
+		boolean adminEdge;
+		boolean edge;
+
+		/** True if the port takes no part in the spanning tree */
+		boolean disabled;
+
+		/** Priority vector last received from the designated bridge for the
+		 *  port's link, and its message age; valid if hasInfo is true */
+		boolean hasInfo;
+		long infoRootId;
+		int infoRootCost;
+		long infoBridgeId;
+		int infoPortId;
+		int infoMessageAge;
+
+		/** Time at which the received information ages out */
+		long infoExpires;
+
+		/** True while a designated port offers to forward without waiting for
+		 *  the forward delay, and once the other end has agreed */
+		boolean proposing;
+		boolean agreed;
+
+		/** True if the next BPDU sent agrees to the other end's proposal */
+		boolean agree;
+
+		/** Time at which a designated port that hasn't been agreed to moves
+		 *  to its next state */
+		long forwardDelayExpires;
+
+		/** Time at which a proposing designated port that hasn't received
+		 *  any BPDUs becomes an edge port */
+		long edgeDelayExpires;
+
+		/** Time until which BPDUs sent out the port carry the topology
+		 *  change flag */
+		long tcExpires;
+
+		/** True if a BPDU should be sent at the next opportunity */
+		boolean newInfo;
+
+		/** Time at which the next periodic BPDU is sent */
+		long nextHello;
+
+		/** BPDUs sent in the current second */
+		int txCount;
+		long txSecond;
+	}
+
+	private Switch sw;
+
+	/** Bridge priority and the bridge identifier built from it */
+	private int priority;
+	private long bridgeId;
+
+	/** Root bridge, cost to reach it, port through which it is reached (-1
+	 *  if this bridge is the root) and the message age of its BPDUs */
+	private long rootId;
+	private int rootPathCost;
+	private int rootPort;
+	private int rootMessageAge;
+
+	/** Ports, indexed by interface index */
+	private Port[] ports;
+
+	/** State of each port, indexed by interface index; replaced, not
+	 *  modified, when a state changes */
+	private volatile byte[] states;
+
+	/** Incremented whenever a port's state changes */
+	private volatile int version;
+
+	/** Task, run on the shared timers, for running the timers */
+	private ScheduledFuture<?> tickTask;
+
+	/**
+	 * Creates a spanning tree for a switch. Every port discards until the
+	 * spanning tree is started.
+	 * @param sw the switch
+	 */
+	public SpanningTree(Switch sw)
+	{
+		this.sw = sw;
+		this.priority = DEFAULT_PRIORITY;
+		this.bridgeId = 0;
+		this.rootId = 0;
+		this.rootPathCost = 0;
+		this.rootPort = -1;
+		this.rootMessageAge = 0;
+		this.ports = new Port[0];
+		this.states = new byte[0];
+		this.version = 0;
+		this.tickTask = null;
+	}
+
+	/**
+	 * @param priority bridge priority, from 0 to 61440 in steps of 4096;
+	 *        lower is preferred as the root
+	 */
+	public synchronized void setPriority(int priority)
+	{ this.priority = priority; }
+
+	/**
+	 * @param ifaceIndex index of an interface
+	 * @param pathCost cost of reaching the root through the interface
+	 */
+	public synchronized void setPathCost(int ifaceIndex, int pathCost)
+	{
+		Port port = this.getPort(ifaceIndex, System.currentTimeMillis());
+		if (port != null)
+		{ port.pathCost = pathCost; }
+	}
+
+	/**
+	 * Configure an interface as an edge port, i.e., one facing end stations,
+	 * which forwards as soon as it is up.
+	 * @param ifaceIndex index of an interface
+	 */
+	public synchronized void setEdgePort(int ifaceIndex)
+	{
+		Port port = this.getPort(ifaceIndex, System.currentTimeMillis());
+		if (port != null)
+		{ port.adminEdge = true; }
+	}
+
+	/**
+	 * Exclude an interface from the spanning tree, e.g., because it belongs
+	 * to a link aggregation group whose first member stands for the whole
+	 * group. The interface discards and sends no BPDUs.
+	 * @param ifaceIndex index of an interface
+	 */
+	public synchronized void setDisabled(int ifaceIndex)
+	{
+		long now = System.currentTimeMillis();
+		Port port = this.getPort(ifaceIndex, now);
+		if (port != null)
+		{
+			port.disabled = true;
+			this.initPort(port, now);
+		}
+	}
+
+	/**
+	 * Start running the protocol. The bridge identifier is derived from the
+	 * lowest MAC address of the switch's interfaces.
+	 */
+	public synchronized void start()
+	{
+		long now = System.currentTimeMillis();
+		this.ensurePorts(now);
+
+		long address = -1;
+		for (int i = 0; i < this.sw.getInterfaceCount(); i++)
+		{
+			MACAddress mac = this.sw.getInterface(i).getMacAddress();
+			if (mac != null && Long.compareUnsigned(mac.toLong(), address) < 0)
+			{ address = mac.toLong(); }
+		}
+		if (-1 == address)
+		{
+			// No addresses; make up a locally administered one
+			address = (0x020000000000L
+					| (this.sw.getHost().hashCode() & 0xffffffffL));
+		}
+		this.bridgeId = ((long)this.priority << 48) | address;
+		this.rootId = this.bridgeId;
+
+		for (Port port : this.ports)
+		{ this.initPort(port, now); }
+		this.updateRoles(now);
+		this.sendPending(now);
+		this.publish();
+
+		this.tickTask = Scheduler.getTimers().scheduleAtFixedRate(this,
+				TICK_PERIOD, TICK_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop running the timers.
+	 */
+	public synchronized void stop()
+	{
+		if (this.tickTask != null)
+		{ this.tickTask.cancel(false); }
+	}
+
+	/**
+	 * @return true if frames received on an interface may be forwarded, and
+	 *         frames may be sent out it
+	 */
+	public boolean isForwarding(int ifaceIndex)
+	{
+		byte[] states = this.states;
+		return (ifaceIndex >= 0 && ifaceIndex < states.length
+				&& STATE_FORWARDING == states[ifaceIndex]);
+	}
+
+	/**
+	 * @return true if the source addresses of frames received on an
+	 *         interface may be learned
+	 */
+	public boolean isLearning(int ifaceIndex)
+	{
+		byte[] states = this.states;
+		return (ifaceIndex >= 0 && ifaceIndex < states.length
+				&& states[ifaceIndex] != STATE_DISCARDING);
+	}
+
+	/**
+	 * @return a number that changes whenever a port's state changes
+	 */
+	public int getVersion()
+	{ return this.version; }
+
+	/**
+	 * @return role of an interface's port; -1 if the interface is unknown
+	 */
+	public synchronized int getPortRole(int ifaceIndex)
+	{
+		if (ifaceIndex < 0 || ifaceIndex >= this.ports.length)
+		{ return -1; }
+		return this.ports[ifaceIndex].role;
+	}
+
+	/**
+	 * @return state of an interface's port; -1 if the interface is unknown
+	 */
+	public synchronized int getPortState(int ifaceIndex)
+	{
+		if (ifaceIndex < 0 || ifaceIndex >= this.ports.length)
+		{ return -1; }
+		return this.ports[ifaceIndex].state;
+	}
+
+	/**
+	 * @return identifier of the root bridge
+	 */
+	public synchronized long getRootId()
+	{ return this.rootId; }
+
+	/**
+	 * @return identifier of this bridge
+	 */
+	public synchronized long getBridgeId()
+	{ return this.bridgeId; }
+
+	/**
+	 * @return true if every port has settled, i.e., forwards or has a role
+	 *         in which it discards
+	 */
+	public synchronized boolean isStable()
+	{
+		for (Port port : this.ports)
+		{
+			if ((ROLE_ROOT == port.role || ROLE_DESIGNATED == port.role)
+					&& port.state != STATE_FORWARDING)
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Handle a BPDU received on an interface.
+	 * @param bpdu the BPDU
+	 * @param inIface the interface on which the BPDU was received
+	 */
+	public synchronized void receive(BPDU bpdu, Iface inIface)
+	{
+		long now = System.currentTimeMillis();
+		Port port = this.getPort(inIface.getIndex(), now);
+		if (null == port || port.disabled || null == this.tickTask)
+		{ return; }
+
+		// Hearing BPDUs means the port faces another bridge
+		port.edge = false;
+		port.edgeDelayExpires = now + EDGE_DELAY;
+
+		if (BPDU.TYPE_TCN == bpdu.getType())
+		{
+			this.topologyChange(port, true, now);
+			this.sendPending(now);
+			return;
+		}
+		if (bpdu.getMessageAge() >= bpdu.getMaxAge())
+		{ return; }
+
+		// STP configuration BPDUs are always sent by designated ports
+		int senderRole = BPDU.ROLE_DESIGNATED;
+		if (BPDU.TYPE_RST == bpdu.getType())
+		{ senderRole = bpdu.getPortRole(); }
+
+		if (BPDU.ROLE_DESIGNATED == senderRole)
+		{
+			port.hasInfo = true;
+			port.infoRootId = bpdu.getRootId();
+			port.infoRootCost = bpdu.getRootPathCost();
+			port.infoBridgeId = bpdu.getBridgeId();
+			port.infoPortId = bpdu.getPortId() & 0xffff;
+			port.infoMessageAge = bpdu.getMessageAge();
+			int helloTime = Math.max(1000,
+					bpdu.getHelloTime() * 1000 / BPDU_TIME_UNIT);
+			port.infoExpires = now + 3 * helloTime;
+			this.updateRoles(now);
+
+			if (bpdu.hasFlag(BPDU.FLAG_PROPOSAL))
+			{
+				if (ROLE_ROOT == port.role)
+				{
+					// Make sure no designated port can form a loop before
+					// the root port forwards
+					this.sync(now);
+					this.setState(port, STATE_FORWARDING, now);
+					port.agree = true;
+					port.newInfo = true;
+				}
+				else if (port.role != ROLE_DESIGNATED)
+				{
+					// Alternate and backup ports discard, so they are in sync
+					port.agree = true;
+					port.newInfo = true;
+				}
+			}
+
+			// Answer inferior information with our own
+			if (ROLE_DESIGNATED == port.role)
+			{ port.newInfo = true; }
+		}
+		else
+		{
+			// The other end isn't designated for the link, so any
+			// information we hold from it is stale
+			if (port.hasInfo)
+			{
+				port.hasInfo = false;
+				this.updateRoles(now);
+			}
+
+			if (bpdu.hasFlag(BPDU.FLAG_AGREEMENT)
+					&& ROLE_DESIGNATED == port.role
+					&& bpdu.getRootId() == this.rootId)
+			{
+				port.proposing = false;
+				port.agreed = true;
+				this.setState(port, STATE_FORWARDING, now);
+			}
+		}
+
+		if (bpdu.hasFlag(BPDU.FLAG_TOPOLOGY_CHANGE))
+		{ this.topologyChange(port, true, now); }
+
+		this.sendPending(now);
+		this.publish();
+	}
+
+	/**
+	 * Every tick period: age out received information, move designated
+	 * ports that aren't agreed to through the forward delay, detect edge
+	 * ports and send periodic BPDUs.
+	 */
+	public synchronized void run()
+	{
+		long now = System.currentTimeMillis();
+		this.ensurePorts(now);
+
+		boolean expired = false;
+		for (Port port : this.ports)
+		{
+			if (port.hasInfo && now >= port.infoExpires)
+			{
+				port.hasInfo = false;
+				expired = true;
+			}
+		}
+		if (expired)
+		{ this.updateRoles(now); }
+
+		for (Port port : this.ports)
+		{
+			if (ROLE_DESIGNATED == port.role
+					&& port.state != STATE_FORWARDING)
+			{
+				if (port.proposing && now >= port.edgeDelayExpires)
+				{
+					port.edge = true;
+					port.proposing = false;
+					this.setState(port, STATE_FORWARDING, now);
+				}
+				else if (now >= port.forwardDelayExpires)
+				{
+					this.setState(port, port.state + 1, now);
+					port.forwardDelayExpires = now + FORWARD_DELAY;
+				}
+			}
+
+			// Designated ports send BPDUs every hello time; root ports only
+			// while announcing a topology change
+			if (now >= port.nextHello && (ROLE_DESIGNATED == port.role
+					|| (ROLE_ROOT == port.role && now < port.tcExpires)))
+			{ port.newInfo = true; }
+		}
+
+		this.sendPending(now);
+		this.publish();
+	}
+
+	public synchronized String toString()
+	{
+		String result = String.format("Bridge %016x, root %016x, cost %d\n",
+				this.bridgeId, this.rootId, this.rootPathCost);
+		result += "Port\tRole\t\tState\n";
+		for (Port port : this.ports)
+		{
+			Iface iface = this.sw.getInterface(port.index);
+			result += String.format("%s\t%-10s\t%s%s\n", iface.getName(),
+					ROLE_NAMES[port.role], STATE_NAMES[port.state],
+					(port.edge ? " (edge)" : ""));
+		}
+		return result;
+	}
+
+	/**
+	 * Add ports for interfaces added since the last call.
+	 */
+	private void ensurePorts(long now)
+	{
+		int count = this.sw.getInterfaceCount();
+		if (count <= this.ports.length)
+		{ return; }
+		int first = this.ports.length;
+		this.ports = Arrays.copyOf(this.ports, count);
+		for (int i = first; i < count; i++)
+		{
+			Port port = new Port();
+			port.index = i;
+			port.portId = (PORT_PRIORITY << 8) | ((i + 1) & 0xfff);
+			port.pathCost = DEFAULT_PATH_COST;
+			port.adminEdge = false;
+			this.ports[i] = port;
+			this.initPort(port, now);
+		}
+		if (this.tickTask != null)
+		{ this.updateRoles(now); }
+	}
+
+	/**
+	 * @return the port for an interface; null if the switch has no such
+	 *         interface
+	 */
+	private Port getPort(int ifaceIndex, long now)
+	{
+		this.ensurePorts(now);
+		if (ifaceIndex < 0 || ifaceIndex >= this.ports.length)
+		{ return null; }
+		return this.ports[ifaceIndex];
+	}
+
+	/**
+	 * Put a port in the state it has when it comes up: designated, and
+	 * proposing unless it is an edge port; or, if it is disabled, discarding
+	 * for good.
+	 */
+	private void initPort(Port port, long now)
+	{
+		if (port.disabled)
+		{
+			port.role = ROLE_DISABLED;
+			port.state = STATE_DISCARDING;
+			port.hasInfo = false;
+			port.proposing = false;
+			port.newInfo = false;
+			return;
+		}
+		port.role = ROLE_DESIGNATED;
+		port.edge = port.adminEdge;
+		port.state = (port.edge ? STATE_FORWARDING : STATE_DISCARDING);
+		port.hasInfo = false;
+		port.proposing = !port.edge;
+		port.agreed = false;
+		port.agree = false;
+		port.forwardDelayExpires = now + FORWARD_DELAY;
+		port.edgeDelayExpires = now + EDGE_DELAY;
+		port.tcExpires = 0;
+		port.newInfo = true;
+		port.nextHello = now;
+	}
+
+	/**
+	 * Compare two priority vectors.
+	 * @return negative if the first is better, positive if the second is
+	 *         better, zero if they are the same
+	 */
+	private static int compare(long rootA, int costA, long bridgeA, int portA,
+			long rootB, int costB, long bridgeB, int portB)
+	{
+		int result = Long.compareUnsigned(rootA, rootB);
+		if (0 == result)
+		{ result = Integer.compareUnsigned(costA, costB); }
+		if (0 == result)
+		{ result = Long.compareUnsigned(bridgeA, bridgeB); }
+		if (0 == result)
+		{ result = Integer.compare(portA, portB); }
+		return result;
+	}
+
+	/**
+	 * Pick the root port, from the information received on each port, and
+	 * give every port its role.
+	 */
+	private void updateRoles(long now)
+	{
+		// The root port has the best received information, plus its own
+		// path cost, if that is better than this bridge's own
+		int rootPort = -1;
+		long rootId = this.bridgeId;
+		int rootCost = 0;
+		long rootBridge = this.bridgeId;
+		int rootBridgePort = 0;
+		for (Port port : this.ports)
+		{
+			// Information sent by this bridge only makes backup ports
+			if (!port.hasInfo || port.infoBridgeId == this.bridgeId)
+			{ continue; }
+			int cost = port.infoRootCost + port.pathCost;
+			int result = compare(port.infoRootId, cost, port.infoBridgeId,
+					port.infoPortId, rootId, rootCost, rootBridge,
+					rootBridgePort);
+			if (result < 0 || (0 == result && rootPort >= 0
+					&& port.portId < this.ports[rootPort].portId))
+			{
+				rootPort = port.index;
+				rootId = port.infoRootId;
+				rootCost = cost;
+				rootBridge = port.infoBridgeId;
+				rootBridgePort = port.infoPortId;
+			}
+		}
+
+		boolean newRoot = (rootId != this.rootId
+				|| rootCost != this.rootPathCost || rootPort != this.rootPort);
+		this.rootId = rootId;
+		this.rootPathCost = rootCost;
+		this.rootPort = rootPort;
+		this.rootMessageAge = (rootPort < 0 ? 0
+				: this.ports[rootPort].infoMessageAge);
+
+		for (Port port : this.ports)
+		{
+			if (port.disabled)
+			{ continue; }
+			int role;
+			if (port.index == rootPort)
+			{ role = ROLE_ROOT; }
+			else if (port.hasInfo && compare(port.infoRootId,
+					port.infoRootCost, port.infoBridgeId, port.infoPortId,
+					rootId, rootCost, this.bridgeId, port.portId) < 0)
+			{
+				role = (port.infoBridgeId == this.bridgeId ? ROLE_BACKUP
+						: ROLE_ALTERNATE);
+			}
+			else
+			{ role = ROLE_DESIGNATED; }
+			this.setRole(port, role, now);
+		}
+
+		// Designated ports agreed to under the old root must be agreed to
+		// again, and must not forward until then if the new root port does
+		if (newRoot)
+		{
+			for (Port port : this.ports)
+			{
+				if (ROLE_DESIGNATED == port.role)
+				{
+					port.agreed = false;
+					port.newInfo = true;
+				}
+			}
+			if (rootPort >= 0)
+			{
+				this.sync(now);
+				this.setState(this.ports[rootPort], STATE_FORWARDING, now);
+			}
+		}
+	}
+
+	/**
+	 * Change a port's role.
+	 */
+	private void setRole(Port port, int role, long now)
+	{
+		int oldRole = port.role;
+		port.role = role;
+		if (role != oldRole)
+		{
+			System.out.println(String.format("Spanning tree: %s is now %s",
+					this.sw.getInterface(port.index).getName(),
+					ROLE_NAMES[role]));
+		}
+
+		switch (role)
+		{
+		case ROLE_ROOT:
+			port.proposing = false;
+			port.agreed = false;
+			break;
+
+		case ROLE_DESIGNATED:
+			if (port.edge)
+			{ this.setState(port, STATE_FORWARDING, now); }
+			else if (role != oldRole)
+			{
+				// A former root port may be part of a loop until agreed to
+				this.setState(port, STATE_DISCARDING, now);
+				port.agreed = false;
+				port.proposing = true;
+				port.newInfo = true;
+				port.forwardDelayExpires = now + FORWARD_DELAY;
+			}
+			break;
+
+		default:
+			port.proposing = false;
+			port.agreed = false;
+			this.setState(port, STATE_DISCARDING, now);
+			break;
+		}
+	}
+
+	/**
+	 * Stop forwarding on every designated port that hasn't been agreed to,
+	 * and propose on each, so none can form a loop with the root port.
+	 */
+	private void sync(long now)
+	{
+		for (Port port : this.ports)
+		{
+			if (port.role != ROLE_DESIGNATED || port.edge || port.agreed)
+			{ continue; }
+			if (port.state != STATE_DISCARDING)
+			{
+				this.setState(port, STATE_DISCARDING, now);
+				port.forwardDelayExpires = now + FORWARD_DELAY;
+			}
+			port.proposing = true;
+			port.newInfo = true;
+		}
+	}
+
+	/**
+	 * Change a port's state, flushing what was learned on it if it stops
+	 * learning and announcing a topology change if a port facing a bridge
+	 * starts forwarding.
+	 */
+	private void setState(Port port, int state, long now)
+	{
+		int oldState = port.state;
+		if (state == oldState)
+		{ return; }
+		port.state = state;
+		System.out.println(String.format("Spanning tree: %s is now %s",
+				this.sw.getInterface(port.index).getName(),
+				STATE_NAMES[state]));
+
+		if (STATE_DISCARDING == state)
+		{
+			boolean[] flush = new boolean[this.ports.length];
+			flush[port.index] = true;
+			this.sw.getMACTable().flush(flush);
+		}
+		else if (STATE_FORWARDING == state && !port.edge)
+		{ this.topologyChange(port, false, now); }
+	}
+
+	/**
+	 * Handle a topology change: addresses learned on other ports may now be
+	 * reached some other way, so forget them, and tell the rest of the tree.
+	 * @param origin port that detected or received the topology change
+	 * @param received true if the change was received in a BPDU
+	 */
+	private void topologyChange(Port origin, boolean received, long now)
+	{
+		boolean[] flush = new boolean[this.ports.length];
+		for (Port port : this.ports)
+		{
+			if (port == origin || port.edge)
+			{ continue; }
+			flush[port.index] = true;
+			if (ROLE_ROOT == port.role || ROLE_DESIGNATED == port.role)
+			{ this.announceTopologyChange(port, now); }
+		}
+		if (!received && !origin.edge)
+		{ this.announceTopologyChange(origin, now); }
+		this.sw.getMACTable().flush(flush);
+	}
+	
+	/**
+	 * Set the topology change flag in the BPDUs sent out a port for a while,
+	 * unless it is already set; otherwise a change would circle a loop of
+	 * bridges until the flag timed out everywhere.
+	 */
+	private void announceTopologyChange(Port port, long now)
+	{
+		if (now < port.tcExpires)
+		{ return; }
+		port.tcExpires = now + 2 * HELLO_TIME;
+		port.newInfo = true;
+	}
+
+	/**
+	 * Send a BPDU out every port that has new information to send.
+	 */
+	private void sendPending(long now)
+	{
+		for (Port port : this.ports)
+		{
+			if (port.newInfo)
+			{ this.transmit(port, now); }
+		}
+	}
+
+	/**
+	 * Send a BPDU out a port, unless the port has already sent its share for
+	 * this second, in which case the BPDU is sent on a later tick.
+	 */
+	private void transmit(Port port, long now)
+	{
+		if (now / 1000 != port.txSecond)
+		{
+			port.txSecond = now / 1000;
+			port.txCount = 0;
+		}
+		if (port.txCount >= TX_HOLD_COUNT)
+		{ return; }
+		port.txCount++;
+		port.newInfo = false;
+		port.nextHello = now + HELLO_TIME;
+
+		BPDU bpdu = new BPDU();
+		int flags = 0;
+		if (now < port.tcExpires)
+		{ flags |= BPDU.FLAG_TOPOLOGY_CHANGE; }
+		if (port.proposing && ROLE_DESIGNATED == port.role
+				&& port.state != STATE_FORWARDING)
+		{ flags |= BPDU.FLAG_PROPOSAL; }
+		if (port.state != STATE_DISCARDING)
+		{ flags |= BPDU.FLAG_LEARNING; }
+		if (STATE_FORWARDING == port.state)
+		{ flags |= BPDU.FLAG_FORWARDING; }
+		if (port.agree)
+		{
+			flags |= BPDU.FLAG_AGREEMENT;
+			port.agree = false;
+		}
+		bpdu.setFlags((byte)flags);
+		switch (port.role)
+		{
+		case ROLE_ROOT:
+			bpdu.setPortRole(BPDU.ROLE_ROOT);
+			break;
+		case ROLE_DESIGNATED:
+			bpdu.setPortRole(BPDU.ROLE_DESIGNATED);
+			break;
+		default:
+			bpdu.setPortRole(BPDU.ROLE_ALTERNATE_BACKUP);
+			break;
+		}
+		bpdu.setRootId(this.rootId);
+		bpdu.setRootPathCost(this.rootPathCost);
+		bpdu.setBridgeId(this.bridgeId);
+		bpdu.setPortId((short)port.portId);
+		int messageAge = (this.rootPort < 0 ? 0
+				: this.rootMessageAge + BPDU_TIME_UNIT);
+		bpdu.setMessageAge((short)messageAge);
+		bpdu.setMaxAge((short)(MAX_AGE / 1000 * BPDU_TIME_UNIT));
+		bpdu.setHelloTime((short)(HELLO_TIME / 1000 * BPDU_TIME_UNIT));
+		bpdu.setForwardDelay((short)(FORWARD_DELAY / 1000 * BPDU_TIME_UNIT));
+
+		Iface iface = this.sw.getInterface(port.index);
+		MACAddress source = iface.getMacAddress();
+		if (null == source)
+		{ source = MACAddress.valueOf(this.bridgeId & 0xffffffffffffL); }
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setDestinationMACAddress(
+				BPDU.BRIDGE_GROUP_ADDRESS.toBytes());
+		etherPacket.setSourceMACAddress(source.toBytes());
+		etherPacket.setEtherType((short)bpdu.getLength());
+		etherPacket.setPayload(bpdu);
+		etherPacket.setPad(true);
+		this.sw.sendPacket(etherPacket, iface);
+	}
+
+	/**
+	 * Publish the port states for the forwarding path.
+	 */
+	private void publish()
+	{
+		byte[] states = new byte[this.ports.length];
+		for (Port port : this.ports)
+		{ states[port.index] = (byte)port.state; }
+		if (!Arrays.equals(states, this.states))
+		{
+			this.states = states;
+			this.version++;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Arrays;
+
+import edu.wisc.cs.sdn.vnet.BufferPool;
+import edu.wisc.cs.sdn.vnet.Scheduler;
+
+/**
+ * Storm control for a switch: limits, per interface, the rate at which
+ * broadcast, multicast and unknown unicast frames arriving on the interface
+ * are flooded. Each interface and traffic class has its own token buckets,
+ * one for frames and one for bits, so a storm on one interface is dropped
+ * at ingress without using up any other interface's share. Frames over the
+ * limit are dropped and counted.
+ */
+public class StormControl
+{
+	/** Traffic classes */
+	public static final int BROADCAST = 0;
+	public static final int MULTICAST = 1;
+	public static final int UNKNOWN_UNICAST = 2;
+	private static final int CLASS_COUNT = 3;
+
+	/** Names of the traffic classes, as used in switch settings */
+	public static final String[] CLASS_NAMES =
+			{ "broadcast", "multicast", "unknown-unicast" };
+
+	/** Time (in milliseconds) for which tokens accumulate, so short bursts
+	 *  within the limit aren't dropped */
+	private static final int BURST_TIME = 1000;
+
+	/** Bit set in the first octet of group (multicast and broadcast) MACs */
+	private static final long GROUP_BIT = 1L << 40;
+
+	private static final long BROADCAST_ADDRESS = 0xffffffffffffL;
+
+	/** Token buckets for one interface and traffic class */
+	private static class Policer
+	{
+		/** Limits, in frames and bits per second; 0 for no limit */
+		long frameRate;
+		long bitRate;
+
+		/** Tokens, in thousandths of a frame or bit, and the time (in
+		 *  milliseconds) they were last refilled */
+		long frameTokens;
+		long bitTokens;
+		long refilled;
+
+		long drops;
+
+		synchronized boolean admit(long bits, long now)
+		{
+			// A millisecond adds a thousandth of a second's worth of tokens
+			long elapsed = Math.min(now - this.refilled, BURST_TIME);
+			if (elapsed > 0)
+			{
+				this.frameTokens = Math.min(this.frameTokens
+						+ elapsed * this.frameRate, getFrameBurst(this));
+				this.bitTokens = Math.min(this.bitTokens
+						+ elapsed * this.bitRate, getBitBurst(this));
+				this.refilled = now;
+			}
+
+			if ((this.frameRate > 0 && this.frameTokens < 1000)
+					|| (this.bitRate > 0 && this.bitTokens < bits * 1000))
+			{
+				this.drops++;
+				return false;
+			}
+			if (this.frameRate > 0)
+			{ this.frameTokens -= 1000; }
+			if (this.bitRate > 0)
+			{ this.bitTokens -= bits * 1000; }
+			return true;
+		}
+
+		synchronized long getDrops()
+		{ return this.drops; }
+	}
+
+	/** Policers, indexed by interface index and traffic class; null where
+	 *  there is no limit */
+	private volatile Policer[][] policers;
+
+	public StormControl()
+	{ this.policers = new Policer[0][]; }
+
+	/**
+	 * Limit the rate at which a class of frames arriving on an interface is
+	 * flooded.
+	 * @param ifaceIndex index of the interface
+	 * @param trafficClass BROADCAST, MULTICAST or UNKNOWN_UNICAST
+	 * @param rate most frames or bits per second
+	 * @param bits true if the rate is in bits per second, false if it is in
+	 *        frames per second
+	 */
+	public synchronized void setLimit(int ifaceIndex, int trafficClass,
+			long rate, boolean bits)
+	{
+		Policer[][] policers = this.policers;
+		if (ifaceIndex >= policers.length)
+		{ policers = Arrays.copyOf(policers, ifaceIndex + 1); }
+		else
+		{ policers = policers.clone(); }
+		if (null == policers[ifaceIndex])
+		{ policers[ifaceIndex] = new Policer[CLASS_COUNT]; }
+		else
+		{ policers[ifaceIndex] = policers[ifaceIndex].clone(); }
+
+		Policer policer = policers[ifaceIndex][trafficClass];
+		if (null == policer)
+		{
+			policer = new Policer();
+			policer.refilled = Scheduler.currentTimeMillis();
+			policers[ifaceIndex][trafficClass] = policer;
+		}
+		synchronized (policer)
+		{
+			if (bits)
+			{
+				policer.bitRate = rate;
+				policer.bitTokens = getBitBurst(policer);
+			}
+			else
+			{
+				policer.frameRate = rate;
+				policer.frameTokens = getFrameBurst(policer);
+			}
+		}
+		this.policers = policers;
+	}
+
+	/**
+	 * @return the traffic class of a flooded frame with a given destination
+	 */
+	public static int classify(long dstAddress)
+	{
+		if (BROADCAST_ADDRESS == dstAddress)
+		{ return BROADCAST; }
+		if ((dstAddress & GROUP_BIT) != 0)
+		{ return MULTICAST; }
+		return UNKNOWN_UNICAST;
+	}
+
+	/**
+	 * Check whether a frame to be flooded is within its interface's limit,
+	 * and use up its share of the limit if so.
+	 * @param ifaceIndex index of the interface on which the frame arrived
+	 * @param trafficClass traffic class of the frame
+	 * @param length length (in bytes) of the frame
+	 * @return true if the frame may be flooded, false if it must be dropped
+	 */
+	public boolean admit(int ifaceIndex, int trafficClass, int length)
+	{
+		Policer[][] policers = this.policers;
+		if (ifaceIndex < 0 || ifaceIndex >= policers.length
+				|| null == policers[ifaceIndex])
+		{ return true; }
+		Policer policer = policers[ifaceIndex][trafficClass];
+		if (null == policer)
+		{ return true; }
+		return policer.admit(8L * length, Scheduler.currentTimeMillis());
+	}
+
+	/**
+	 * @return number of frames of a traffic class arriving on an interface
+	 *         that were dropped for exceeding the limit
+	 */
+	public long getDrops(int ifaceIndex, int trafficClass)
+	{
+		Policer[][] policers = this.policers;
+		if (ifaceIndex < 0 || ifaceIndex >= policers.length
+				|| null == policers[ifaceIndex]
+				|| null == policers[ifaceIndex][trafficClass])
+		{ return 0; }
+		return policers[ifaceIndex][trafficClass].getDrops();
+	}
+
+	/**
+	 * @return most frame tokens (in thousandths of a frame) a policer holds;
+	 *         at least one frame
+	 */
+	private static long getFrameBurst(Policer policer)
+	{ return Math.max(policer.frameRate * BURST_TIME, 1000); }
+
+	/**
+	 * @return most bit tokens (in thousandths of a bit) a policer holds;
+	 *         at least one maximum size frame
+	 */
+	private static long getBitBurst(Policer policer)
+	{
+		return Math.max(policer.bitRate * BURST_TIME,
+				8L * BufferPool.MAX_FRAME_SIZE * 1000);
+	}
+}
@@ -1,17 +1,120 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.BPDU;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IGMP;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+import edu.wisc.cs.sdn.vnet.BufferPool;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PooledBuffer;
 
 /**
  * @author Aaron Gember-Jacobson
  */
 public class Switch extends Device
 {
+	/** Size of the destination and source MAC addresses that start a
+	 *  frame */
+	private static final int ETHER_ADDRS_SIZE = 12;
+	
+	/** Size of an 802.1Q tag, which follows the MAC addresses, and the tag
+	 *  protocol identifier that starts it */
+	private static final int VLAN_TAG_SIZE = 4;
+	private static final int VLAN_TPID = 0x8100;
+	
+	/** Size of an IPv4 header without options */
+	private static final int IPV4_HEADER_SIZE = 20;
+	
+	/** IPv4 more fragments flag, as returned by IPv4.getFlags() */
+	private static final int IPV4_MORE_FRAGMENTS = 0x1;
+	
+	/** Multiplier for mixing hashes; 2^64 divided by the golden ratio */
+	private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+	
+	/** First MAC address IPv4 multicast groups map to */
+	private static final long IPV4_MULTICAST_ADDRESS = 0x01005e000000L;
+	
+	/** Returned by getGroup for frames that aren't forwarded by IGMP
+	 *  snooping; 255.255.255.255 is never a snooped group */
+	private static final int NOT_SNOOPED = -1;
+	
+	/** Destination address of spanning tree BPDUs */
+	private static final long BRIDGE_GROUP_ADDRESS = 
+			BPDU.BRIDGE_GROUP_ADDRESS.toLong();
+	
+	/** Returned by getOutIndex for frames to flood and to drop */
+	private static final int FLOOD = -1;
+	private static final int DROP = -2;
+	
+	/** Interfaces out which to flood a frame in a VLAN, i.e., all forwarding
+	 *  interfaces in the VLAN except the one on which the frame arrived */
+	private static class FloodList
+	{
+		/** Interfaces that send the VLAN's frames tagged */
+		final Iface[] tagged;
+		
+		/** Interfaces that send the VLAN's frames untagged; if VLANs aren't
+		 *  configured, all interfaces, which send frames unchanged */
+		final Iface[] untagged;
+		
+		FloodList(Iface[] tagged, Iface[] untagged)
+		{
+			this.tagged = tagged;
+			this.untagged = untagged;
+		}
+	}
+	
 	private MACTable macTable;
 	
+	/** Flood lists, indexed by VLAN and then by ingress port, with one more
+	 *  list, for frames sent by the switch itself, at the end; each VLAN's
+	 *  lists are built when first needed */
+	private FloodList[][] floodLists;
+	
+	/** Number of interfaces and spanning tree version for which the flood
+	 *  lists were built */
+	private int floodListsCount;
+	private int floodListsVersion;
+	
+	/** VLAN membership of the switch's ports; null if VLANs aren't
+	 *  configured, in which case all ports are in the default VLAN and
+	 *  frames are forwarded with their tags unchanged */
+	private PortVlans vlans;
+	
+	/** Rapid spanning tree for the switch; null if it isn't enabled */
+	private SpanningTree spanningTree;
+	
+	/** Storm control for the switch; null if no limits are set */
+	private StormControl stormControl;
+	
+	/** IGMP snooping for the switch; null if it isn't enabled */
+	private IgmpSnooping igmpSnooping;
+	
+	/** Link aggregation groups of the switch; null if there are none, in
+	 *  which case every interface is its own port */
+	private LinkAggregation linkAggregation;
+	
+	/** ARP suppression for the switch; null if it isn't enabled */
+	private ArpSuppression arpSuppression;
+	
+	/** Flow rules applied before MAC learning; null if there are none */
+	private FlowTable flowTable;
+	
+	/** True to forward frames from their raw bytes, without decoding or
+	 *  printing them */
+	private boolean cutThrough;
+	
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -20,8 +123,622 @@ public class Switch extends Device
 	{
 		super(host,logfile);
 		this.macTable = new MACTable();
+		this.floodLists = new FloodList[PortVlans.VLAN_COUNT][];
+		this.floodListsCount = 0;
+		this.floodListsVersion = 0;
+		this.vlans = null;
+		this.spanningTree = null;
+		this.stormControl = null;
+		this.igmpSnooping = null;
+		this.linkAggregation = null;
+		this.arpSuppression = null;
+		this.flowTable = null;
+		this.cutThrough = false;
+	}
+	
+	/**
+	 * @return MAC learning table for the switch
+	 */
+	public MACTable getMACTable()
+	{ return this.macTable; }
+	
+	/**
+	 * @return rapid spanning tree for the switch; null if it isn't enabled
+	 */
+	public SpanningTree getSpanningTree()
+	{ return this.spanningTree; }
+	
+	/**
+	 * @return storm control for the switch; null if no limits are set
+	 */
+	public StormControl getStormControl()
+	{ return this.stormControl; }
+	
+	/**
+	 * @return IGMP snooping for the switch; null if it isn't enabled
+	 */
+	public IgmpSnooping getIgmpSnooping()
+	{ return this.igmpSnooping; }
+	
+	/**
+	 * @return link aggregation groups of the switch; null if there are none
+	 */
+	public LinkAggregation getLinkAggregation()
+	{ return this.linkAggregation; }
+	
+	/**
+	 * @return ARP suppression for the switch; null if it isn't enabled
+	 */
+	public ArpSuppression getArpSuppression()
+	{ return this.arpSuppression; }
+	
+	/**
+	 * @return flow rules applied before MAC learning; null if there are none
+	 */
+	public FlowTable getFlowTable()
+	{ return this.flowTable; }
+	
+	/**
+	 * @return VLAN membership of the switch's ports; null if VLANs aren't
+	 *         configured
+	 */
+	public PortVlans getVlans()
+	{ return this.vlans; }
+	
+	/**
+	 * Load switch settings from a file.
+	 * @param configFile the name of the file containing the settings
+	 */
+	public void loadConfig(String configFile)
+	{
+		SwitchConfig config = SwitchConfig.load(configFile);
+		if (null == config)
+		{
+			System.err.println("Error loading switch settings from file "
+					+ configFile);
+			System.exit(1);
+		}
+		
+		this.cutThrough = config.isCutThrough();
+		
+		// Groups are set up first, since other settings may name them
+		if (!config.getLags().isEmpty())
+		{
+			LinkAggregation linkAggregation = new LinkAggregation();
+			for (Map.Entry<String,List<String>> lag 
+					: config.getLags().entrySet())
+			{
+				Iface[] members = new Iface[lag.getValue().size()];
+				boolean valid = true;
+				for (int i = 0; i < members.length; i++)
+				{
+					members[i] = this.getConfiguredInterface(
+							lag.getValue().get(i));
+					valid &= (members[i] != null);
+				}
+				if (valid && !linkAggregation.addGroup(lag.getKey(), members))
+				{
+					System.err.println("Link aggregation group " + lag.getKey()
+							+ " shares an interface with another group");
+				}
+			}
+			this.linkAggregation = linkAggregation;
+		}
+		
+		this.macTable.setCapacity(config.getMacTableSize());
+		this.macTable.setFlapDampening(config.getFlapThreshold(),
+				config.getFlapWindow() * 1000, config.getFlapHoldTime() * 1000,
+				config.isFlapBlackhole());
+		for (Map.Entry<String,Integer> limit : config.getMacLimits().entrySet())
+		{
+			Iface iface = this.getConfiguredInterface(limit.getKey());
+			if (iface != null)
+			{
+				this.macTable.setInterfaceLimit(iface.getIndex(), 
+						limit.getValue());
+			}
+		}
+		
+		if (!config.getStormLimits().isEmpty())
+		{
+			StormControl stormControl = new StormControl();
+			for (SwitchConfig.StormLimit limit : config.getStormLimits())
+			{
+				Iface iface = this.getConfiguredInterface(limit.ifaceName);
+				if (iface != null)
+				{
+					stormControl.setLimit(iface.getIndex(), limit.trafficClass,
+							limit.rate, limit.bits);
+				}
+			}
+			this.stormControl = stormControl;
+		}
+		
+		if (config.hasVlans())
+		{
+			PortVlans vlans = new PortVlans();
+			for (Map.Entry<String,Integer> access 
+					: config.getAccessVlans().entrySet())
+			{
+				Iface iface = this.getConfiguredInterface(access.getKey());
+				if (iface != null)
+				{ vlans.setAccess(iface.getIndex(), access.getValue()); }
+			}
+			for (Map.Entry<String,BitSet> trunk 
+					: config.getTrunkVlans().entrySet())
+			{
+				Iface iface = this.getConfiguredInterface(trunk.getKey());
+				if (iface != null)
+				{ vlans.setTrunk(iface.getIndex(), trunk.getValue()); }
+			}
+			for (Map.Entry<String,Integer> nativeVlan 
+					: config.getNativeVlans().entrySet())
+			{
+				Iface iface = this.getConfiguredInterface(nativeVlan.getKey());
+				if (iface != null)
+				{ vlans.setNative(iface.getIndex(), nativeVlan.getValue()); }
+			}
+			this.vlans = vlans;
+		}
+		
+		if (config.isIgmpSnooping())
+		{
+			IgmpSnooping igmpSnooping = new IgmpSnooping();
+			for (String ifaceName : config.getRouterPorts())
+			{
+				Iface iface = this.getConfiguredInterface(ifaceName);
+				if (iface != null)
+				{ igmpSnooping.setRouterPort(iface.getIndex()); }
+			}
+			this.igmpSnooping = igmpSnooping;
+		}
+		
+		if (config.isArpSuppression())
+		{ this.arpSuppression = new ArpSuppression(); }
+		
+		if (!config.getFlows().isEmpty())
+		{
+			List<FlowRule> rules = new ArrayList<FlowRule>();
+			for (SwitchConfig.FlowSpec flow : config.getFlows())
+			{
+				FlowRule rule = this.makeFlowRule(flow);
+				if (rule != null)
+				{ rules.add(rule); }
+			}
+			FlowTable flowTable = new FlowTable();
+			flowTable.add(rules);
+			this.flowTable = flowTable;
+		}
+		
+		if (config.isSpanningTree())
+		{
+			SpanningTree spanningTree = new SpanningTree(this);
+			spanningTree.setPriority(config.getBridgePriority());
+			for (Map.Entry<String,Integer> cost 
+					: config.getPathCosts().entrySet())
+			{
+				Iface iface = this.getConfiguredInterface(cost.getKey());
+				if (iface != null)
+				{ spanningTree.setPathCost(iface.getIndex(), cost.getValue()); }
+			}
+			for (String ifaceName : config.getEdgePorts())
+			{
+				Iface iface = this.getConfiguredInterface(ifaceName);
+				if (iface != null)
+				{ spanningTree.setEdgePort(iface.getIndex()); }
+			}
+			
+			// A link aggregation group takes part through its first member
+			for (int i = 0; i < this.interfaceCount; i++)
+			{
+				if (this.linkAggregation != null 
+						&& this.linkAggregation.isSecondary(i))
+				{ spanningTree.setDisabled(i); }
+			}
+			
+			// Every port discards until the spanning tree starts
+			this.spanningTree = spanningTree;
+			spanningTree.start();
+		}
+		System.out.println("Loaded switch settings from " + configFile);
+	}
+	
+	/**
+	 * Resolve the interfaces a flow rule in the switch settings names.
+	 * @return the rule; null, after reporting an error, if it names an
+	 *         unknown interface
+	 */
+	private FlowRule makeFlowRule(SwitchConfig.FlowSpec flow)
+	{
+		FlowMatch match = flow.match;
+		if (flow.inPort != null)
+		{
+			Iface iface = this.getConfiguredInterface(flow.inPort);
+			if (null == iface)
+			{ return null; }
+			match.setInPort(iface.getIndex());
+		}
+		int mirrorPort = -1;
+		if (flow.mirrorPort != null)
+		{
+			Iface iface = this.getConfiguredInterface(flow.mirrorPort);
+			if (null == iface)
+			{ return null; }
+			mirrorPort = iface.getIndex();
+		}
+		int outPort = (flow.drop ? FlowRule.OUTPUT_DROP 
+				: FlowRule.OUTPUT_NORMAL);
+		if (flow.outPort != null)
+		{
+			Iface iface = this.getConfiguredInterface(flow.outPort);
+			if (null == iface)
+			{ return null; }
+			outPort = iface.getIndex();
+		}
+		
+		// Without VLAN settings, frames keep their tags, so moving them to
+		// another VLAN would change nothing
+		int setVlan = flow.setVlan;
+		if (setVlan != 0 && null == this.vlans)
+		{
+			System.err.println("Ignoring mod_vlan_vid in flow rule without "
+					+ "VLAN settings");
+			setVlan = 0;
+		}
+		return new FlowRule(flow.priority, match, setVlan, mirrorPort, 
+				outPort);
+	}
+	
+	/**
+	 * @return the interface named in the switch settings, or the first
+	 *         member of the link aggregation group named; null, after
+	 *         reporting an error, if there is no such interface or group
+	 */
+	private Iface getConfiguredInterface(String ifaceName)
+	{
+		Iface iface = null;
+		if (this.linkAggregation != null)
+		{ iface = this.linkAggregation.getGroup(ifaceName); }
+		if (null == iface)
+		{ iface = this.getInterface(ifaceName); }
+		if (null == iface)
+		{
+			System.err.println("Unknown interface " + ifaceName
+					+ " in switch settings");
+		}
+		return iface;
+	}
+	
+	/**
+	 * Stop the spanning tree and timing out MAC table, IGMP snooping and ARP
+	 * suppression entries, and close the PCAP dump file.
+	 */
+	public void destroy()
+	{
+		if (this.spanningTree != null)
+		{ this.spanningTree.stop(); }
+		if (this.igmpSnooping != null)
+		{ this.igmpSnooping.destroy(); }
+		if (this.arpSuppression != null)
+		{ this.arpSuppression.destroy(); }
+		this.macTable.destroy();
+		super.destroy();
 	}
 
+	/**
+	 * Handle a frame received on a specific interface. In cut-through mode
+	 * the frame is forwarded using only its MAC addresses and VLAN tag, read
+	 * straight from its bytes, and the bytes are relayed unchanged unless a
+	 * tag must be added or removed; otherwise it is decoded and passed to
+	 * handlePacket.
+	 */
+	public void handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		if (!this.cutThrough || length < ETHER_ADDRS_SIZE)
+		{
+			super.handleFrame(frame, offset, length, inIface);
+			return;
+		}
+		
+		// BPDUs are decoded for the spanning tree
+		long dstAddress = getAddress(frame, offset);
+		if (BRIDGE_GROUP_ADDRESS == dstAddress && this.spanningTree != null)
+		{
+			super.handleFrame(frame, offset, length, inIface);
+			return;
+		}
+		
+		int tagVlan = -1;
+		if (length >= ETHER_ADDRS_SIZE + VLAN_TAG_SIZE 
+				&& VLAN_TPID == getShort(frame, offset + ETHER_ADDRS_SIZE))
+		{ tagVlan = getShort(frame, offset + ETHER_ADDRS_SIZE + 2) & 0x0fff; }
+		
+		// ARP messages are decoded for suppression
+		if (this.arpSuppression != null)
+		{
+			int typeOffset = offset + ETHER_ADDRS_SIZE 
+					+ (tagVlan >= 0 ? VLAN_TAG_SIZE : 0);
+			if (typeOffset + 2 <= offset + length
+					&& Ethernet.TYPE_ARP == getShort(frame, typeOffset))
+			{
+				super.handleFrame(frame, offset, length, inIface);
+				return;
+			}
+		}
+		
+		// IGMP messages are decoded for snooping; other IPv4 multicast
+		// traffic is forwarded by its group
+		int group = NOT_SNOOPED;
+		if (this.igmpSnooping != null && isIPv4Multicast(dstAddress))
+		{
+			int ipOffset = offset + ETHER_ADDRS_SIZE + 2
+					+ (tagVlan >= 0 ? VLAN_TAG_SIZE : 0);
+			if (ipOffset + IPV4_HEADER_SIZE <= offset + length
+					&& Ethernet.TYPE_IPv4 == getShort(frame, ipOffset - 2))
+			{
+				if (IPv4.PROTOCOL_IGMP == frame[ipOffset + 9])
+				{
+					super.handleFrame(frame, offset, length, inIface);
+					return;
+				}
+				group = getInt(frame, ipOffset + 16);
+				if (!IgmpSnooping.isSnooped(group))
+				{ group = NOT_SNOOPED; }
+			}
+		}
+		
+		int inPort = this.getPort(inIface);
+		int vlan = this.getVlan(tagVlan, inPort);
+		if (0 == vlan)
+		{ return; }
+		
+		FlowTable flowTable = this.flowTable;
+		if (flowTable != null)
+		{
+			FlowRule rule = flowTable.lookup(frame, offset, length, inPort, 
+					vlan);
+			if (rule != null)
+			{
+				vlan = this.applyFlowRule(rule, frame, offset, length, tagVlan,
+						vlan);
+				if (0 == vlan)
+				{ return; }
+			}
+		}
+		
+		int outIndex = this.getOutIndex(vlan, getAddress(frame, offset + 6), 
+				dstAddress, inPort);
+		if (outIndex >= 0)
+		{ this.forwardFrame(frame, offset, length, tagVlan, vlan, outIndex); }
+		else if (FLOOD == outIndex 
+				&& this.admitFlood(dstAddress, length, inPort))
+		{
+			FloodList floodList = this.getFloodList(vlan, inPort);
+			this.floodFrame(frame, offset, length, tagVlan, vlan, false, 
+					this.snoop(vlan, group, floodList.untagged));
+			this.floodFrame(frame, offset, length, tagVlan, vlan, true, 
+					this.snoop(vlan, group, floodList.tagged));
+		}
+	}
+	
+	/**
+	 * Apply a flow rule's actions to a frame.
+	 * @param tagVlan VLAN ID in the frame's tag; -1 if it is untagged
+	 * @param vlan the frame's VLAN
+	 * @return the frame's VLAN, to forward it normally in; 0 if the rule
+	 *         dropped it or sent it out a port
+	 */
+	private int applyFlowRule(FlowRule rule, byte[] frame, int offset, 
+			int length, int tagVlan, int vlan)
+	{
+		if (rule.getSetVlan() != 0)
+		{ vlan = rule.getSetVlan(); }
+		if (rule.getMirrorPort() >= 0)
+		{
+			this.forwardFrame(frame, offset, length, tagVlan, vlan, 
+					rule.getMirrorPort());
+		}
+		int outPort = rule.getOutPort();
+		if (FlowRule.OUTPUT_NORMAL == outPort)
+		{ return vlan; }
+		if (outPort >= 0)
+		{ this.forwardFrame(frame, offset, length, tagVlan, vlan, outPort); }
+		return 0;
+	}
+	
+	/**
+	 * Send a frame's bytes out a port, adding, replacing or removing its
+	 * VLAN tag if the port needs it.
+	 * @param tagVlan VLAN ID in the frame's tag; -1 if it is untagged
+	 * @param vlan the frame's VLAN
+	 * @param outPort the port: an interface index or a link aggregation
+	 *        group's logical port
+	 */
+	private void forwardFrame(byte[] frame, int offset, int length, 
+			int tagVlan, int vlan, int outPort)
+	{
+		Iface outIface = this.getOutIface(outPort, frame, offset, length);
+		boolean tag = this.isTagged(outPort, vlan);
+		if (!this.needsRetag(tagVlan, vlan, tag))
+		{ this.sendFrame(frame, offset, length, outIface); }
+		else
+		{
+			PooledBuffer buffer = retag(frame, offset, length, tagVlan, vlan,
+					tag);
+			this.sendFrame(buffer.getArray(), buffer.getOffset(), 
+					buffer.getLength(), outIface);
+			buffer.release();
+		}
+	}
+	
+	/**
+	 * Send a frame's bytes out some interfaces, adding, replacing or
+	 * removing its VLAN tag if the interfaces need it.
+	 * @param tagVlan VLAN ID in the frame's tag; -1 if it is untagged
+	 * @param vlan the frame's VLAN
+	 * @param tag true if the interfaces send the frame tagged
+	 */
+	private void floodFrame(byte[] frame, int offset, int length, 
+			int tagVlan, int vlan, boolean tag, Iface[] ifaces)
+	{
+		if (0 == ifaces.length)
+		{ return; }
+		if (!this.needsRetag(tagVlan, vlan, tag))
+		{
+			this.sendFrame(frame, offset, length, ifaces, ifaces.length);
+			return;
+		}
+		PooledBuffer buffer = retag(frame, offset, length, tagVlan, vlan, tag);
+		this.sendFrame(buffer.getArray(), buffer.getOffset(), 
+				buffer.getLength(), ifaces, ifaces.length);
+		buffer.release();
+	}
+	
+	/**
+	 * Copy a frame with its VLAN tag added, replaced or removed; the tag's
+	 * priority is kept if the frame had one.
+	 * @param tagVlan VLAN ID in the frame's tag; -1 if it is untagged
+	 * @param vlan VLAN ID for the new tag
+	 * @param tag true to tag the copy, false to leave it untagged
+	 * @return the copy, which the caller must release
+	 */
+	private static PooledBuffer retag(byte[] frame, int offset, int length,
+			int tagVlan, int vlan, boolean tag)
+	{
+		int headerSize = ETHER_ADDRS_SIZE + (tagVlan >= 0 ? VLAN_TAG_SIZE : 0);
+		int newLength = length - headerSize + ETHER_ADDRS_SIZE 
+				+ (tag ? VLAN_TAG_SIZE : 0);
+		PooledBuffer buffer = BufferPool.acquire(newLength);
+		byte[] out = buffer.getArray();
+		int pos = buffer.getOffset();
+		System.arraycopy(frame, offset, out, pos, ETHER_ADDRS_SIZE);
+		pos += ETHER_ADDRS_SIZE;
+		if (tag)
+		{
+			int priority = (tagVlan >= 0 
+					? frame[offset + ETHER_ADDRS_SIZE + 2] & 0xe0 : 0);
+			out[pos++] = (byte)(VLAN_TPID >> 8);
+			out[pos++] = (byte)VLAN_TPID;
+			out[pos++] = (byte)(priority | ((vlan >> 8) & 0x0f));
+			out[pos++] = (byte)vlan;
+		}
+		System.arraycopy(frame, offset + headerSize, out, pos, 
+				length - headerSize);
+		buffer.setLength(newLength);
+		return buffer;
+	}
+	
+	/**
+	 * @return hash of a frame's flow, read from its bytes
+	 */
+	private static int getFlowHash(byte[] frame, int offset, int length)
+	{
+		int typeOffset = offset + ETHER_ADDRS_SIZE;
+		if (typeOffset + 2 <= offset + length 
+				&& VLAN_TPID == getShort(frame, typeOffset))
+		{ typeOffset += VLAN_TAG_SIZE; }
+		int ipOffset = typeOffset + 2;
+		long ipAddresses = 0;
+		int protocol = 0, ports = 0;
+		if (ipOffset + IPV4_HEADER_SIZE <= offset + length
+				&& Ethernet.TYPE_IPv4 == getShort(frame, typeOffset))
+		{
+			ipAddresses = ((long)getInt(frame, ipOffset + 12) << 32)
+					| (getInt(frame, ipOffset + 16) & 0xffffffffL);
+			protocol = frame[ipOffset + 9] & 0xff;
+			
+			// Only unfragmented packets are known to carry ports; a
+			// fragmented packet's fragments go out the same member
+			int l4Offset = ipOffset + 4 * (frame[ipOffset] & 0x0f);
+			boolean fragment = ((getShort(frame, ipOffset + 6) & 0x3fff) != 0);
+			if (!fragment && (IPv4.PROTOCOL_TCP == protocol 
+						|| IPv4.PROTOCOL_UDP == protocol)
+					&& l4Offset + 4 <= offset + length)
+			{ ports = getInt(frame, l4Offset); }
+		}
+		return getFlowHash(getAddress(frame, offset), 
+				getAddress(frame, offset + 6), ipAddresses, protocol, ports);
+	}
+	
+	/**
+	 * @return hash of a decoded frame's flow; the same as for its bytes
+	 */
+	private static int getFlowHash(Ethernet etherPacket)
+	{
+		long ipAddresses = 0;
+		int protocol = 0, ports = 0;
+		if (etherPacket.getPayload() instanceof IPv4)
+		{
+			IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+			ipAddresses = ((long)ipPacket.getSourceAddress() << 32)
+					| (ipPacket.getDestinationAddress() & 0xffffffffL);
+			protocol = ipPacket.getProtocol() & 0xff;
+			boolean fragment = ((ipPacket.getFlags() & IPV4_MORE_FRAGMENTS) != 0
+					|| ipPacket.getFragmentOffset() != 0);
+			if (!fragment && ipPacket.getPayload() instanceof TCP)
+			{
+				TCP tcpPacket = (TCP)ipPacket.getPayload();
+				ports = ((tcpPacket.getSourcePort() & 0xffff) << 16)
+						| (tcpPacket.getDestinationPort() & 0xffff);
+			}
+			else if (!fragment && ipPacket.getPayload() instanceof UDP)
+			{
+				UDP udpPacket = (UDP)ipPacket.getPayload();
+				ports = ((udpPacket.getSourcePort() & 0xffff) << 16)
+						| (udpPacket.getDestinationPort() & 0xffff);
+			}
+		}
+		return getFlowHash(etherPacket.getDestinationMAC().toLong(),
+				etherPacket.getSourceMAC().toLong(), ipAddresses, protocol,
+				ports);
+	}
+	
+	/**
+	 * @return hash of a flow's MAC addresses, IP addresses, IP protocol and
+	 *         TCP or UDP ports; the IP fields are 0 for other traffic
+	 */
+	private static int getFlowHash(long dstAddress, long srcAddress, 
+			long ipAddresses, int protocol, int ports)
+	{
+		long hash = dstAddress * HASH_MULTIPLIER;
+		hash = (hash ^ srcAddress) * HASH_MULTIPLIER;
+		hash = (hash ^ ipAddresses) * HASH_MULTIPLIER;
+		hash = (hash ^ (((long)protocol << 32) | (ports & 0xffffffffL)))
+				* HASH_MULTIPLIER;
+		return (int)(hash ^ (hash >>> 32));
+	}
+	
+	/**
+	 * @return the 6-byte MAC address at an offset in a frame, as a long
+	 */
+	private static long getAddress(byte[] frame, int offset)
+	{
+		long address = 0;
+		for (int i = 0; i < 6; i++)
+		{ address = (address << 8) | (frame[offset + i] & 0xff); }
+		return address;
+	}
+	
+	/**
+	 * @return the 2-byte big-endian value at an offset in a frame
+	 */
+	private static int getShort(byte[] frame, int offset)
+	{ return ((frame[offset] & 0xff) << 8) | (frame[offset + 1] & 0xff); }
+	
+	/**
+	 * @return the 4-byte big-endian value at an offset in a frame
+	 */
+	private static int getInt(byte[] frame, int offset)
+	{ return (getShort(frame, offset) << 16) | getShort(frame, offset + 2); }
+	
+	/**
+	 * @return true if a MAC address is one that IPv4 multicast groups map
+	 *         to, i.e., in 01:00:5e:00:00:00/25
+	 */
+	private static boolean isIPv4Multicast(long address)
+	{ return ((IPV4_MULTICAST_ADDRESS >>> 23) == (address >>> 23)); }
+	
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -35,23 +752,391 @@ public class Switch extends Device
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
 		
-		this.macTable.insert(etherPacket.getSourceMAC(), inIface);
+		long dstAddress = etherPacket.getDestinationMAC().toLong();
+		if (BRIDGE_GROUP_ADDRESS == dstAddress && this.spanningTree != null)
+		{
+			if (etherPacket.getPayload() instanceof BPDU && inIface != null)
+			{
+				this.spanningTree.receive((BPDU)etherPacket.getPayload(),
+						this.getInterface(this.getPort(inIface)));
+			}
+			return;
+		}
 		
-		MACTableEntry entry = this.macTable.lookup(etherPacket.getDestinationMAC());
-		if (entry != null)
-		{ this.sendPacket(etherPacket, entry.getInterface()); }
-		else
+		int tagVlan = -1;
+		if (etherPacket.getVlanID() != Ethernet.VLAN_UNTAGGED)
+		{ tagVlan = etherPacket.getVlanID() & 0x0fff; }
+		int inPort = this.getPort(inIface);
+		int vlan = this.getVlan(tagVlan, inPort);
+		if (0 == vlan)
+		{ return; }
+		
+		FlowTable flowTable = this.flowTable;
+		if (flowTable != null)
 		{
-			for (Iface iface : this.interfaces.values()) 
+			FlowRule rule = flowTable.lookup(etherPacket, inPort, vlan);
+			if (rule != null)
 			{
-				if (iface != inIface)
-				{
-					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
-				}
+				// Copies are sent from the frame's bytes, leaving the decoded
+				// frame as it arrived
+				byte[] frame = etherPacket.serialize();
+				vlan = this.applyFlowRule(rule, frame, 0, frame.length, tagVlan,
+						vlan);
+				if (0 == vlan)
+				{ return; }
 			}
 		}
 		
+		int outIndex = this.getOutIndex(vlan, 
+				etherPacket.getSourceMAC().toLong(), dstAddress, inPort);
+		if (this.arpSuppression != null && outIndex != DROP
+				&& etherPacket.getPayload() instanceof ARP
+				&& this.suppressArp((ARP)etherPacket.getPayload(), vlan, 
+					outIndex, inIface))
+		{ return; }
+		
+		if (outIndex >= 0)
+		{
+			if (this.vlans != null)
+			{ setVlan(etherPacket, vlan, this.isTagged(outIndex, vlan)); }
+			this.sendPacket(etherPacket, this.getOutIface(outIndex, etherPacket));
+		}
+		else if (FLOOD == outIndex)
+		{
+			int group = NOT_SNOOPED;
+			if (this.igmpSnooping != null && isIPv4Multicast(dstAddress))
+			{ group = this.getGroup(etherPacket, vlan, inPort); }
+			
+			// Serialize once, both to police the frame and to send it out
+			// the interfaces that don't change its tag
+			byte[] frame = etherPacket.serialize();
+			if (!this.admitFlood(dstAddress, frame.length, inPort))
+			{ return; }
+			FloodList floodList = this.getFloodList(vlan, inPort);
+			this.floodPacket(etherPacket, frame, tagVlan, vlan, false, 
+					this.snoop(vlan, group, floodList.untagged));
+			this.floodPacket(etherPacket, frame, tagVlan, vlan, true, 
+					this.snoop(vlan, group, floodList.tagged));
+		}
+		
 		/********************************************************************/
 	}
+	
+	/**
+	 * Learn from an ARP message, and answer it if it is a request the switch
+	 * can answer itself.
+	 * @param vlan the message's VLAN
+	 * @param outIndex where the message would otherwise go, as returned by
+	 *        getOutIndex
+	 * @param inIface the interface on which the message arrived; null if the
+	 *        switch itself sent the message
+	 * @return true if the message was answered, so it must not be forwarded
+	 */
+	private boolean suppressArp(ARP arp, int vlan, int outIndex, 
+			Iface inIface)
+	{
+		if (!ArpSuppression.isValid(arp))
+		{ return false; }
+		this.arpSuppression.learn(vlan, arp);
+		
+		// Only requests that would be flooded are answered; others reach
+		// the address's owner anyway
+		if (arp.getOpCode() != ARP.OP_REQUEST || outIndex != FLOOD 
+				|| null == inIface)
+		{ return false; }
+		long macAddress = this.arpSuppression.lookup(vlan, arp);
+		if (macAddress < 0)
+		{ return false; }
+		
+		Ethernet reply = ArpSuppression.makeReply(arp, macAddress);
+		if (this.vlans != null)
+		{ setVlan(reply, vlan, this.isTagged(this.getPort(inIface), vlan)); }
+		this.sendPacket(reply, inIface);
+		return true;
+	}
+	
+	/**
+	 * Learn from a decoded frame if it is an IGMP message, and decide which
+	 * ports it goes to.
+	 * @return the frame's multicast group; IgmpSnooping.ROUTERS if it is a
+	 *         membership report or leave, which go only to multicast
+	 *         routers; NOT_SNOOPED if it is flooded
+	 */
+	private int getGroup(Ethernet etherPacket, int vlan, int inPort)
+	{
+		if (!(etherPacket.getPayload() instanceof IPv4))
+		{ return NOT_SNOOPED; }
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		if (ipPacket.getPayload() instanceof IGMP)
+		{
+			IGMP igmp = (IGMP)ipPacket.getPayload();
+			if (inPort >= 0)
+			{ this.igmpSnooping.receive(vlan, igmp, inPort); }
+			if (igmp.isReport() || IGMP.TYPE_LEAVE_GROUP == igmp.getType())
+			{ return IgmpSnooping.ROUTERS; }
+			return NOT_SNOOPED;
+		}
+		int group = ipPacket.getDestinationAddress();
+		if (!IgmpSnooping.isSnooped(group))
+		{ return NOT_SNOOPED; }
+		return group;
+	}
+	
+	/**
+	 * @return the interfaces, among those in a flood list, that lead to
+	 *         members of a group or to multicast routers
+	 */
+	private Iface[] snoop(int vlan, int group, Iface[] ifaces)
+	{
+		if (NOT_SNOOPED == group || 0 == ifaces.length)
+		{ return ifaces; }
+		return this.igmpSnooping.filter(vlan, group, ifaces);
+	}
+	
+	/**
+	 * Send a decoded frame out some interfaces, tagged or untagged as the
+	 * interfaces need.
+	 * @param frame the frame, serialized as it arrived
+	 * @param tagVlan VLAN ID in the frame's tag; -1 if it is untagged
+	 * @param vlan the frame's VLAN
+	 * @param tag true if the interfaces send the frame tagged
+	 */
+	private void floodPacket(Ethernet etherPacket, byte[] frame, int tagVlan,
+			int vlan, boolean tag, Iface[] ifaces)
+	{
+		if (0 == ifaces.length)
+		{ return; }
+		if (this.needsRetag(tagVlan, vlan, tag))
+		{
+			setVlan(etherPacket, vlan, tag);
+			frame = etherPacket.serialize();
+		}
+		this.sendFrame(frame, 0, frame.length, ifaces, ifaces.length);
+		for (Iface iface : ifaces)
+		{ System.out.println("Send packet out interface "+iface); }
+	}
+	
+	/**
+	 * Tag a decoded frame with a VLAN, keeping its priority, or untag it.
+	 */
+	private static void setVlan(Ethernet etherPacket, int vlan, boolean tag)
+	{
+		if (tag)
+		{ etherPacket.setVlanID((short)vlan); }
+		else
+		{ etherPacket.setVlanID(Ethernet.VLAN_UNTAGGED); }
+	}
+	
+	/**
+	 * @return the port an interface belongs to: the first member of its
+	 *         link aggregation group, or its own index if it isn't
+	 *         aggregated; -1 for frames sent by the switch itself
+	 */
+	private int getPort(Iface iface)
+	{
+		if (null == iface)
+		{ return -1; }
+		LinkAggregation linkAggregation = this.linkAggregation;
+		if (null == linkAggregation)
+		{ return iface.getIndex(); }
+		return linkAggregation.getPort(iface.getIndex());
+	}
+	
+	/**
+	 * @return the interface out which to send a frame's bytes to a port: the
+	 *         port's own interface or, for a link aggregation group, the
+	 *         member chosen by the frame's flow
+	 */
+	private Iface getOutIface(int outPort, byte[] frame, int offset, 
+			int length)
+	{
+		Iface[] members = this.getMembers(outPort);
+		if (null == members)
+		{ return this.getInterface(outPort); }
+		return LinkAggregation.selectMember(members, 
+				getFlowHash(frame, offset, length));
+	}
+	
+	/**
+	 * @return the interface out which to send a decoded frame to a port
+	 */
+	private Iface getOutIface(int outPort, Ethernet etherPacket)
+	{
+		Iface[] members = this.getMembers(outPort);
+		if (null == members)
+		{ return this.getInterface(outPort); }
+		return LinkAggregation.selectMember(members, getFlowHash(etherPacket));
+	}
+	
+	/**
+	 * @return members of the link aggregation group a port stands for; null
+	 *         if the port isn't a group
+	 */
+	private Iface[] getMembers(int port)
+	{
+		LinkAggregation linkAggregation = this.linkAggregation;
+		if (null == linkAggregation)
+		{ return null; }
+		return linkAggregation.getMembers(port);
+	}
+	
+	/**
+	 * Decide which VLAN a frame is in.
+	 * @param tagVlan VLAN ID in the frame's tag; -1 if it is untagged
+	 * @param inPort the port on which the frame arrived; -1 if the switch
+	 *        itself sent the frame
+	 * @return the frame's VLAN; 0 to drop the frame
+	 */
+	private int getVlan(int tagVlan, int inPort)
+	{
+		PortVlans vlans = this.vlans;
+		if (null == vlans)
+		{ return PortVlans.DEFAULT_VLAN; }
+		if (inPort < 0)
+		{ return (tagVlan > 0 ? tagVlan : PortVlans.DEFAULT_VLAN); }
+		return vlans.getIngressVlan(inPort, tagVlan);
+	}
+	
+	/**
+	 * @return true if an interface sends frames in a VLAN tagged
+	 */
+	private boolean isTagged(int ifaceIndex, int vlan)
+	{ return (this.vlans != null && this.vlans.isTagged(ifaceIndex, vlan)); }
+	
+	/**
+	 * @param tagVlan VLAN ID in a frame's tag; -1 if it is untagged
+	 * @param vlan the frame's VLAN
+	 * @param tag true if the frame is to be sent tagged
+	 * @return true if the frame's tag must be added, replaced or removed
+	 *         before it is sent
+	 */
+	private boolean needsRetag(int tagVlan, int vlan, boolean tag)
+	{
+		if (null == this.vlans)
+		{ return false; }
+		return (tag ? tagVlan != vlan : tagVlan >= 0);
+	}
+	
+	/**
+	 * Learn the port on which a frame's source is reached, and decide where
+	 * the frame goes.
+	 * @param vlan the frame's VLAN
+	 * @param inPort the port on which the frame arrived; -1 if the switch
+	 *        itself sent the frame
+	 * @return the port out which to send the frame; FLOOD to send it out
+	 *         the VLAN's flood list; DROP to drop it
+	 */
+	private int getOutIndex(int vlan, long srcAddress, long dstAddress, 
+			int inPort)
+	{
+		SpanningTree spanningTree = this.spanningTree;
+		long srcKey = MACTable.getKey(vlan, srcAddress);
+		long dstKey = MACTable.getKey(vlan, dstAddress);
+		int outIndex;
+		if (inPort < 0)
+		{ outIndex = this.macTable.lookup(dstKey); }
+		else
+		{
+			if (spanningTree != null && !spanningTree.isForwarding(inPort))
+			{
+				// Learning ports learn but don't forward; discarding ports do
+				// neither
+				if (spanningTree.isLearning(inPort))
+				{ this.macTable.insert(srcKey, inPort); }
+				return DROP;
+			}
+			outIndex = this.macTable.learnAndLookup(srcKey, inPort, dstKey);
+		}
+		if (MACTable.BLACKHOLED == outIndex)
+		{ return DROP; }
+		
+		PortVlans vlans = this.vlans;
+		if (outIndex < 0 || (spanningTree != null
+				&& !spanningTree.isForwarding(outIndex))
+				|| (vlans != null && !vlans.isMember(outIndex, vlan)))
+		{ return FLOOD; }
+		return outIndex;
+	}
+	
+	/**
+	 * @return true if a frame to flood is within the storm control limit of
+	 *         the port on which it arrived
+	 */
+	private boolean admitFlood(long dstAddress, int length, int inPort)
+	{
+		StormControl stormControl = this.stormControl;
+		if (null == stormControl || inPort < 0)
+		{ return true; }
+		return stormControl.admit(inPort, StormControl.classify(dstAddress), 
+				length);
+	}
+	
+	/**
+	 * @return interfaces out which to flood a frame in a VLAN arriving on a
+	 *         port; -1 for frames sent by the switch itself
+	 */
+	private FloodList getFloodList(int vlan, int inPort)
+	{
+		// Interfaces are only added when a session starts, and port states
+		// only change when the spanning tree does, so the lists are rarely
+		// rebuilt
+		SpanningTree spanningTree = this.spanningTree;
+		int version = (null == spanningTree ? 0 : spanningTree.getVersion());
+		int interfaceCount = this.interfaceCount;
+		FloodList[][] floodLists = this.floodLists;
+		if (interfaceCount != this.floodListsCount
+				|| version != this.floodListsVersion)
+		{
+			floodLists = new FloodList[PortVlans.VLAN_COUNT][];
+			this.floodLists = floodLists;
+			this.floodListsCount = interfaceCount;
+			this.floodListsVersion = version;
+		}
+		
+		FloodList[] vlanLists = floodLists[vlan];
+		if (null == vlanLists)
+		{
+			vlanLists = this.buildFloodLists(vlan, interfaceCount, 
+					spanningTree);
+			floodLists[vlan] = vlanLists;
+		}
+		if (inPort < 0)
+		{ return vlanLists[interfaceCount]; }
+		return vlanLists[inPort];
+	}
+	
+	/**
+	 * @return flood lists for a VLAN, indexed by ingress port, with the list
+	 *         for frames sent by the switch itself at the end; a link
+	 *         aggregation group is flooded to through its first member
+	 */
+	private FloodList[] buildFloodLists(int vlan, int interfaceCount,
+			SpanningTree spanningTree)
+	{
+		PortVlans vlans = this.vlans;
+		LinkAggregation linkAggregation = this.linkAggregation;
+		FloodList[] vlanLists = new FloodList[interfaceCount + 1];
+		for (int in = 0; in <= interfaceCount; in++)
+		{
+			Iface[] tagged = new Iface[interfaceCount];
+			Iface[] untagged = new Iface[interfaceCount];
+			int taggedCount = 0, untaggedCount = 0;
+			for (int out = 0; out < interfaceCount; out++)
+			{
+				if (out == in || (spanningTree != null
+						&& !spanningTree.isForwarding(out))
+						|| (vlans != null && !vlans.isMember(out, vlan))
+						|| (linkAggregation != null 
+							&& linkAggregation.isSecondary(out)))
+				{ continue; }
+				if (this.isTagged(out, vlan))
+				{ tagged[taggedCount++] = this.interfacesByIndex[out]; }
+				else
+				{ untagged[untaggedCount++] = this.interfacesByIndex[out]; }
+			}
+			vlanLists[in] = new FloodList(Arrays.copyOf(tagged, taggedCount),
+					Arrays.copyOf(untagged, untaggedCount));
+		}
+		return vlanLists;
+	}
 }
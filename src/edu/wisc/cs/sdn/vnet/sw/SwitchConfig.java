@@ -0,0 +1,647 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Settings for a switch, read from a file with one setting per line:
+ * <pre>
+ * # comment
+ * mac-table-size entries
+ * mac-limit iface entries
+ * mac-flap moves window hold freeze|blackhole
+ * cut-through
+ * spanning-tree
+ * bridge-priority priority
+ * path-cost iface cost
+ * edge-port iface
+ * storm-control iface broadcast|multicast|unknown-unicast rate pps|bps
+ * access-vlan iface vlan
+ * trunk-vlans iface vlan[-vlan][,vlan[-vlan]...]
+ * native-vlan iface vlan
+ * igmp-snooping
+ * mrouter-port iface
+ * lag name iface iface [iface ...]
+ * arp-suppression
+ * flow priority any|field=value[,field=value...] action[,action...]
+ * </pre>
+ * A flow rule matches on these fields, named as in OpenFlow: in_port,
+ * dl_vlan, dl_src, dl_dst, dl_type, nw_src and nw_dst (each an address or
+ * a subnet in CIDR notation), nw_proto, tp_src and tp_dst. Its actions are
+ * mod_vlan_vid:vlan, mirror:iface, and then one of drop, output:iface or
+ * normal, which is the default.
+ * <p>
+ * An address that moves between interfaces at least the given number of
+ * times within window seconds is frozen on its interface, or blackholed,
+ * for hold seconds.
+ * <p>
+ * Wherever a setting names an interface, it may name a link aggregation
+ * group instead, to apply to the group as a whole.
+ */
+public class SwitchConfig
+{
+	/** A storm control limit for one interface and traffic class */
+	public static class StormLimit
+	{
+		public String ifaceName;
+
+		/** Traffic class, as defined by StormControl */
+		public int trafficClass;
+
+		/** Most frames or bits per second */
+		public long rate;
+
+		/** True if the rate is in bits per second, false if it is in frames
+		 *  per second */
+		public boolean bits;
+	}
+
+	/** A flow rule, with the names of the interfaces it refers to */
+	public static class FlowSpec
+	{
+		public int priority;
+
+		/** Fields to match, other than the ingress interface */
+		public FlowMatch match;
+
+		/** Interface on which frames must arrive; null for any */
+		public String inPort;
+
+		/** VLAN to move frames to; 0 to leave them in their VLAN */
+		public int setVlan;
+
+		/** Interface out which to send a copy of frames; null for none */
+		public String mirrorPort;
+
+		/** Interface out which to send frames; null to drop them or forward
+		 *  them normally */
+		public String outPort;
+
+		/** True to drop frames */
+		public boolean drop;
+	}
+
+	/** Most entries in the MAC table; 0 for no limit */
+	private int macTableSize;
+
+	/** Most MAC table entries learned on an interface; maps interface names
+	 *  to limits */
+	private Map<String,Integer> macLimits;
+
+	/** Moves within the flap window that make an address flap; 0 to not
+	 *  dampen moves */
+	private int flapThreshold;
+
+	/** Time (in seconds) within which moves are counted, and time for which
+	 *  a flapping address is held */
+	private int flapWindow;
+	private int flapHoldTime;
+
+	/** True to blackhole flapping addresses, false to freeze them */
+	private boolean flapBlackhole;
+
+	/** True to forward frames without decoding them */
+	private boolean cutThrough;
+
+	/** True to run the rapid spanning tree protocol */
+	private boolean spanningTree;
+
+	/** Spanning tree bridge priority */
+	private int bridgePriority;
+
+	/** Spanning tree path costs; maps interface names to costs */
+	private Map<String,Integer> pathCosts;
+
+	/** Names of interfaces that are spanning tree edge ports */
+	private List<String> edgePorts;
+
+	/** Storm control limits */
+	private List<StormLimit> stormLimits;
+
+	/** VLANs of access ports; maps interface names to VLANs */
+	private Map<String,Integer> accessVlans;
+
+	/** VLANs carried by trunk ports; maps interface names to VLANs */
+	private Map<String,BitSet> trunkVlans;
+
+	/** Native VLANs of trunk ports; maps interface names to VLANs */
+	private Map<String,Integer> nativeVlans;
+
+	/** True to forward multicast traffic by IGMP snooping */
+	private boolean igmpSnooping;
+
+	/** Names of interfaces that are multicast router ports */
+	private List<String> routerPorts;
+
+	/** Link aggregation groups; maps group names to the names of their
+	 *  members */
+	private Map<String,List<String>> lags;
+
+	/** True to answer ARP requests for known addresses instead of flooding
+	 *  them */
+	private boolean arpSuppression;
+
+	/** Flow rules */
+	private List<FlowSpec> flows;
+
+	public SwitchConfig()
+	{
+		this.macTableSize = 0;
+		this.macLimits = new HashMap<String,Integer>();
+		this.flapThreshold = 0;
+		this.flapWindow = 0;
+		this.flapHoldTime = 0;
+		this.flapBlackhole = false;
+		this.cutThrough = false;
+		this.spanningTree = false;
+		this.bridgePriority = SpanningTree.DEFAULT_PRIORITY;
+		this.pathCosts = new HashMap<String,Integer>();
+		this.edgePorts = new ArrayList<String>();
+		this.stormLimits = new ArrayList<StormLimit>();
+		this.accessVlans = new HashMap<String,Integer>();
+		this.trunkVlans = new HashMap<String,BitSet>();
+		this.nativeVlans = new HashMap<String,Integer>();
+		this.igmpSnooping = false;
+		this.routerPorts = new ArrayList<String>();
+		this.lags = new HashMap<String,List<String>>();
+		this.arpSuppression = false;
+		this.flows = new ArrayList<FlowSpec>();
+	}
+
+	/**
+	 * @return most entries in the MAC table; 0 for no limit
+	 */
+	public int getMacTableSize()
+	{ return this.macTableSize; }
+
+	/**
+	 * @return most MAC table entries learned on an interface; maps interface
+	 *         names to limits
+	 */
+	public Map<String,Integer> getMacLimits()
+	{ return this.macLimits; }
+
+	/**
+	 * @return moves within the flap window that make an address flap; 0 to
+	 *         not dampen moves
+	 */
+	public int getFlapThreshold()
+	{ return this.flapThreshold; }
+
+	/**
+	 * @return time (in seconds) within which moves are counted
+	 */
+	public int getFlapWindow()
+	{ return this.flapWindow; }
+
+	/**
+	 * @return time (in seconds) for which a flapping address is held
+	 */
+	public int getFlapHoldTime()
+	{ return this.flapHoldTime; }
+
+	/**
+	 * @return true to blackhole flapping addresses, false to freeze them
+	 */
+	public boolean isFlapBlackhole()
+	{ return this.flapBlackhole; }
+
+	/**
+	 * @return true to forward frames without decoding them
+	 */
+	public boolean isCutThrough()
+	{ return this.cutThrough; }
+
+	/**
+	 * @return true to run the rapid spanning tree protocol
+	 */
+	public boolean isSpanningTree()
+	{ return this.spanningTree; }
+
+	/**
+	 * @return spanning tree bridge priority
+	 */
+	public int getBridgePriority()
+	{ return this.bridgePriority; }
+
+	/**
+	 * @return spanning tree path costs; maps interface names to costs
+	 */
+	public Map<String,Integer> getPathCosts()
+	{ return this.pathCosts; }
+
+	/**
+	 * @return names of interfaces that are spanning tree edge ports
+	 */
+	public List<String> getEdgePorts()
+	{ return this.edgePorts; }
+
+	/**
+	 * @return storm control limits
+	 */
+	public List<StormLimit> getStormLimits()
+	{ return this.stormLimits; }
+
+	/**
+	 * @return true if any port's VLANs are set
+	 */
+	public boolean hasVlans()
+	{
+		return (!this.accessVlans.isEmpty() || !this.trunkVlans.isEmpty()
+				|| !this.nativeVlans.isEmpty());
+	}
+
+	/**
+	 * @return VLANs of access ports; maps interface names to VLANs
+	 */
+	public Map<String,Integer> getAccessVlans()
+	{ return this.accessVlans; }
+
+	/**
+	 * @return VLANs carried by trunk ports; maps interface names to VLANs
+	 */
+	public Map<String,BitSet> getTrunkVlans()
+	{ return this.trunkVlans; }
+
+	/**
+	 * @return native VLANs of trunk ports; maps interface names to VLANs
+	 */
+	public Map<String,Integer> getNativeVlans()
+	{ return this.nativeVlans; }
+
+	/**
+	 * @return true to forward multicast traffic by IGMP snooping
+	 */
+	public boolean isIgmpSnooping()
+	{ return this.igmpSnooping; }
+
+	/**
+	 * @return names of interfaces that are multicast router ports
+	 */
+	public List<String> getRouterPorts()
+	{ return this.routerPorts; }
+
+	/**
+	 * @return link aggregation groups; maps group names to the names of
+	 *         their members
+	 */
+	public Map<String,List<String>> getLags()
+	{ return this.lags; }
+
+	/**
+	 * @return true to answer ARP requests for known addresses instead of
+	 *         flooding them
+	 */
+	public boolean isArpSuppression()
+	{ return this.arpSuppression; }
+
+	/**
+	 * @return flow rules
+	 */
+	public List<FlowSpec> getFlows()
+	{ return this.flows; }
+
+	/**
+	 * Read switch settings from a file.
+	 * @param filename name of the file containing the settings
+	 * @return the settings; null if the file could not be read or is invalid
+	 */
+	public static SwitchConfig load(String filename)
+	{
+		// Open the file
+		BufferedReader reader;
+		try
+		{
+			FileReader fileReader = new FileReader(filename);
+			reader = new BufferedReader(fileReader);
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		SwitchConfig config = new SwitchConfig();
+		int lineNumber = 0;
+		while (true)
+		{
+			// Read a setting from the file
+			String line = null;
+			try
+			{ line = reader.readLine(); }
+			catch (IOException e)
+			{
+				System.err.println(e.toString());
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+
+			// Stop if we have reached the end of the file
+			if (null == line)
+			{ break; }
+			lineNumber++;
+
+			// Skip comments and blank lines
+			int comment = line.indexOf('#');
+			if (comment >= 0)
+			{ line = line.substring(0, comment); }
+			line = line.trim();
+			if (0 == line.length())
+			{ continue; }
+
+			if (!config.parse(line.split("\\s+")))
+			{
+				System.err.println(String.format(
+						"Invalid setting on line %d of switch config file: %s",
+						lineNumber, line));
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+		}
+
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+		return config;
+	}
+
+	/**
+	 * Apply one setting.
+	 * @param fields the setting's keyword and arguments
+	 * @return true if the setting is valid, otherwise false
+	 */
+	private boolean parse(String[] fields)
+	{
+		String keyword = fields[0];
+		try
+		{
+			if (keyword.equals("mac-table-size") && 2 == fields.length)
+			{
+				this.macTableSize = Integer.parseInt(fields[1]);
+				return (this.macTableSize >= 0);
+			}
+			else if (keyword.equals("mac-limit") && 3 == fields.length)
+			{
+				int limit = Integer.parseInt(fields[2]);
+				this.macLimits.put(fields[1], limit);
+				return (limit >= 0);
+			}
+			else if (keyword.equals("mac-flap") && 5 == fields.length)
+			{
+				this.flapThreshold = Integer.parseInt(fields[1]);
+				this.flapWindow = Integer.parseInt(fields[2]);
+				this.flapHoldTime = Integer.parseInt(fields[3]);
+				this.flapBlackhole = fields[4].equals("blackhole");
+				return (this.flapThreshold > 0 && this.flapWindow > 0
+						&& this.flapHoldTime > 0
+						&& (this.flapBlackhole || fields[4].equals("freeze")));
+			}
+			else if (keyword.equals("cut-through") && 1 == fields.length)
+			{
+				this.cutThrough = true;
+				return true;
+			}
+			else if (keyword.equals("spanning-tree") && 1 == fields.length)
+			{
+				this.spanningTree = true;
+				return true;
+			}
+			else if (keyword.equals("bridge-priority") && 2 == fields.length)
+			{
+				this.bridgePriority = Integer.parseInt(fields[1]);
+				return (this.bridgePriority >= 0
+						&& this.bridgePriority <= 61440
+						&& 0 == this.bridgePriority % 4096);
+			}
+			else if (keyword.equals("path-cost") && 3 == fields.length)
+			{
+				int cost = Integer.parseInt(fields[2]);
+				this.pathCosts.put(fields[1], cost);
+				return (cost > 0);
+			}
+			else if (keyword.equals("edge-port") && 2 == fields.length)
+			{
+				this.edgePorts.add(fields[1]);
+				return true;
+			}
+			else if (keyword.equals("storm-control") && 5 == fields.length)
+			{
+				StormLimit limit = new StormLimit();
+				limit.ifaceName = fields[1];
+				limit.trafficClass = Arrays.asList(
+						StormControl.CLASS_NAMES).indexOf(fields[2]);
+				limit.rate = Long.parseLong(fields[3]);
+				limit.bits = fields[4].equals("bps");
+				this.stormLimits.add(limit);
+				return (limit.trafficClass >= 0 && limit.rate > 0
+						&& (limit.bits || fields[4].equals("pps")));
+			}
+			else if (keyword.equals("access-vlan") && 3 == fields.length)
+			{
+				int vlan = Integer.parseInt(fields[2]);
+				this.accessVlans.put(fields[1], vlan);
+				return isValidVlan(vlan);
+			}
+			else if (keyword.equals("trunk-vlans") && 3 == fields.length)
+			{
+				BitSet vlans = parseVlans(fields[2]);
+				this.trunkVlans.put(fields[1], vlans);
+				return (vlans != null);
+			}
+			else if (keyword.equals("native-vlan") && 3 == fields.length)
+			{
+				int vlan = Integer.parseInt(fields[2]);
+				this.nativeVlans.put(fields[1], vlan);
+				return isValidVlan(vlan);
+			}
+			else if (keyword.equals("igmp-snooping") && 1 == fields.length)
+			{
+				this.igmpSnooping = true;
+				return true;
+			}
+			else if (keyword.equals("mrouter-port") && 2 == fields.length)
+			{
+				this.routerPorts.add(fields[1]);
+				return true;
+			}
+			else if (keyword.equals("lag") && fields.length >= 4)
+			{
+				this.lags.put(fields[1], Arrays.asList(
+						Arrays.copyOfRange(fields, 2, fields.length)));
+				return true;
+			}
+			else if (keyword.equals("arp-suppression") && 1 == fields.length)
+			{
+				this.arpSuppression = true;
+				return true;
+			}
+			else if (keyword.equals("flow") && 4 == fields.length)
+			{
+				FlowSpec flow = new FlowSpec();
+				flow.priority = Integer.parseInt(fields[1]);
+				flow.match = new FlowMatch();
+				if (!parseMatch(fields[2], flow) || !parseActions(fields[3], flow))
+				{ return false; }
+				this.flows.add(flow);
+				return true;
+			}
+		}
+		catch (IllegalArgumentException e)
+		{ return false; }
+		return false;
+	}
+
+	/**
+	 * Parse a comma-separated list of VLANs and ranges of VLANs.
+	 * @return the VLANs; null if the list is invalid
+	 */
+	private static BitSet parseVlans(String list)
+	{
+		BitSet vlans = new BitSet(PortVlans.VLAN_COUNT);
+		for (String item : list.split(","))
+		{
+			int dash = item.indexOf('-');
+			int first, last;
+			if (dash < 0)
+			{ first = last = Integer.parseInt(item); }
+			else
+			{
+				first = Integer.parseInt(item.substring(0, dash));
+				last = Integer.parseInt(item.substring(dash + 1));
+			}
+			if (!isValidVlan(first) || !isValidVlan(last) || first > last)
+			{ return null; }
+			vlans.set(first, last + 1);
+		}
+		return vlans;
+	}
+
+	/**
+	 * Parse the fields a flow rule matches on.
+	 * @return true if the fields are valid, otherwise false
+	 */
+	private static boolean parseMatch(String list, FlowSpec flow)
+	{
+		if (list.equals("any"))
+		{ return true; }
+		FlowMatch match = flow.match;
+		for (String item : list.split(","))
+		{
+			int equals = item.indexOf('=');
+			if (equals < 0)
+			{ return false; }
+			String field = item.substring(0, equals);
+			String value = item.substring(equals + 1);
+			if (field.equals("in_port"))
+			{ flow.inPort = value; }
+			else if (field.equals("dl_vlan"))
+			{
+				int vlan = Integer.parseInt(value);
+				if (!isValidVlan(vlan))
+				{ return false; }
+				match.setVlan(vlan);
+			}
+			else if (field.equals("dl_src"))
+			{ match.setDataLayerSource(MACAddress.valueOf(value).toLong()); }
+			else if (field.equals("dl_dst"))
+			{ match.setDataLayerDestination(MACAddress.valueOf(value).toLong()); }
+			else if (field.equals("dl_type"))
+			{ match.setEtherType(parseField(value, 0xffff)); }
+			else if (field.equals("nw_src") || field.equals("nw_dst"))
+			{
+				int slash = value.indexOf('/');
+				int prefixLength = 32;
+				if (slash >= 0)
+				{
+					prefixLength = Integer.parseInt(value.substring(slash + 1));
+					value = value.substring(0, slash);
+					if (prefixLength < 0 || prefixLength > 32)
+					{ return false; }
+				}
+				int address = IPv4.toIPv4Address(value);
+				if (field.equals("nw_src"))
+				{ match.setNetworkSource(address, prefixLength); }
+				else
+				{ match.setNetworkDestination(address, prefixLength); }
+			}
+			else if (field.equals("nw_proto"))
+			{ match.setNetworkProtocol(parseField(value, 0xff)); }
+			else if (field.equals("tp_src"))
+			{ match.setTransportSource(parseField(value, 0xffff)); }
+			else if (field.equals("tp_dst"))
+			{ match.setTransportDestination(parseField(value, 0xffff)); }
+			else
+			{ return false; }
+		}
+
+		// Only IPv4 packets carry IP and TCP/UDP fields
+		if (match.hasNetworkFields() && !match.hasEtherType())
+		{ match.setEtherType(Ethernet.TYPE_IPv4); }
+		return true;
+	}
+
+	/**
+	 * Parse a flow rule's actions.
+	 * @return true if the actions are valid, otherwise false
+	 */
+	private static boolean parseActions(String list, FlowSpec flow)
+	{
+		boolean forward = false;
+		for (String action : list.split(","))
+		{
+			if (forward)
+			{
+				// Nothing may follow drop, output or normal
+				return false;
+			}
+			if (action.equals("drop"))
+			{ flow.drop = forward = true; }
+			else if (action.equals("normal"))
+			{ forward = true; }
+			else if (action.startsWith("output:"))
+			{
+				flow.outPort = action.substring("output:".length());
+				forward = true;
+			}
+			else if (action.startsWith("mirror:"))
+			{ flow.mirrorPort = action.substring("mirror:".length()); }
+			else if (action.startsWith("mod_vlan_vid:"))
+			{
+				flow.setVlan = Integer.parseInt(
+						action.substring("mod_vlan_vid:".length()));
+				if (!isValidVlan(flow.setVlan))
+				{ return false; }
+			}
+			else
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a decimal or hexadecimal (0x-prefixed) field value.
+	 * @throws NumberFormatException if the value is invalid or larger than
+	 *         the field
+	 */
+	private static int parseField(String value, int max)
+	{
+		int result = Integer.decode(value);
+		if (result < 0 || result > max)
+		{ throw new NumberFormatException(value); }
+		return result;
+	}
+
+	private static boolean isValidVlan(int vlan)
+	{ return (vlan >= 1 && vlan <= PortVlans.MAX_VLAN); }
+}
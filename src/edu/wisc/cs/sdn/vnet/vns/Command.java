@@ -14,6 +14,11 @@ public abstract class Command
 	public static final int VNS_AUTH_REQUEST = 128;
 	public static final int VNS_AUTH_REPLY = 256;
 	public static final int VNS_AUTH_STATUS = 512;
+	public static final int VNS_PACKET_BATCH = 1024;
+	
+	/** Capability flag (sent in VNS_OPEN and echoed in VNS_HW_INFO) for
+	 *  exchanging frames in VNS_PACKET_BATCH commands */
+	public static final int CAP_PACKET_BATCH = 1;
 	
 	public static final int ID_SIZE = 32;
 	
@@ -4,6 +4,8 @@ import java.nio.ByteBuffer;
 
 public class CommandClose extends Command
 {
+	public static final int MESSAGE_SIZE = 256;
+	
 	protected String mErrorMessage;
 	
 	public CommandClose()
@@ -13,10 +15,26 @@ public class CommandClose extends Command
 	{
 		super.deserialize(buf);
 				
-		byte[] tmpBytes = new byte[256];
+		byte[] tmpBytes = new byte[MESSAGE_SIZE];
 		buf.get(tmpBytes);
 		this.mErrorMessage = new String(tmpBytes);
 		
 		return this;
 	}
+	
+	protected byte[] serialize()
+	{
+		this.mLen = this.getSize();
+		byte[] data = new byte[this.mLen];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		
+		bb.put(super.serialize());
+		byte[] msg = this.mErrorMessage.getBytes();
+		bb.put(msg, 0, Math.min(msg.length, MESSAGE_SIZE - 1));
+		
+		return data;
+	}
+	
+	protected int getSize()
+	{ return super.getSize() + MESSAGE_SIZE; }
 }
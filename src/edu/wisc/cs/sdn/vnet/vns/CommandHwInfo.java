@@ -27,4 +27,23 @@ public class CommandHwInfo extends Command
 						
 		return this;
 	}
+	
+	protected byte[] serialize()
+	{
+		this.mLen = this.getSize();
+		byte[] data = new byte[this.mLen];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		
+		bb.put(super.serialize());
+		for (CommandHwEntry hwEntry : this.mHwInfo)
+		{ hwEntry.serialize(bb); }
+		
+		return data;
+	}
+	
+	protected int getSize()
+	{
+		int entries = (null == this.mHwInfo ? 0 : this.mHwInfo.size());
+		return super.getSize() + entries * CommandHwEntry.getSize();
+	}
 }
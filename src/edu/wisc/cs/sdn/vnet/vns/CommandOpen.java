@@ -6,6 +6,10 @@ public class CommandOpen extends Command
 {
 	protected String mVirtualHostId;
 	
+	/** Optional protocol extensions requested by the client (CAP_* flags);
+	 *  only sent when non-zero, so servers that predate them are unaffected */
+	protected int mCapabilities;
+	
 	public CommandOpen()
 	{
 		super(Command.VNS_OPEN);
@@ -19,11 +23,17 @@ public class CommandOpen extends Command
 		buf.get(tmpBytes);
 		this.mVirtualHostId = new String(tmpBytes);
 		
+		this.mCapabilities = 0;
+		if (this.mLen >= super.getSize() + Command.ID_SIZE + 4
+				&& buf.remaining() >= 4)
+		{ this.mCapabilities = buf.getInt(); }
+		
 		return this;
 	}
 	
 	protected byte[] serialize()
 	{
+		this.mLen = this.getSize();
 		byte[] data = new byte[this.getSize()];
         ByteBuffer bb = ByteBuffer.wrap(data);
         
@@ -33,10 +43,12 @@ public class CommandOpen extends Command
         byte[] tmp = new byte[Command.ID_SIZE];
         System.arraycopy(this.mVirtualHostId.getBytes(), 0, tmp, 0, this.mVirtualHostId.length());
         bb.put(tmp);
+        if (this.mCapabilities != 0)
+        { bb.putInt(this.mCapabilities); }
         
         return data;
 	}
 	
 	protected int getSize()
-	{ return super.getSize() + Command.ID_SIZE; }
+	{ return super.getSize() + Command.ID_SIZE + (0 == this.mCapabilities ? 0 : 4); }
 }
@@ -22,7 +22,7 @@ public class CommandPacket extends Command
 		
         this.etherPacket = new Ethernet();
 		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+				buf.limit() - buf.position());
 		
 		return this;
 	}
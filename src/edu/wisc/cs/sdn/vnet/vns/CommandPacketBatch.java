@@ -0,0 +1,142 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Several frames in one command, so high-rate links pay the command header
+ * and a write once per batch instead of once per frame. The body is a frame
+ * count followed by, for each frame, a 16-byte interface name, a 4-byte
+ * frame length and the frame itself.
+ */
+public class CommandPacketBatch extends Command
+{
+	/** Size of the per-frame header (interface name and frame length) */
+	public static final int FRAME_HEADER_SIZE = 16 + 4;
+
+	/** Largest batch, command header included, a peer accepts */
+	public static final int MAX_SIZE = 1 << 20;
+
+	protected int mCount;
+
+	/** Command bytes; received frames are referenced in place */
+	protected byte[] mData;
+
+	/** Per-frame interface name field offsets, frame offsets and frame
+	 *  lengths of a received batch */
+	protected int[] mNameOffsets;
+	protected int[] mOffsets;
+	protected int[] mLengths;
+
+	public CommandPacketBatch()
+	{
+		super(Command.VNS_PACKET_BATCH);
+		this.mData = new byte[4096];
+		this.reset();
+	}
+
+	protected CommandPacketBatch deserialize(ByteBuffer buf)
+	{
+		super.deserialize(buf);
+		this.mCount = buf.getInt();
+		if (this.mCount < 0
+				|| this.mCount > buf.remaining() / FRAME_HEADER_SIZE)
+		{ this.mCount = 0; }
+
+		this.mData = buf.array();
+		this.mNameOffsets = new int[this.mCount];
+		this.mOffsets = new int[this.mCount];
+		this.mLengths = new int[this.mCount];
+		int valid = 0;
+		for (int i = 0; i < this.mCount; i++)
+		{
+			if (buf.remaining() < FRAME_HEADER_SIZE)
+			{ break; }
+			this.mNameOffsets[i] = buf.position();
+			buf.position(buf.position() + IfaceNameTable.NAME_SIZE);
+			int len = buf.getInt();
+			if (len < 0 || len > buf.remaining())
+			{ break; }
+			this.mOffsets[i] = buf.position();
+			this.mLengths[i] = len;
+			buf.position(buf.position() + len);
+			valid++;
+		}
+		this.mCount = valid;
+
+		return this;
+	}
+
+	/**
+	 * @return number of frames in the batch
+	 */
+	public int getCount()
+	{ return this.mCount; }
+
+	/**
+	 * @return size (in bytes) of the serialized batch
+	 */
+	protected int getSize()
+	{ return this.mLen; }
+
+	/**
+	 * Empty the batch so it can be reused.
+	 */
+	public void reset()
+	{
+		this.mCount = 0;
+		this.mLen = super.getSize() + 4;
+	}
+
+	/**
+	 * Append a frame to the batch.
+	 * @param ifaceName name of the interface the frame is sent out or
+	 *        arrives on
+	 * @param frame the Ethernet frame
+	 */
+	public void add(String ifaceName, byte[] frame)
+	{
+		this.add(IfaceNameTable.encode(ifaceName), frame, 0, frame.length);
+	}
+	
+	/**
+	 * Append a frame, held in part of a buffer, to the batch.
+	 * @param ifaceName zero-padded 16-byte name of the interface the frame
+	 *        is sent out or arrives on
+	 * @param frame buffer holding the Ethernet frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 */
+	public void add(byte[] ifaceName, byte[] frame, int offset, int length)
+	{
+		int needed = this.mLen + FRAME_HEADER_SIZE + length;
+		if (needed > this.mData.length)
+		{
+			this.mData = Arrays.copyOf(this.mData,
+					Math.max(needed, this.mData.length * 2));
+		}
+
+		ByteBuffer bb = ByteBuffer.wrap(this.mData);
+		bb.position(this.mLen);
+		bb.put(ifaceName, 0, IfaceNameTable.NAME_SIZE);
+		bb.putInt(length);
+		bb.put(frame, offset, length);
+
+		this.mLen = needed;
+		this.mCount++;
+	}
+
+	/**
+	 * Write the batch, with its command header, to a stream.
+	 */
+	protected void writeTo(OutputStream outStream) throws IOException
+	{
+		ByteBuffer bb = ByteBuffer.wrap(this.mData);
+		bb.putInt(this.mLen);
+		bb.putInt(this.mType);
+		bb.putInt(this.mCount);
+		outStream.write(this.mData, 0, this.mLen);
+	}
+}
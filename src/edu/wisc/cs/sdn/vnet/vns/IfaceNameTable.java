@@ -0,0 +1,179 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.Arrays;
+
+/**
+ * Maps the 16-byte interface name fields of VNS commands to interface
+ * indices without decoding them into strings, and holds each interface's
+ * encoded name for the commands a device sends. A name field is compared as
+ * two longs, so a lookup is a hash and at most a few probes.
+ */
+class IfaceNameTable
+{
+	/** Size of an interface name field in VNS commands */
+	public static final int NAME_SIZE = 16;
+
+	/** Open-addressed hash table of name fields, as pairs of longs, and the
+	 *  interface index for each; slots with a negative index are empty */
+	private static class Slots
+	{
+		long[] keysHigh;
+		long[] keysLow;
+		int[] indices;
+		int count;
+
+		Slots(int size)
+		{
+			this.keysHigh = new long[size];
+			this.keysLow = new long[size];
+			this.indices = new int[size];
+			Arrays.fill(this.indices, -1);
+			this.count = 0;
+		}
+
+		/**
+		 * @return the index for a name field; -1 if the name is unknown
+		 */
+		int get(long high, long low)
+		{
+			int mask = this.indices.length - 1;
+			for (int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask)
+			{
+				if (this.indices[slot] < 0)
+				{ return -1; }
+				if (this.keysHigh[slot] == high && this.keysLow[slot] == low)
+				{ return this.indices[slot]; }
+			}
+		}
+
+		void put(long high, long low, int index)
+		{
+			int mask = this.indices.length - 1;
+			for (int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask)
+			{
+				if (this.indices[slot] < 0)
+				{
+					this.keysHigh[slot] = high;
+					this.keysLow[slot] = low;
+					this.indices[slot] = index;
+					this.count++;
+					return;
+				}
+				if (this.keysHigh[slot] == high && this.keysLow[slot] == low)
+				{
+					this.indices[slot] = index;
+					return;
+				}
+			}
+		}
+	}
+
+	/** Current table; replaced, never modified, once published, so lookups
+	 *  from the read loop don't need a lock */
+	private volatile Slots slots;
+
+	/** Encoded name of each interface; maps interface indices to names */
+	private volatile byte[][] names;
+
+	public IfaceNameTable()
+	{
+		this.slots = new Slots(16);
+		this.names = new byte[0][];
+	}
+
+	/**
+	 * Add an interface.
+	 * @param name name of the interface
+	 * @param index index of the interface
+	 */
+	public synchronized void add(String name, int index)
+	{
+		byte[] encoded = encode(name);
+		byte[][] names = this.names;
+		if (index >= names.length)
+		{ names = Arrays.copyOf(names, index + 1); }
+		else
+		{ names = names.clone(); }
+		names[index] = encoded;
+		this.names = names;
+		this.put(encoded, 0, index);
+	}
+
+	/**
+	 * Add another encoding of an interface's name, e.g., one padded with
+	 * spaces instead of zeros, so it is found without decoding next time.
+	 * @param buf buffer holding the name field
+	 * @param offset offset of the name field in the buffer
+	 * @param index index of the interface
+	 */
+	public synchronized void addAlias(byte[] buf, int offset, int index)
+	{ this.put(buf, offset, index); }
+
+	/**
+	 * Look up the interface named by a name field.
+	 * @param buf buffer holding the name field
+	 * @param offset offset of the name field in the buffer
+	 * @return index of the interface; -1 if the name is unknown
+	 */
+	public int lookup(byte[] buf, int offset)
+	{
+		return this.slots.get(getLong(buf, offset), 
+				getLong(buf, offset + 8));
+	}
+
+	/**
+	 * @return the encoded name of an interface; null if the interface was
+	 *         never added
+	 */
+	public byte[] getName(int index)
+	{
+		byte[][] names = this.names;
+		if (index < 0 || index >= names.length)
+		{ return null; }
+		return names[index];
+	}
+
+	/**
+	 * Encode an interface name as a zero-padded name field.
+	 */
+	public static byte[] encode(String name)
+	{ return Arrays.copyOf(name.getBytes(), NAME_SIZE); }
+
+	/**
+	 * Publish a copy of the table with a name added; called with the table
+	 * locked.
+	 */
+	private void put(byte[] buf, int offset, int index)
+	{
+		Slots old = this.slots;
+
+		// Keep the table at most half full so probe sequences stay short
+		int size = old.indices.length;
+		if (2 * (old.count + 1) > size)
+		{ size *= 2; }
+
+		Slots slots = new Slots(size);
+		for (int i = 0; i < old.indices.length; i++)
+		{
+			if (old.indices[i] >= 0)
+			{ slots.put(old.keysHigh[i], old.keysLow[i], old.indices[i]); }
+		}
+		slots.put(getLong(buf, offset), getLong(buf, offset + 8), index);
+		this.slots = slots;
+	}
+
+	private static int hash(long high, long low)
+	{
+		long h = (high * 0x9e3779b97f4a7c15L) ^ low;
+		h *= 0xc2b2ae3d27d4eb4fL;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private static long getLong(byte[] buf, int offset)
+	{
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+		{ value = (value << 8) | (buf[offset + i] & 0xff); }
+		return value;
+	}
+}
@@ -0,0 +1,330 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries a VNS session between a co-located server and device through a
+ * memory-mapped file instead of a TCP connection. The file holds two
+ * single-producer/single-consumer byte rings, one per direction, which are
+ * exposed as streams so VNSComm and VNSServer frame commands exactly as they
+ * do over a socket.
+ * <p>
+ * File layout: a 4 KB header (magic, ring capacity), then the server-to-device
+ * ring, then the device-to-server ring. Each ring starts with its consumer
+ * position, producer position and closed flag on separate cache lines,
+ * followed by the data area.
+ */
+public class SharedMemoryTransport implements Closeable
+{
+	private static final int MAGIC = 0x564e5352; // "VNSR"
+	private static final int FILE_HEADER_SIZE = 4096;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 8;
+
+	public static final int DEFAULT_CAPACITY = 1 << 22;
+
+	/** Time (in milliseconds) a device waits for the server to create the
+	 *  file */
+	private static final long ATTACH_TIMEOUT = 10000;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(
+			long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(
+			int[].class, ByteOrder.nativeOrder());
+
+	/**
+	 * A single-producer/single-consumer byte ring in shared memory.
+	 */
+	private static class Ring
+	{
+		private static final int HEAD_OFFSET = 0;
+		private static final int TAIL_OFFSET = 64;
+		private static final int CLOSED_OFFSET = 128;
+		private static final int HEADER_SIZE = 192;
+
+		/** Spins before yielding, and yields before parking, when waiting */
+		private static final int SPIN_LIMIT = 1000;
+		private static final int YIELD_LIMIT = 1100;
+		private static final long PARK_NANOS = 20 * 1000;
+
+		private ByteBuffer buf;
+		private int capacity;
+		private int mask;
+
+		/** Last consumer position seen by the producer, to avoid re-reading
+		 *  it while there is known space */
+		private long cachedHead;
+
+		/** Last producer position seen by the consumer */
+		private long cachedTail;
+
+		Ring(ByteBuffer buf, int capacity)
+		{
+			this.buf = buf;
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+		}
+
+		static int getSize(int capacity)
+		{ return HEADER_SIZE + capacity; }
+
+		boolean isClosed()
+		{ return 0 != (int)INTS.getAcquire(this.buf, CLOSED_OFFSET); }
+
+		void close()
+		{ INTS.setRelease(this.buf, CLOSED_OFFSET, 1); }
+
+		/**
+		 * Copy bytes into the ring, waiting for space as needed.
+		 */
+		void write(byte[] src, int off, int len) throws IOException
+		{
+			long tail = (long)LONGS.getOpaque(this.buf, TAIL_OFFSET);
+			int idle = 0;
+			while (len > 0)
+			{
+				long free = this.capacity - (tail - this.cachedHead);
+				if (0 == free)
+				{
+					this.cachedHead = (long)LONGS.getAcquire(this.buf,
+							HEAD_OFFSET);
+					free = this.capacity - (tail - this.cachedHead);
+				}
+				if (0 == free)
+				{
+					if (this.isClosed())
+					{ throw new IOException("Shared memory ring closed"); }
+					idle = backoff(idle);
+					continue;
+				}
+				idle = 0;
+
+				int index = (int)(tail & this.mask);
+				int chunk = (int)Math.min(Math.min(free, len),
+						this.capacity - index);
+				this.buf.put(HEADER_SIZE + index, src, off, chunk);
+				off += chunk;
+				len -= chunk;
+				tail += chunk;
+				LONGS.setRelease(this.buf, TAIL_OFFSET, tail);
+			}
+		}
+
+		/**
+		 * Copy at least one byte out of the ring, waiting until data is
+		 * available.
+		 * @return number of bytes read; -1 if the ring is closed and empty
+		 */
+		int read(byte[] dst, int off, int len)
+		{
+			if (0 == len)
+			{ return 0; }
+			long head = (long)LONGS.getOpaque(this.buf, HEAD_OFFSET);
+			int idle = 0;
+			while (this.cachedTail == head)
+			{
+				this.cachedTail = (long)LONGS.getAcquire(this.buf,
+						TAIL_OFFSET);
+				if (this.cachedTail != head)
+				{ break; }
+				if (this.isClosed())
+				{
+					// Recheck so bytes written just before closing aren't lost
+					this.cachedTail = (long)LONGS.getAcquire(this.buf,
+							TAIL_OFFSET);
+					if (this.cachedTail == head)
+					{ return -1; }
+					break;
+				}
+				idle = backoff(idle);
+			}
+
+			int index = (int)(head & this.mask);
+			int chunk = (int)Math.min(Math.min(this.cachedTail - head, len),
+					this.capacity - index);
+			this.buf.get(HEADER_SIZE + index, dst, off, chunk);
+			LONGS.setRelease(this.buf, HEAD_OFFSET, head + chunk);
+			return chunk;
+		}
+
+		private static int backoff(int idle)
+		{
+			if (idle < SPIN_LIMIT)
+			{ Thread.onSpinWait(); }
+			else if (idle < YIELD_LIMIT)
+			{ Thread.yield(); }
+			else
+			{ LockSupport.parkNanos(PARK_NANOS); }
+			return idle + 1;
+		}
+	}
+
+	private RandomAccessFile file;
+	private File path;
+
+	/** True on the server side, which owns (and deletes) the file */
+	private boolean owner;
+
+	private Ring inRing;
+	private Ring outRing;
+	private InputStream inStream;
+	private OutputStream outStream;
+
+	private SharedMemoryTransport(RandomAccessFile file, File path,
+			MappedByteBuffer map, int capacity, boolean owner)
+	{
+		this.file = file;
+		this.path = path;
+		this.owner = owner;
+
+		int ringSize = Ring.getSize(capacity);
+		map.position(FILE_HEADER_SIZE).limit(FILE_HEADER_SIZE + ringSize);
+		Ring toDevice = new Ring(map.slice().order(ByteOrder.nativeOrder()),
+				capacity);
+		map.position(FILE_HEADER_SIZE + ringSize)
+				.limit(FILE_HEADER_SIZE + 2 * ringSize);
+		Ring toServer = new Ring(map.slice().order(ByteOrder.nativeOrder()),
+				capacity);
+		map.clear();
+
+		this.inRing = (owner ? toServer : toDevice);
+		this.outRing = (owner ? toDevice : toServer);
+
+		final Ring in = this.inRing;
+		final Ring out = this.outRing;
+		this.inStream = new InputStream() {
+			public int read() throws IOException
+			{
+				byte[] b = new byte[1];
+				return (-1 == in.read(b, 0, 1) ? -1 : (b[0] & 0xff));
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException
+			{ return in.read(b, off, len); }
+		};
+		this.outStream = new OutputStream() {
+			public void write(int b) throws IOException
+			{ out.write(new byte[] { (byte)b }, 0, 1); }
+
+			public void write(byte[] b, int off, int len) throws IOException
+			{ out.write(b, off, len); }
+		};
+	}
+
+	/**
+	 * Create the shared memory file for a session (server side).
+	 * @param filename name of the file to create
+	 * @param capacity size (in bytes, a power of two) of each ring
+	 * @return the transport; null on failure
+	 */
+	public static SharedMemoryTransport create(String filename, int capacity)
+	{
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+		{
+			System.err.println("Ring capacity must be a power of two");
+			return null;
+		}
+		File path = new File(filename);
+		try
+		{
+			path.delete();
+			RandomAccessFile file = new RandomAccessFile(path, "rw");
+			long size = FILE_HEADER_SIZE + 2L * Ring.getSize(capacity);
+			file.setLength(size);
+			MappedByteBuffer map = file.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			map.order(ByteOrder.nativeOrder());
+			map.putInt(CAPACITY_OFFSET, capacity);
+
+			SharedMemoryTransport transport = new SharedMemoryTransport(file,
+					path, map, capacity, true);
+
+			// Publish the file only once it is fully initialized
+			INTS.setRelease(map, MAGIC_OFFSET, MAGIC);
+			return transport;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Attach to a shared memory file created by a server (device side),
+	 * waiting for the server to create it if necessary.
+	 * @param filename name of the file
+	 * @return the transport; null on failure
+	 */
+	public static SharedMemoryTransport attach(String filename)
+	{
+		File path = new File(filename);
+		long deadline = System.currentTimeMillis() + ATTACH_TIMEOUT;
+		try
+		{
+			while (true)
+			{
+				if (path.length() > FILE_HEADER_SIZE)
+				{
+					RandomAccessFile file = new RandomAccessFile(path, "rw");
+					MappedByteBuffer map = file.getChannel().map(
+							FileChannel.MapMode.READ_WRITE, 0, file.length());
+					map.order(ByteOrder.nativeOrder());
+					if (MAGIC == (int)INTS.getAcquire(map, MAGIC_OFFSET))
+					{
+						int capacity = map.getInt(CAPACITY_OFFSET);
+						return new SharedMemoryTransport(file, path, map,
+								capacity, false);
+					}
+					file.close();
+				}
+				if (System.currentTimeMillis() > deadline)
+				{
+					System.err.println("Timed out attaching to " + filename);
+					return null;
+				}
+				Thread.sleep(10);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		catch (InterruptedException e)
+		{ return null; }
+	}
+
+	public InputStream getInputStream()
+	{ return this.inStream; }
+
+	public OutputStream getOutputStream()
+	{ return this.outStream; }
+
+	/**
+	 * Close both directions; the peer sees end-of-stream once it has read
+	 * everything already written.
+	 */
+	public void close()
+	{
+		this.outRing.close();
+		this.inRing.close();
+		try
+		{ this.file.close(); }
+		catch (IOException e) { }
+		if (this.owner)
+		{ this.path.delete(); }
+	}
+}
@@ -1,5 +1,8 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -7,25 +10,104 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.BufferPool;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PooledBuffer;
 
 public class VNSComm 
 {
-	private Socket socket;
+	/** Size of a VNS_PACKET command's header and interface name */
+	private static final int PACKET_HEADER_SIZE = 8 + 16;
+	
+	/** Largest command accepted from the server */
+	private static final int MAX_COMMAND_SIZE = 
+			PACKET_HEADER_SIZE + BufferPool.MAX_FRAME_SIZE;
+	
+	/** Flush a pending batch once it holds this many bytes */
+	private static final int MAX_BATCH_BYTES = 64 * 1024;
+	
+	/** Size of the stream buffers that let a command's header and body be
+	 *  read from or written to the connection in one call */
+	private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+	
+	/** Connection to the server, either a socket or shared memory */
+	private Closeable connection;
+	private InputStream inStream;
+	private OutputStream outStream;
 	private Device device;
 	
+	/** Capabilities to request in VNS_OPEN */
+	private int requestedCapabilities;
+	
+	/** True if the server accepted VNS_PACKET_BATCH */
+	private boolean batching;
+	
+	/** Frames sent while handling a received command, sent as one batch
+	 *  once the command has been handled */
+	private CommandPacketBatch pendingBatch;
+	
+	/** Thread currently passing received frames to the device; null if none */
+	private Thread dispatchThread;
+	
+	/** Serializes writes from the read loop and from timer threads */
+	private final ReentrantLock outLock = new ReentrantLock();
+	
+	/** VNS_PACKET header written before each frame; guarded by outLock */
+	private byte[] packetHeader = new byte[PACKET_HEADER_SIZE];
+	
+	/** Number of frames received from the server */
+	private long packetsReceived;
+	
+	/** Maps interface name fields to the device's interface indices */
+	private IfaceNameTable ifaceNames;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.requestedCapabilities = 0;
+		this.batching = false;
+		this.pendingBatch = new CommandPacketBatch();
+		this.packetsReceived = 0;
+		this.ifaceNames = new IfaceNameTable();
 	}
 	
+	/**
+	 * Ask the server, when connecting, to exchange frames in
+	 * VNS_PACKET_BATCH commands. Only servers that support the extension
+	 * should be asked, since the request lengthens VNS_OPEN.
+	 * @param batching true to request batching
+	 */
+	public void requestBatching(boolean batching)
+	{
+		if (batching)
+		{ this.requestedCapabilities |= Command.CAP_PACKET_BATCH; }
+		else
+		{ this.requestedCapabilities &= ~Command.CAP_PACKET_BATCH; }
+	}
+	
+	/**
+	 * @return true if the server accepted VNS_PACKET_BATCH
+	 */
+	public boolean isBatching()
+	{ return this.batching; }
+	
+	/**
+	 * @return number of frames received from the server
+	 */
+	public long getPacketsReceived()
+	{ return this.packetsReceived; }
+	
 	public boolean connectToServer(short port, String server)
+	{ return this.connectToServer(port & 0xffff, server); }
+	
+	public boolean connectToServer(int port, String server)
 	{
 		// Grab server address from name
 		InetAddress addr;
@@ -39,23 +121,56 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			Socket socket = new Socket(addr, port);
+			this.connection = socket;
+			this.inStream = new BufferedInputStream(socket.getInputStream(),
+					STREAM_BUFFER_SIZE);
+			this.outStream = new BufferedOutputStream(
+					socket.getOutputStream(), STREAM_BUFFER_SIZE);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
 			return false;
 		}
 		
-		// Send VNS_OPEN message to server
+		return this.sendOpen();
+	}
+	
+	/**
+	 * Connect to a server on the same machine through a shared memory file
+	 * instead of a socket.
+	 * @param filename name of the shared memory file created by the server
+	 * @return true if connected, otherwise false
+	 */
+	public boolean connectToSharedMemory(String filename)
+	{
+		SharedMemoryTransport transport = 
+				SharedMemoryTransport.attach(filename);
+		if (null == transport)
+		{ return false; }
+		this.connection = transport;
+		this.inStream = transport.getInputStream();
+		this.outStream = new BufferedOutputStream(
+				transport.getOutputStream(), STREAM_BUFFER_SIZE);
+		return this.sendOpen();
+	}
+	
+	/**
+	 * Send VNS_OPEN message to server.
+	 */
+	private boolean sendOpen()
+	{
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
+		cmdOpen.mCapabilities = this.requestedCapabilities;
 		byte[] buf = cmdOpen.serialize();
 		
 		try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			this.outStream.write(buf);
+			this.outStream.flush();
 		}
 		catch(IOException e)
 		{
@@ -66,6 +181,17 @@ public class VNSComm
 		return true; 
 	}
 	
+	/**
+	 * Close the connection to the server.
+	 */
+	public void disconnect()
+	{
+		if (this.connection != null)
+		{
+			try { this.connection.close(); } catch (IOException e) { }
+		}
+	}
+	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
 	{
 		Iface lastIface = null;
@@ -76,6 +202,7 @@ public class VNSComm
 			case CommandHwEntry.HW_INTERFACE:
 				lastIface = this.device.addInterface(
                         new String(hwEntry.value).trim());
+				this.ifaceNames.add(lastIface.getName(), lastIface.getIndex());
 				break;
 			case CommandHwEntry.HW_MASK:
 				lastIface.setSubnetMask(ByteBuffer.wrap(hwEntry.value).getInt());
@@ -86,6 +213,11 @@ public class VNSComm
 			case CommandHwEntry.HW_ETHER:
 				lastIface.setMacAddress(new MACAddress(hwEntry.value));
 				break;
+			case CommandHwEntry.HW_CAPABILITIES:
+				int accepted = ByteBuffer.wrap(hwEntry.value).getInt()
+						& this.requestedCapabilities;
+				this.batching = ((accepted & Command.CAP_PACKET_BATCH) != 0);
+				break;
 			default:
 				System.out.println(String.format(" %d", hwEntry.mKey));
 			}
@@ -96,8 +228,8 @@ public class VNSComm
 		{ System.out.println(" Interface list empty"); }
 		else
 		{
-			for (Iface iface : this.device.getInterfaces().values())
-			{ System.out.println(iface.toString()); }
+			for (int i = 0; i < this.device.getInterfaceCount(); i++)
+			{ System.out.println(this.device.getInterface(i).toString()); }
 		}
 		
 		return true;
@@ -109,16 +241,7 @@ public class VNSComm
 	public boolean readFromServerExpect(int expectedCmd)
 	{
 		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
-		{
-			e.printStackTrace();
-			return false;
-		}
+		InputStream inStream = this.inStream;
 		
 		// Attempt to read the size of the incoming packet
 		byte[] lenBytes = new byte[4];
@@ -140,39 +263,62 @@ public class VNSComm
 		
 		int len = ByteBuffer.wrap(lenBytes).getInt();
 		
-		if (len > 10000 || len < 0)
+		int maxLen = (this.batching ? CommandPacketBatch.MAX_SIZE 
+				: MAX_COMMAND_SIZE);
+		if (len > maxLen || len < 8)
 		{
 			System.err.println(String.format(
 					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
+			this.disconnect();
 			return false;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
+		// Get a buffer from the pool; its position and limit are relative to
+		// the start of the slab it is carved out of
+		PooledBuffer cmdBuf = BufferPool.acquire(len);
+		cmdBuf.setLength(len);
+		byte[] data = cmdBuf.getArray();
+		int base = cmdBuf.getOffset();
+		ByteBuffer buf = cmdBuf.toByteBuffer();
 		
-		// Read the rest of the command
-		while (bytesRead < len)
+		try
 		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+			// Set first field of command since we've already read it
+			buf.putInt(len);
+			
+			// Read the rest of the command
+			while (bytesRead < len)
 			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
+				try 
+				{
+					int ret = inStream.read(data, base + bytesRead, 
+							len - bytesRead);
+					if (ret < 0)
+					{ throw new Exception(); }
+					bytesRead += ret;
+				} 
+				catch (Exception e) 
+				{
+					e.printStackTrace();
+					System.err.println("Error: failed reading command body");
+					this.disconnect();
+					return false;
+				}
 			}
+			
+			return this.handleCommand(buf, base, expectedCmd);
 		}
-		
+		finally
+		{ cmdBuf.release(); }
+	}
+	
+	/**
+	 * Handle a command read from the server.
+	 * @param buf the command, positioned after its length
+	 * @param base offset of the command in buf's array
+	 */
+	private boolean handleCommand(ByteBuffer buf, int base, int expectedCmd)
+	{
 		// Make sure the command is what we expected if we were expecting something
 		int command = buf.getInt();
 		if (expectedCmd != 0 && command != expectedCmd)
@@ -186,20 +332,35 @@ public class VNSComm
 			}
 		}
 		
-		buf.position(0);
+		buf.position(base);
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			if (buf.remaining() < PACKET_HEADER_SIZE)
+			{ break; }
+			byte[] data = buf.array();
+			int frameLen = buf.limit() - base - PACKET_HEADER_SIZE;
 			
-			// Log packet
-            if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+			this.dispatchThread = Thread.currentThread();
+			this.dispatch(this.resolveInterface(data, base + 8), data, 
+					base + PACKET_HEADER_SIZE, frameLen);
+			this.dispatchThread = null;
+			this.flushBatch();
+			break;
+			
+		case Command.VNS_PACKET_BATCH:
+			CommandPacketBatch cmdBatch = new CommandPacketBatch();
+			cmdBatch.deserialize(buf);
 			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			this.dispatchThread = Thread.currentThread();
+			for (int i = 0; i < cmdBatch.mCount; i++)
+			{
+				this.dispatch(this.resolveInterface(cmdBatch.mData, 
+						cmdBatch.mNameOffsets[i]), cmdBatch.mData, 
+						cmdBatch.mOffsets[i], cmdBatch.mLengths[i]);
+			}
+			this.dispatchThread = null;
+			this.flushBatch();
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -223,6 +384,70 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Find the interface named by a received name field.
+	 * @return the interface; null if the device has no such interface
+	 */
+	private Iface resolveInterface(byte[] buf, int offset)
+	{
+		int index = this.ifaceNames.lookup(buf, offset);
+		if (index >= 0)
+		{ return this.device.getInterface(index); }
+		
+		// Unknown encoding of the name, e.g., padded with spaces; decode it
+		// and remember the encoding
+		Iface iface = this.device.getInterface(new String(buf, offset, 
+				IfaceNameTable.NAME_SIZE).trim());
+		if (iface != null)
+		{ this.ifaceNames.addAlias(buf, offset, iface.getIndex()); }
+		return iface;
+	}
+	
+	/**
+	 * Log a received frame and pass it to the device. The frame's bytes are
+	 * only valid until this returns.
+	 */
+	private void dispatch(Iface inIface, byte[] frame, int offset, int length)
+	{
+		this.packetsReceived++;
+		
+		// Log packet
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, offset, length); }
+		
+		// Pass to device, student's code should take over here
+		this.device.receiveFrame(frame, offset, length, inIface);
+	}
+	
+	/**
+	 * Send the frames batched while handling a received command.
+	 * @return true if the batch was sent successfully, otherwise false
+	 */
+	private boolean flushBatch()
+	{
+		if (0 == this.pendingBatch.getCount())
+		{ return true; }
+		try
+		{
+			this.outLock.lock();
+			try
+			{
+				this.pendingBatch.writeTo(this.outStream);
+				this.outStream.flush();
+			}
+			finally
+			{ this.outLock.unlock(); }
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		finally
+		{ this.pendingBatch.reset(); }
+		return true;
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -244,27 +469,59 @@ public class VNSComm
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
-		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
 			System.err.println("*** Error: problem with ethernet header, check log");
 			return false;
 		}*/
 		
+		Iface iface = this.device.getInterface(ifaceName);
+		if (null == iface)
+		{
+			System.err.println("** Error, interface " + ifaceName 
+					+ ", does not exist");
+			return false;
+		}
+		return this.sendPacket(etherPacket, iface);
+	}
+	
+	/**
+	 * Send a packet out one of the device's interfaces.
+	 * @param etherPacket the packet
+	 * @param iface interface out which to send the packet
+	 * @return true if the packet was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface iface)
+	{
+		byte[] frame = etherPacket.serialize();
+		return this.sendFrame(frame, 0, frame.length, iface);
+	}
+	
+	/**
+	 * Send a frame held in part of a buffer; the buffer may be reused once
+	 * this returns.
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			Iface iface)
+	{
 		// Log packet
-        if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, offset, length); }
+		
+		// Frames sent while handling a received command are batched
+		if (this.batching && Thread.currentThread() == this.dispatchThread)
+		{ return this.addToBatch(frame, offset, length, iface); }
 		
-	    try
+		try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			this.outLock.lock();
+			try
+			{
+				this.writeFrame(frame, offset, length, iface);
+				this.outStream.flush();
+			}
+			finally
+			{ this.outLock.unlock(); }
 		}
 		catch(IOException e)
 		{
@@ -273,4 +530,132 @@ public class VNSComm
 		}
 		return true;
 	}
+	
+	/**
+	 * Send a frame held in part of a buffer, but only if that needs no
+	 * waiting: a frame sent while handling a received command joins the
+	 * pending batch, and any other frame is written only if no other thread
+	 * is writing. Used for frames, such as mirrored copies, that should be
+	 * dropped rather than hold up other frames.
+	 * @return true if the frame was sent, false if it was dropped or could
+	 *         not be written
+	 */
+	public boolean offerFrame(byte[] frame, int offset, int length, 
+			Iface iface)
+	{
+		if (this.batching && Thread.currentThread() == this.dispatchThread)
+		{ return this.sendFrame(frame, offset, length, iface); }
+		if (!this.outLock.tryLock())
+		{ return false; }
+		try
+		{
+			if (this.device.getLogFile() != null)
+			{ this.device.getLogFile().dump(frame, offset, length); }
+			this.writeFrame(frame, offset, length, iface);
+			this.outStream.flush();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		finally
+		{ this.outLock.unlock(); }
+		return true;
+	}
+	
+	/**
+	 * Send a packet out several of the device's interfaces, serializing it
+	 * only once.
+	 * @param etherPacket the packet
+	 * @param ifaces interfaces out which to send the packet
+	 * @param count number of interfaces in ifaces to use
+	 * @return true if the packet was sent out every interface, otherwise
+	 *         false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface[] ifaces, int count)
+	{
+		byte[] frame = etherPacket.serialize();
+		return this.sendFrame(frame, 0, frame.length, ifaces, count);
+	}
+	
+	/**
+	 * Send a frame held in part of a buffer out several interfaces; the
+	 * copies are written together and flushed once.
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length,
+			Iface[] ifaces, int count)
+	{
+		// Log packets
+		if (this.device.getLogFile() != null)
+		{
+			for (int i = 0; i < count; i++)
+			{ this.device.getLogFile().dump(frame, offset, length); }
+		}
+		
+		boolean success = true;
+		if (this.batching && Thread.currentThread() == this.dispatchThread)
+		{
+			for (int i = 0; i < count; i++)
+			{ success &= this.addToBatch(frame, offset, length, ifaces[i]); }
+			return success;
+		}
+		
+		try
+		{
+			this.outLock.lock();
+			try
+			{
+				for (int i = 0; i < count; i++)
+				{ this.writeFrame(frame, offset, length, ifaces[i]); }
+				this.outStream.flush();
+			}
+			finally
+			{ this.outLock.unlock(); }
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the name field for an interface
+	 */
+	private byte[] getNameField(Iface iface)
+	{
+		byte[] name = this.ifaceNames.getName(iface.getIndex());
+		if (null == name)
+		{ name = IfaceNameTable.encode(iface.getName()); }
+		return name;
+	}
+	
+	/**
+	 * Add a frame to the batch sent once the received command is handled.
+	 */
+	private boolean addToBatch(byte[] frame, int offset, int length, 
+			Iface iface)
+	{
+		this.pendingBatch.add(this.getNameField(iface), frame, offset, length);
+		if (this.pendingBatch.getSize() >= MAX_BATCH_BYTES)
+		{ return this.flushBatch(); }
+		return true;
+	}
+	
+	/**
+	 * Write a VNS_PACKET command without flushing; called with outLock held.
+	 */
+	private void writeFrame(byte[] frame, int offset, int length, Iface iface)
+			throws IOException
+	{
+		ByteBuffer bb = ByteBuffer.wrap(this.packetHeader);
+		bb.putInt(PACKET_HEADER_SIZE + length);
+		bb.putInt(Command.VNS_PACKET);
+		bb.put(this.getNameField(iface), 0, IfaceNameTable.NAME_SIZE);
+		
+		this.outStream.write(this.packetHeader);
+		this.outStream.write(frame, offset, length);
+	}
 }
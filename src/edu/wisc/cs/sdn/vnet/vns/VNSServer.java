@@ -0,0 +1,410 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A minimal stand-in for the VNS server that serves a single device over a
+ * loopback TCP connection or a shared memory file. It answers the device's
+ * VNS_OPEN with the configured interfaces, injects frames, and reports the
+ * frames the device sends, so a device can be driven without POX or Mininet.
+ */
+public class VNSServer
+{
+	/**
+	 * Receives the frames a device sends through the server.
+	 */
+	public interface PacketListener
+	{
+		/**
+		 * @param ifaceName name of the interface the frame was sent out
+		 * @param frame buffer holding the Ethernet frame
+		 * @param offset offset of the frame in the buffer
+		 * @param length length of the frame
+		 */
+		public void receivedPacket(String ifaceName, byte[] frame, int offset,
+				int length);
+	}
+
+	/** Interfaces reported to the device in VNS_HW_INFO */
+	private List<Iface> interfaces;
+
+	private ServerSocket serverSocket;
+	private Socket socket;
+	private SharedMemoryTransport sharedMemory;
+	private OutputStream outStream;
+
+	/** Host name sent by the device in VNS_OPEN */
+	private String virtualHostId;
+
+	/** Listener for frames sent by the device; may be null */
+	private PacketListener listener;
+
+	/** Thread reading commands sent by the device */
+	private Thread readThread;
+
+	/** True if the server accepts VNS_PACKET_BATCH from devices */
+	private boolean batchingAllowed;
+
+	/** True if VNS_PACKET_BATCH was negotiated with the device */
+	private boolean batching;
+
+	/**
+	 * Creates a stand-in server for a device with the given interfaces.
+	 * @param interfaces interfaces to report to the device
+	 */
+	public VNSServer(List<Iface> interfaces)
+	{
+		this.interfaces = interfaces;
+		this.listener = null;
+		this.batchingAllowed = false;
+		this.batching = false;
+	}
+
+	/**
+	 * @param allowed true to accept VNS_PACKET_BATCH if a device asks for it
+	 */
+	public void setBatchingAllowed(boolean allowed)
+	{ this.batchingAllowed = allowed; }
+
+	/**
+	 * @return true if VNS_PACKET_BATCH was negotiated with the device
+	 */
+	public boolean isBatching()
+	{ return this.batching; }
+
+	public void setPacketListener(PacketListener listener)
+	{ this.listener = listener; }
+
+	/**
+	 * @return host name sent by the device in VNS_OPEN; null until a device
+	 *         has connected
+	 */
+	public String getVirtualHostId()
+	{ return this.virtualHostId; }
+
+	/**
+	 * Start listening for a device on the loopback address.
+	 * @param port port to listen on; 0 to pick an unused port
+	 * @return the port the server is listening on; -1 on failure
+	 */
+	public int listen(int port)
+	{
+		try
+		{
+			this.serverSocket = new ServerSocket(port, 1,
+					InetAddress.getLoopbackAddress());
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+		return this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Create a shared memory file through which a device on the same machine
+	 * can connect, instead of listening on a port.
+	 * @param filename name of the file to create
+	 * @param capacity size (in bytes, a power of two) of each direction's ring
+	 * @return true if the file was created, otherwise false
+	 */
+	public boolean listenSharedMemory(String filename, int capacity)
+	{
+		this.sharedMemory = SharedMemoryTransport.create(filename, capacity);
+		return (this.sharedMemory != null);
+	}
+
+	/**
+	 * Wait for a device to connect, complete the VNS_OPEN/VNS_HW_INFO
+	 * exchange and start reading the frames it sends.
+	 * @return true if a device connected successfully, otherwise false
+	 */
+	public boolean accept()
+	{
+		DataInputStream inStream;
+		try
+		{
+			if (this.sharedMemory != null)
+			{
+				this.outStream = this.sharedMemory.getOutputStream();
+				inStream = new DataInputStream(new BufferedInputStream(
+						this.sharedMemory.getInputStream()));
+			}
+			else
+			{
+				this.socket = this.serverSocket.accept();
+				this.socket.setTcpNoDelay(true);
+				this.outStream = this.socket.getOutputStream();
+				inStream = new DataInputStream(new BufferedInputStream(
+						this.socket.getInputStream()));
+			}
+
+			// Expect VNS_OPEN from the device
+			int len = inStream.readInt();
+			int type = inStream.readInt();
+			if (type != Command.VNS_OPEN || len < 8)
+			{
+				System.err.println(String.format(
+						"Error: expected command %d but got %d",
+						Command.VNS_OPEN, type));
+				this.close();
+				return false;
+			}
+			byte[] body = new byte[len - 8];
+			inStream.readFully(body);
+			this.virtualHostId = new String(body, 0,
+					Math.min(body.length, Command.ID_SIZE)).trim();
+			int capabilities = 0;
+			if (body.length >= Command.ID_SIZE + 4)
+			{
+				capabilities = ByteBuffer.wrap(body, Command.ID_SIZE, 4)
+						.getInt();
+			}
+			this.batching = (this.batchingAllowed
+					&& (capabilities & Command.CAP_PACKET_BATCH) != 0);
+
+			// Reply with the device's interfaces
+			this.write(this.buildHwInfo().serialize());
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			this.close();
+			return false;
+		}
+
+		final DataInputStream readStream = inStream;
+		this.readThread = new Thread(new Runnable() {
+			public void run()
+			{ readLoop(readStream); }
+		}, "VNS server " + this.virtualHostId);
+		this.readThread.setDaemon(true);
+		this.readThread.start();
+		return true;
+	}
+
+	private CommandHwInfo buildHwInfo()
+	{
+		CommandHwInfo cmdHwInfo = new CommandHwInfo();
+		cmdHwInfo.mHwInfo = new ArrayList<CommandHwEntry>();
+		for (Iface iface : this.interfaces)
+		{
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(
+					CommandHwEntry.HW_INTERFACE, iface.getName().getBytes()));
+			if (null == iface.getMacAddress())
+			{ continue; }
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(CommandHwEntry.HW_ETHER,
+					iface.getMacAddress().toBytes()));
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(CommandHwEntry.HW_ETH_IP,
+					ByteBuffer.allocate(4).putInt(iface.getIpAddress()).array()));
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(CommandHwEntry.HW_MASK,
+					ByteBuffer.allocate(4).putInt(iface.getSubnetMask()).array()));
+		}
+		if (this.batching)
+		{
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(
+					CommandHwEntry.HW_CAPABILITIES, ByteBuffer.allocate(4)
+					.putInt(Command.CAP_PACKET_BATCH).array()));
+		}
+		return cmdHwInfo;
+	}
+
+	/**
+	 * Send a frame to the device as if it arrived on an interface.
+	 * @param frame the Ethernet frame
+	 * @param ifaceName name of the interface on which the frame arrives
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(byte[] frame, String ifaceName)
+	{
+		int len = 8 + 16 + frame.length;
+		byte[] data = new byte[len];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.putInt(len);
+		bb.putInt(Command.VNS_PACKET);
+		byte[] name = ifaceName.getBytes();
+		bb.put(name, 0, Math.min(name.length, 16));
+		bb.position(24);
+		bb.put(frame);
+
+		try
+		{ this.write(data); }
+		catch (IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Send several frames to the device, in as few VNS_PACKET_BATCH commands
+	 * as the device accepts if batching was negotiated.
+	 * @param frames buffer of Ethernet frames
+	 * @param ifaceNames names of the interfaces on which the frames arrive
+	 * @param offset index of the first frame to send
+	 * @param count number of frames to send
+	 * @return true if the frames were sent successfully, otherwise false
+	 */
+	public boolean sendPackets(byte[][] frames, String[] ifaceNames,
+			int offset, int count)
+	{
+		if (!this.batching)
+		{
+			for (int i = offset; i < offset + count; i++)
+			{
+				if (!this.sendPacket(frames[i], ifaceNames[i]))
+				{ return false; }
+			}
+			return true;
+		}
+
+		CommandPacketBatch cmdBatch = new CommandPacketBatch();
+		try
+		{
+			synchronized (this.outStream)
+			{
+				for (int i = offset; i < offset + count; i++)
+				{
+					// Start a new batch rather than exceed what the device
+					// accepts
+					if (cmdBatch.getCount() > 0 && cmdBatch.getSize()
+							+ CommandPacketBatch.FRAME_HEADER_SIZE
+							+ frames[i].length > CommandPacketBatch.MAX_SIZE)
+					{
+						cmdBatch.writeTo(this.outStream);
+						cmdBatch.reset();
+					}
+					cmdBatch.add(ifaceNames[i], frames[i]);
+				}
+				cmdBatch.writeTo(this.outStream);
+				this.outStream.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
+
+	private void write(byte[] data) throws IOException
+	{
+		synchronized (this.outStream)
+		{
+			this.outStream.write(data);
+			this.outStream.flush();
+		}
+	}
+
+	private void readLoop(DataInputStream inStream)
+	{
+		byte[] buf = new byte[0];
+		while (true)
+		{
+			int len, type;
+			try
+			{
+				len = inStream.readInt();
+				type = inStream.readInt();
+				if (len < 8)
+				{
+					System.err.println("Error: invalid command length " + len);
+					break;
+				}
+				if (buf.length < len - 8)
+				{ buf = new byte[len - 8]; }
+				inStream.readFully(buf, 0, len - 8);
+			}
+			catch (EOFException e)
+			{ break; }
+			catch (IOException e)
+			{ break; }
+
+			switch (type)
+			{
+			case Command.VNS_PACKET:
+				if (len < 8 + 16)
+				{ break; }
+				if (this.listener != null)
+				{
+					this.listener.receivedPacket(new String(buf, 0, 16).trim(),
+							buf, 16, len - 8 - 16);
+				}
+				break;
+			case Command.VNS_PACKET_BATCH:
+				if (this.listener != null)
+				{ this.receivedBatch(buf, len - 8); }
+				break;
+			case Command.VNS_CLOSE:
+				this.close();
+				return;
+			default:
+				System.err.println(String.format("unknown command: %d", type));
+			}
+		}
+		this.close();
+	}
+
+	private void receivedBatch(byte[] buf, int len)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		int count = bb.getInt();
+		for (int i = 0; i < count; i++)
+		{
+			if (bb.remaining() < CommandPacketBatch.FRAME_HEADER_SIZE)
+			{ break; }
+			String ifaceName = new String(buf, bb.position(), 16).trim();
+			bb.position(bb.position() + 16);
+			int frameLen = bb.getInt();
+			if (frameLen < 0 || frameLen > bb.remaining())
+			{ break; }
+			this.listener.receivedPacket(ifaceName, buf, bb.position(),
+					frameLen);
+			bb.position(bb.position() + frameLen);
+		}
+	}
+
+	/**
+	 * Wait until the device closes its connection.
+	 */
+	public void join()
+	{
+		if (null == this.readThread)
+		{ return; }
+		try
+		{ this.readThread.join(); }
+		catch (InterruptedException e) { }
+	}
+
+	/**
+	 * Close the connection to the device and stop listening.
+	 */
+	public void close()
+	{
+		try
+		{
+			if (this.socket != null)
+			{ this.socket.close(); }
+			if (this.sharedMemory != null)
+			{ this.sharedMemory.close(); }
+			if (this.serverSocket != null)
+			{ this.serverSocket.close(); }
+		}
+		catch (IOException e) { }
+	}
+}
@@ -0,0 +1,260 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A spanning tree bridge protocol data unit (IEEE 802.1D/802.1w), including
+ * the 802.2 LLC header that precedes it in an 802.3 frame. Handles
+ * configuration and topology change notification BPDUs from STP and rapid
+ * spanning tree BPDUs from RSTP.
+ */
+public class BPDU extends BasePacket
+{
+	/** Destination address of all BPDUs */
+	public static final MACAddress BRIDGE_GROUP_ADDRESS =
+			MACAddress.valueOf("01:80:C2:00:00:00");
+
+	/** LLC service access point and control value for BPDUs */
+	public static final byte LLC_SAP = 0x42;
+	public static final byte LLC_CONTROL = 0x03;
+
+	public static final byte VERSION_STP = 0;
+	public static final byte VERSION_RSTP = 2;
+
+	public static final byte TYPE_CONFIG = 0x00;
+	public static final byte TYPE_RST = 0x02;
+	public static final byte TYPE_TCN = (byte)0x80;
+
+	/** Flags */
+	public static final byte FLAG_TOPOLOGY_CHANGE = 0x01;
+	public static final byte FLAG_PROPOSAL = 0x02;
+	public static final byte FLAG_LEARNING = 0x10;
+	public static final byte FLAG_FORWARDING = 0x20;
+	public static final byte FLAG_AGREEMENT = 0x40;
+	public static final byte FLAG_TOPOLOGY_CHANGE_ACK = (byte)0x80;
+
+	/** Port roles, held in bits 2 and 3 of the flags */
+	public static final int ROLE_UNKNOWN = 0;
+	public static final int ROLE_ALTERNATE_BACKUP = 1;
+	public static final int ROLE_ROOT = 2;
+	public static final int ROLE_DESIGNATED = 3;
+	private static final int ROLE_SHIFT = 2;
+	private static final int ROLE_MASK = 0x3 << ROLE_SHIFT;
+
+	/** Sizes of the LLC header and of each type of BPDU following it */
+	private static final int LLC_SIZE = 3;
+	private static final int TCN_SIZE = 4;
+	private static final int CONFIG_SIZE = 35;
+	private static final int RST_SIZE = 36;
+
+	protected byte version;
+	protected byte type;
+	protected byte flags;
+	protected long rootId;
+	protected int rootPathCost;
+	protected long bridgeId;
+	protected short portId;
+
+	/** Times, in 1/256ths of a second */
+	protected short messageAge;
+	protected short maxAge;
+	protected short helloTime;
+	protected short forwardDelay;
+
+	public BPDU()
+	{
+		super();
+		this.version = VERSION_RSTP;
+		this.type = TYPE_RST;
+	}
+
+	/**
+	 * Check whether bytes following an 802.3 length field start with the
+	 * LLC header of a BPDU.
+	 */
+	public static boolean hasHeader(byte[] data, int offset, int length)
+	{
+		return (length >= LLC_SIZE + TCN_SIZE && LLC_SAP == data[offset]
+				&& LLC_SAP == data[offset + 1]
+				&& LLC_CONTROL == data[offset + 2]);
+	}
+
+	public byte getVersion()
+	{ return this.version; }
+
+	public void setVersion(byte version)
+	{ this.version = version; }
+
+	public byte getType()
+	{ return this.type; }
+
+	public void setType(byte type)
+	{ this.type = type; }
+
+	public byte getFlags()
+	{ return this.flags; }
+
+	public void setFlags(byte flags)
+	{ this.flags = flags; }
+
+	public boolean hasFlag(byte flag)
+	{ return ((this.flags & flag) != 0); }
+
+	public int getPortRole()
+	{ return (this.flags & ROLE_MASK) >> ROLE_SHIFT; }
+
+	public void setPortRole(int role)
+	{
+		this.flags = (byte)((this.flags & ~ROLE_MASK)
+				| ((role << ROLE_SHIFT) & ROLE_MASK));
+	}
+
+	public long getRootId()
+	{ return this.rootId; }
+
+	public void setRootId(long rootId)
+	{ this.rootId = rootId; }
+
+	public int getRootPathCost()
+	{ return this.rootPathCost; }
+
+	public void setRootPathCost(int rootPathCost)
+	{ this.rootPathCost = rootPathCost; }
+
+	public long getBridgeId()
+	{ return this.bridgeId; }
+
+	public void setBridgeId(long bridgeId)
+	{ this.bridgeId = bridgeId; }
+
+	public short getPortId()
+	{ return this.portId; }
+
+	public void setPortId(short portId)
+	{ this.portId = portId; }
+
+	public short getMessageAge()
+	{ return this.messageAge; }
+
+	public void setMessageAge(short messageAge)
+	{ this.messageAge = messageAge; }
+
+	public short getMaxAge()
+	{ return this.maxAge; }
+
+	public void setMaxAge(short maxAge)
+	{ this.maxAge = maxAge; }
+
+	public short getHelloTime()
+	{ return this.helloTime; }
+
+	public void setHelloTime(short helloTime)
+	{ this.helloTime = helloTime; }
+
+	public short getForwardDelay()
+	{ return this.forwardDelay; }
+
+	public void setForwardDelay(short forwardDelay)
+	{ this.forwardDelay = forwardDelay; }
+
+	/**
+	 * @return size (in bytes) of the serialized BPDU, including the LLC
+	 *         header; the value of the 802.3 length field
+	 */
+	public int getLength()
+	{
+		if (TYPE_TCN == this.type)
+		{ return LLC_SIZE + TCN_SIZE; }
+		else if (TYPE_RST == this.type)
+		{ return LLC_SIZE + RST_SIZE; }
+		return LLC_SIZE + CONFIG_SIZE;
+	}
+
+	@Override
+	public byte[] serialize()
+	{
+		byte[] data = new byte[this.getLength()];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+
+		bb.put(LLC_SAP);
+		bb.put(LLC_SAP);
+		bb.put(LLC_CONTROL);
+		bb.putShort((short)0); // Protocol identifier
+		bb.put(this.version);
+		bb.put(this.type);
+		if (TYPE_TCN == this.type)
+		{ return data; }
+
+		bb.put(this.flags);
+		bb.putLong(this.rootId);
+		bb.putInt(this.rootPathCost);
+		bb.putLong(this.bridgeId);
+		bb.putShort(this.portId);
+		bb.putShort(this.messageAge);
+		bb.putShort(this.maxAge);
+		bb.putShort(this.helloTime);
+		bb.putShort(this.forwardDelay);
+		if (TYPE_RST == this.type)
+		{ bb.put((byte)0); } // Version 1 length
+
+		return data;
+	}
+
+	@Override
+	public IPacket deserialize(byte[] data, int offset, int length)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+
+		bb.position(bb.position() + LLC_SIZE);
+		bb.getShort(); // Protocol identifier
+		this.version = bb.get();
+		this.type = bb.get();
+
+		// A truncated BPDU is left with a zero maximum age, so it is
+		// discarded as stale
+		if (TYPE_TCN == this.type
+				|| bb.remaining() < CONFIG_SIZE - TCN_SIZE)
+		{ return this; }
+		this.flags = bb.get();
+		this.rootId = bb.getLong();
+		this.rootPathCost = bb.getInt();
+		this.bridgeId = bb.getLong();
+		this.portId = bb.getShort();
+		this.messageAge = bb.getShort();
+		this.maxAge = bb.getShort();
+		this.helloTime = bb.getShort();
+		this.forwardDelay = bb.getShort();
+		return this;
+	}
+
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{ return true; }
+		if (null == obj)
+		{ return false; }
+		if (!(obj instanceof BPDU))
+		{ return false; }
+		BPDU other = (BPDU)obj;
+		return (this.version == other.version && this.type == other.type
+				&& this.flags == other.flags && this.rootId == other.rootId
+				&& this.rootPathCost == other.rootPathCost
+				&& this.bridgeId == other.bridgeId
+				&& this.portId == other.portId
+				&& this.messageAge == other.messageAge
+				&& this.maxAge == other.maxAge
+				&& this.helloTime == other.helloTime
+				&& this.forwardDelay == other.forwardDelay);
+	}
+
+	public String toString()
+	{
+		if (TYPE_TCN == this.type)
+		{ return String.format("BPDU : {version=%d, type=TCN}", this.version); }
+		return String.format("BPDU : {version=%d, type=%d, flags=0x%02x, "
+				+ "root=%016x, cost=%d, bridge=%016x, port=%04x, age=%d}",
+				this.version, this.type, this.flags & 0xff, this.rootId,
+				this.rootPathCost, this.bridgeId, this.portId & 0xffff,
+				this.messageAge / 256);
+	}
+}
@@ -37,6 +37,8 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
+    /** Largest value of the type field that is a payload length instead */
+    public static final short MAX_LENGTH = 1500;
     public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
 
     static {
@@ -261,6 +263,10 @@ public class Ethernet extends BasePacket {
             } catch (Exception e) {
                 throw new RuntimeException("Error parsing payload for Ethernet packet", e);
             }
+        } else if (this.etherType >= 0 && this.etherType <= MAX_LENGTH
+                && BPDU.hasHeader(data, bb.position(), bb.remaining())) {
+            // 802.3 frame, where the type field holds the payload length
+            payload = new BPDU();
         } else {
             payload = new Data();
         }
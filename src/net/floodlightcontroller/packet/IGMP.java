@@ -0,0 +1,324 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An IGMP message (RFC 2236 and RFC 3376): a membership query, in its
+ * version 1/2 or version 3 form, a version 1 or 2 membership report, a
+ * version 2 leave, or a version 3 membership report made up of group
+ * records.
+ */
+public class IGMP extends BasePacket
+{
+	public static final byte TYPE_MEMBERSHIP_QUERY = 0x11;
+	public static final byte TYPE_V1_MEMBERSHIP_REPORT = 0x12;
+	public static final byte TYPE_V2_MEMBERSHIP_REPORT = 0x16;
+	public static final byte TYPE_LEAVE_GROUP = 0x17;
+	public static final byte TYPE_V3_MEMBERSHIP_REPORT = 0x22;
+
+	/** Types of version 3 group records */
+	public static final byte MODE_IS_INCLUDE = 1;
+	public static final byte MODE_IS_EXCLUDE = 2;
+	public static final byte CHANGE_TO_INCLUDE_MODE = 3;
+	public static final byte CHANGE_TO_EXCLUDE_MODE = 4;
+	public static final byte ALLOW_NEW_SOURCES = 5;
+	public static final byte BLOCK_OLD_SOURCES = 6;
+
+	/** Sizes of a version 1/2 message, of the fixed part of a version 3
+	 *  query and of the fixed part of a version 3 group record */
+	private static final int MESSAGE_SIZE = 8;
+	private static final int V3_QUERY_SIZE = 12;
+	private static final int RECORD_SIZE = 8;
+
+	/** A group record in a version 3 membership report */
+	public static class GroupRecord
+	{
+		protected byte recordType;
+		protected int groupAddress;
+		protected int[] sources;
+
+		public GroupRecord()
+		{ this.sources = new int[0]; }
+
+		public byte getRecordType()
+		{ return this.recordType; }
+
+		public void setRecordType(byte recordType)
+		{ this.recordType = recordType; }
+
+		public int getGroupAddress()
+		{ return this.groupAddress; }
+
+		public void setGroupAddress(int groupAddress)
+		{ this.groupAddress = groupAddress; }
+
+		public int[] getSources()
+		{ return this.sources; }
+
+		public void setSources(int[] sources)
+		{ this.sources = sources; }
+
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+			{ return true; }
+			if (!(obj instanceof GroupRecord))
+			{ return false; }
+			GroupRecord other = (GroupRecord)obj;
+			return (this.recordType == other.recordType
+					&& this.groupAddress == other.groupAddress
+					&& Arrays.equals(this.sources, other.sources));
+		}
+
+		public int hashCode()
+		{
+			int result = this.recordType;
+			result = 31 * result + this.groupAddress;
+			result = 31 * result + Arrays.hashCode(this.sources);
+			return result;
+		}
+	}
+
+	protected byte type;
+	protected byte maxResponseCode;
+	protected short checksum;
+	protected int groupAddress;
+
+	/** Version 3 query fields: the suppress flag and robustness variable,
+	 *  the query interval code and the source addresses */
+	protected boolean version3Query;
+	protected byte queryFlags;
+	protected byte queryIntervalCode;
+	protected int[] sources;
+
+	/** Group records of a version 3 membership report */
+	protected List<GroupRecord> records;
+
+	public IGMP()
+	{
+		super();
+		this.sources = new int[0];
+		this.records = new ArrayList<GroupRecord>();
+	}
+
+	public byte getType()
+	{ return this.type; }
+
+	public void setType(byte type)
+	{ this.type = type; }
+
+	public byte getMaxResponseCode()
+	{ return this.maxResponseCode; }
+
+	public void setMaxResponseCode(byte maxResponseCode)
+	{ this.maxResponseCode = maxResponseCode; }
+
+	public short getChecksum()
+	{ return this.checksum; }
+
+	public void setChecksum(short checksum)
+	{ this.checksum = checksum; }
+
+	/**
+	 * @return group of a query, report or leave; 0 for a general query or
+	 *         a version 3 report
+	 */
+	public int getGroupAddress()
+	{ return this.groupAddress; }
+
+	public void setGroupAddress(int groupAddress)
+	{ this.groupAddress = groupAddress; }
+
+	public boolean isVersion3Query()
+	{ return this.version3Query; }
+
+	public void setVersion3Query(boolean version3Query)
+	{ this.version3Query = version3Query; }
+
+	public byte getQueryFlags()
+	{ return this.queryFlags; }
+
+	public void setQueryFlags(byte queryFlags)
+	{ this.queryFlags = queryFlags; }
+
+	public byte getQueryIntervalCode()
+	{ return this.queryIntervalCode; }
+
+	public void setQueryIntervalCode(byte queryIntervalCode)
+	{ this.queryIntervalCode = queryIntervalCode; }
+
+	public int[] getSources()
+	{ return this.sources; }
+
+	public void setSources(int[] sources)
+	{ this.sources = sources; }
+
+	public List<GroupRecord> getRecords()
+	{ return this.records; }
+
+	public void setRecords(List<GroupRecord> records)
+	{ this.records = records; }
+
+	public void addRecord(GroupRecord record)
+	{ this.records.add(record); }
+
+	/**
+	 * @return true for a membership report of any version
+	 */
+	public boolean isReport()
+	{
+		return (TYPE_V1_MEMBERSHIP_REPORT == this.type
+				|| TYPE_V2_MEMBERSHIP_REPORT == this.type
+				|| TYPE_V3_MEMBERSHIP_REPORT == this.type);
+	}
+
+	/**
+	 * Serializes the message, computing the checksum if it is 0.
+	 */
+	@Override
+	public byte[] serialize()
+	{
+		int length = MESSAGE_SIZE;
+		if (TYPE_V3_MEMBERSHIP_REPORT == this.type)
+		{
+			for (GroupRecord record : this.records)
+			{ length += RECORD_SIZE + 4 * record.sources.length; }
+		}
+		else if (TYPE_MEMBERSHIP_QUERY == this.type && this.version3Query)
+		{ length = V3_QUERY_SIZE + 4 * this.sources.length; }
+
+		byte[] data = new byte[length];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.put(this.type);
+		if (TYPE_V3_MEMBERSHIP_REPORT == this.type)
+		{
+			bb.put((byte)0);
+			bb.putShort(this.checksum);
+			bb.putShort((short)0);
+			bb.putShort((short)this.records.size());
+			for (GroupRecord record : this.records)
+			{
+				bb.put(record.recordType);
+				bb.put((byte)0); // Auxiliary data length
+				bb.putShort((short)record.sources.length);
+				bb.putInt(record.groupAddress);
+				for (int source : record.sources)
+				{ bb.putInt(source); }
+			}
+		}
+		else
+		{
+			bb.put(this.maxResponseCode);
+			bb.putShort(this.checksum);
+			bb.putInt(this.groupAddress);
+			if (TYPE_MEMBERSHIP_QUERY == this.type && this.version3Query)
+			{
+				bb.put(this.queryFlags);
+				bb.put(this.queryIntervalCode);
+				bb.putShort((short)this.sources.length);
+				for (int source : this.sources)
+				{ bb.putInt(source); }
+			}
+		}
+
+		if (this.parent != null && this.parent instanceof IPv4)
+		{ ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_IGMP); }
+
+		if (0 == this.checksum)
+		{
+			bb.rewind();
+			int accumulation = 0;
+			for (int i = 0; i < length / 2; i++)
+			{ accumulation += 0xffff & bb.getShort(); }
+			accumulation = ((accumulation >> 16) & 0xffff)
+					+ (accumulation & 0xffff);
+			this.checksum = (short)(~accumulation & 0xffff);
+			bb.putShort(2, this.checksum);
+		}
+		return data;
+	}
+
+	@Override
+	public IPacket deserialize(byte[] data, int offset, int length)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+		if (length < MESSAGE_SIZE)
+		{
+			// Too short to be a message; leave the type unset so it is
+			// ignored
+			return this;
+		}
+
+		this.type = bb.get();
+		if (TYPE_V3_MEMBERSHIP_REPORT == this.type)
+		{
+			bb.get();
+			this.checksum = bb.getShort();
+			bb.getShort();
+			int count = bb.getShort() & 0xffff;
+			for (int i = 0; i < count && bb.remaining() >= RECORD_SIZE; i++)
+			{
+				GroupRecord record = new GroupRecord();
+				record.recordType = bb.get();
+				int auxLength = 4 * (bb.get() & 0xff);
+				int sourceCount = bb.getShort() & 0xffff;
+				record.groupAddress = bb.getInt();
+				if (bb.remaining() < 4 * sourceCount + auxLength)
+				{ break; }
+				record.sources = new int[sourceCount];
+				for (int j = 0; j < sourceCount; j++)
+				{ record.sources[j] = bb.getInt(); }
+				bb.position(bb.position() + auxLength);
+				this.records.add(record);
+			}
+			return this;
+		}
+
+		this.maxResponseCode = bb.get();
+		this.checksum = bb.getShort();
+		this.groupAddress = bb.getInt();
+		if (TYPE_MEMBERSHIP_QUERY == this.type
+				&& bb.remaining() >= V3_QUERY_SIZE - MESSAGE_SIZE)
+		{
+			this.version3Query = true;
+			this.queryFlags = bb.get();
+			this.queryIntervalCode = bb.get();
+			int sourceCount = bb.getShort() & 0xffff;
+			sourceCount = Math.min(sourceCount, bb.remaining() / 4);
+			this.sources = new int[sourceCount];
+			for (int i = 0; i < sourceCount; i++)
+			{ this.sources[i] = bb.getInt(); }
+		}
+		return this;
+	}
+
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{ return true; }
+		if (null == obj)
+		{ return false; }
+		if (!(obj instanceof IGMP))
+		{ return false; }
+		IGMP other = (IGMP)obj;
+		return (this.type == other.type
+				&& this.maxResponseCode == other.maxResponseCode
+				&& this.checksum == other.checksum
+				&& this.groupAddress == other.groupAddress
+				&& this.version3Query == other.version3Query
+				&& this.queryFlags == other.queryFlags
+				&& this.queryIntervalCode == other.queryIntervalCode
+				&& Arrays.equals(this.sources, other.sources)
+				&& this.records.equals(other.records));
+	}
+
+	public String toString()
+	{
+		return String.format("IGMP : {type=0x%02x, group=%s, records=%d}",
+				this.type & 0xff, IPv4.fromIPv4Address(this.groupAddress),
+				this.records.size());
+	}
+}